@@ -32,6 +32,14 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    testOptions {
+        // BluetoothService и симулятор в JVM тестах через Robolectric
+        unitTests.isIncludeAndroidResources = true
+        // Передачи в реальном темпе соединения - только по запросу: ./gradlew test -PlinkRateTests=true
+        unitTests.all {
+            it.systemProperty("ggk.linkRateTests", project.findProperty("linkRateTests") ?: "false")
+        }
+    }
 }
 
 dependencies {
@@ -76,6 +84,7 @@ dependencies {
     implementation(libs.navigation.fragment)
     implementation(libs.navigation.ui)
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -4,10 +4,8 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
+import android.bluetooth.le.ScanResult;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -42,6 +40,7 @@ import java.util.Set;
 @SuppressLint("MissingPermission")
 public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLayout.OnRefreshListener {
     private static final String TAG = "AvailableDevicesFragment";
+    private static final long REFRESH_INDICATOR_DURATION = 2000;
 
     private BluetoothAdapter bluetoothAdapter;
     private DeviceListAdapter adapter;
@@ -53,20 +52,37 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
     private Set<String> foundDevices = new HashSet<>();
     private List<DeviceListAdapter.DeviceItem> deviceList = new ArrayList<>();
 
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    private LeDeviceScanner deviceScanner;
+
+    private final LeDeviceScanner.Listener scanListener = new LeDeviceScanner.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (device != null && !foundDevices.contains(device.getAddress())) {
+        public void onDevicesFound(List<ScanResult> results) {
+            boolean added = false;
+            for (ScanResult result : results) {
+                BluetoothDevice device = result.getDevice();
+                if (!foundDevices.contains(device.getAddress())) {
                     foundDevices.add(device.getAddress());
-                    addDeviceToList(device, false);
+                    addDeviceToList(device, false, LeDeviceScanner.nameOf(result));
+                    added = true;
                 }
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-                // Используем только SwipeRefreshLayout для индикации
-                swipeRefreshLayout.setRefreshing(true);
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+            }
+            if (added) {
+                publishList();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            swipeRefreshLayout.setRefreshing(false);
+            updateEmptyState();
+        }
+    };
+
+    // Индикатор обновления гаснет, поиск продолжается, пока список на экране
+    private final Runnable refreshDoneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (swipeRefreshLayout != null) {
                 swipeRefreshLayout.setRefreshing(false);
                 updateEmptyState();
             }
@@ -81,6 +97,7 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
         BluetoothManager bluetoothManager = (BluetoothManager) requireContext()
                 .getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
+        deviceScanner = new LeDeviceScanner(requireContext(), scanListener);
     }
 
     @Nullable
@@ -102,9 +119,8 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
         );
 
         adapter = new DeviceListAdapter(device -> {
-            if (bluetoothAdapter.isDiscovering()) {
-                bluetoothAdapter.cancelDiscovery();
-            }
+            // Поиск в быстром режиме мешает подключению
+            deviceScanner.stop();
 
             // Используем новый метод обработки
             handleDeviceSelection(device);
@@ -141,27 +157,16 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
     @Override
     public void onResume() {
         super.onResume();
-        registerReceivers();
         refreshDeviceList();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
-        }
-        try {
-            requireContext().unregisterReceiver(receiver);
-        } catch (IllegalArgumentException ignored) {}
-    }
-
-    private void registerReceivers() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        requireContext().registerReceiver(receiver, filter);
+        // Быстрый поиск - только пока список на экране
+        deviceScanner.stop();
+        mainHandler.removeCallbacks(refreshDoneRunnable);
+        swipeRefreshLayout.setRefreshing(false);
     }
 
     @Override
@@ -187,23 +192,29 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
         Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
         Log.d(TAG, "Paired devices: " + pairedDevices.size());
         for (BluetoothDevice device : pairedDevices) {
-            addDeviceToList(device, true);
+            foundDevices.add(device.getAddress());
+            addDeviceToList(device, true, null);
         }
-
-        // Начинаем поиск новых устройств
-        if (bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
+        publishList();
+
+        // Поиск новых устройств (LE, наши логгеры видны с первого рекламного пакета).
+        // Идущий поиск не перезапускается: Android глушит приложение за 5+ запусков за 30 с,
+        // а ALL_MATCHES и так заново выдаст все устройства в эфире
+        boolean started = deviceScanner.start(true);
+        Log.d(TAG, "LE scan started: " + started);
+        swipeRefreshLayout.setRefreshing(started);
+        mainHandler.removeCallbacks(refreshDoneRunnable);
+        if (started) {
+            mainHandler.postDelayed(refreshDoneRunnable, REFRESH_INDICATOR_DURATION);
         }
-
-        boolean started = bluetoothAdapter.startDiscovery();
-        Log.d(TAG, "Discovery started: " + started);
     }
 
-    private void addDeviceToList(BluetoothDevice device, boolean isPaired) {
+    private void addDeviceToList(BluetoothDevice device, boolean isPaired, String advertisedName) {
         Log.d(TAG, "Adding device: " + device.getAddress() + " paired: " + isPaired);
 
         // Создаем элемент с исходным именем устройства
         DeviceListAdapter.DeviceItem item = new DeviceListAdapter.DeviceItem(device, isPaired);
+        item.setAdvertisedName(advertisedName);
 
         // Проверяем, есть ли пользовательское имя для этого устройства
         String customName = getCustomNameForDevice(device.getAddress());
@@ -212,12 +223,12 @@ public class AvailableDevicesFragment extends Fragment implements SwipeRefreshLa
         }
 
         deviceList.add(item);
+    }
 
-        mainHandler.post(() -> {
-            adapter.submitList(new ArrayList<>(deviceList));
-            updateEmptyState();
-            Log.d(TAG, "List updated, size: " + deviceList.size());
-        });
+    private void publishList() {
+        adapter.submitList(new ArrayList<>(deviceList));
+        updateEmptyState();
+        Log.d(TAG, "List updated, size: " + deviceList.size());
     }
 
     // Получение пользовательского имени устройства
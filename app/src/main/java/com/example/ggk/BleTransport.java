@@ -0,0 +1,32 @@
+package com.example.ggk;
+
+/**
+ * Канал к периферийному устройству для BluetoothService.
+ * По умолчанию BluetoothService работает через BluetoothGatt напрямую; реализация этого
+ * интерфейса (например, SimulatedLoggerTransport) подменяет радио целиком.
+ * События Listener можно вызывать с любого потока, кроме главного.
+ */
+public interface BleTransport {
+
+    interface Listener {
+        void onConnectionStateChange(boolean connected);
+        void onMtuChanged(int mtu);
+        void onServicesDiscovered(boolean success);
+        void onNotification(byte[] data);
+
+        /** Соединение оборвалось не по запросу (вне зоны, помехи); по умолчанию - обычное отключение. */
+        default void onConnectionLost() {
+            onConnectionStateChange(false);
+        }
+    }
+
+    void connect(String address, Listener listener);
+
+    void disconnect();
+
+    /** Отправляет команду устройству. false - запись не может быть начата. */
+    boolean write(byte[] data, GattOperationQueue.Completion completion);
+
+    /** Освобождает ресурсы, после вызова канал не используется. */
+    void close();
+}
@@ -11,22 +11,20 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -38,23 +36,29 @@ public class BluetoothService {
     private static final String TAG = "BluetoothService";
     private static final long CONNECTION_TIMEOUT = 15000;
     private static final int BUFFER_SIZE_THRESHOLD = 8192;
-    private static final int MAX_DATA_DISPLAY_SIZE = 16384;
     private static final String DATA_TAG = "BLE_DATA";
-    private static final int MAX_RECONNECT_ATTEMPTS = 3;
-    private static final long RECONNECT_DELAY = 2000;
+    // Быстрое переподключение через прежний BluetoothGatt; не успело - обычное подключение
+    private static final long RESUME_TIMEOUT = 2500;
     private static final long BUFFER_PROCESS_INTERVAL = 50;
-    private static final int MAX_RECEPTION_BUFFER_SIZE = 1024 * 1024;
     private static final long UI_UPDATE_INTERVAL = 500;
     private static final int MAX_PENDING_NOTIFICATIONS = 10;
     private static final long NOTIFICATION_TIMEOUT = 5000;
+    private static final int REQUESTED_MTU = 517;
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final int CHUNK_RING_SLOTS = 512;
 
     private final Context context;
     private final BluetoothAdapter bluetoothAdapter;
+    private final BleTransport transport;
     private volatile BluetoothGatt bluetoothGatt;
-    private BluetoothCallback callback;
+    private volatile BluetoothCallback callback;
+    // mainHandler - только финальные UI callbacks, всё остальное на ioThread
     private final Handler mainHandler;
+    private final HandlerThread ioThread;
     private final Handler backgroundHandler;
     private final ExecutorService dataProcessingExecutor;
+    private final GattOperationQueue gattQueue;
 
     private final AtomicBoolean isConnected = new AtomicBoolean(false);
     private final AtomicBoolean isConnecting = new AtomicBoolean(false);
@@ -62,27 +66,51 @@ public class BluetoothService {
     private final AtomicBoolean asciiMode = new AtomicBoolean(true);
     private final AtomicBoolean numericMode = new AtomicBoolean(false);
     private final AtomicInteger reconnectAttempts = new AtomicInteger(0);
+    // null - политика по запрошенному профилю (ReconnectPolicy.forProfile)
+    private volatile ReconnectPolicy reconnectPolicy;
+    private final Random backoffRandom = new Random();
+    // Обрыв настроенного соединения: следующая попытка - через тот же BluetoothGatt
+    private final AtomicBoolean resumeGatt = new AtomicBoolean(false);
+    // Идет быстрое переподключение: поиск сервисов можно пропустить
+    private final AtomicBoolean resuming = new AtomicBoolean(false);
 
     // Флаг для отключения автоматической обработки (для MT устройств)
     private final AtomicBoolean rawTextMode = new AtomicBoolean(false);
 
-    private volatile FileOutputStream fileOutputStream;
-    private volatile File outputFile;
+    // Форматировать числовые данные в текст только когда консоль на экране
+    private final AtomicBoolean consoleEnabled = new AtomicBoolean(true);
 
-    private final StringBuilder sequenceBuffer = new StringBuilder();
-    private final java.util.List<Integer> numericBuffer = new java.util.ArrayList<>();
-    private final Queue<byte[]> dataBuffer = new ConcurrentLinkedQueue<>();
-    private final AtomicInteger bufferedBytesCount = new AtomicInteger(0);
-    private final java.io.ByteArrayOutputStream receptionBuffer = new java.io.ByteArrayOutputStream(MAX_RECEPTION_BUFFER_SIZE);
+    private volatile CaptureFileWriter captureWriter;
+    private volatile SessionTraceRecorder traceRecorder;
+    // Трасса открыта самим сервисом по DeveloperOptions и закрывается в close()
+    private volatile boolean ownsTraceRecorder;
+    private volatile File outputFile;
+    // Позиции в файле захвата для индекса Start/End, -1 - пакет не записан (поток обработки)
+    private byte[] captureChunk;
+    private CaptureFileWriter captureChunkWriter;
+    private long captureChunkBase = -1;
+    private long captureTextEnd = -1;
+    private long capturePayloadPosition = -1;
+
+    private final StreamFrameDetector frameDetector = new StreamFrameDetector();
+    private final UiUpdateCoalescer uiUpdates;
+    private final ConsoleFormatter formatBuffer = new ConsoleFormatter(BUFFER_SIZE_THRESHOLD * 5);
+    private volatile PayloadListener payloadListener;
+    private byte[] payloadScratch = new byte[BUFFER_SIZE_THRESHOLD];
+    private int payloadLength = 0;
+    private int pendingLowByte = -1;
+    // Пакеты от binder потока к dataProcessingExecutor без аллокаций на пакет
+    private final ChunkRing dataBuffer = new ChunkRing(CHUNK_RING_SLOTS, REQUESTED_MTU - ATT_HEADER_SIZE);
     private volatile long lastUIUpdateTime = 0;
     private volatile boolean receptionComplete = false;
 
     private final AtomicLong totalBytesReceived = new AtomicLong(0);
     private final AtomicLong totalPacketsReceived = new AtomicLong(0);
-    private final AtomicLong droppedPackets = new AtomicLong(0);
+    private final TransferStatistics statistics = new TransferStatistics();
+    // Сколько раз обработка BLE данных оказалась на главном потоке (должно быть 0)
+    private final AtomicLong mainThreadProcessingCount = new AtomicLong(0);
     private volatile long startReceivingTime = 0;
     private volatile long lastDataReceivedTime = 0;
-    private volatile int lastSequenceNumber = -1;
 
     private final AtomicBoolean servicesDiscovered = new AtomicBoolean(false);
     private final AtomicBoolean notificationsEnabled = new AtomicBoolean(false);
@@ -93,6 +121,14 @@ public class BluetoothService {
     private volatile UUID currentWriteCharacteristicUuid;
     private volatile BluetoothGattCharacteristic writeCharacteristic;
 
+    // Запрошенный профиль сохраняется для переподключений, активный - текущее состояние соединения
+    private volatile LinkProfile requestedLinkProfile = LinkProfile.BALANCED;
+    private volatile LinkProfile activeLinkProfile = LinkProfile.BALANCED;
+    private volatile int negotiatedMtu = DEFAULT_MTU;
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
     private boolean syncMode = false;
     private long lastSyncTime = 0;
 
@@ -103,16 +139,92 @@ public class BluetoothService {
         void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond);
         void onError(String message);
         void onReconnectAttempt(int attempt, int maxAttempts);
+
+        // Согласованные параметры соединения (MTU, PHY, приоритет)
+        default void onLinkParametersChanged(LinkParameters parameters) {}
+    }
+
+    // BULK_TRANSFER - высокий приоритет соединения и 2M PHY на время выгрузки
+    public enum LinkProfile {
+        BALANCED,
+        BULK_TRANSFER
+    }
+
+    /** Текущие параметры соединения для сопоставления с измеренной скоростью. */
+    public static final class LinkParameters {
+        public final LinkProfile profile;
+        public final int mtu;
+        public final int txPhy;
+        public final int rxPhy;
+        public final int connectionPriority;
+
+        LinkParameters(LinkProfile profile, int mtu, int txPhy, int rxPhy, int connectionPriority) {
+            this.profile = profile;
+            this.mtu = mtu;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            this.connectionPriority = connectionPriority;
+        }
+
+        @Override
+        public String toString() {
+            String priority;
+            switch (connectionPriority) {
+                case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                    priority = "HIGH";
+                    break;
+                case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                    priority = "LOW_POWER";
+                    break;
+                default:
+                    priority = "BALANCED";
+                    break;
+            }
+            return String.format(Locale.US, "%s: MTU %d, PHY tx %s / rx %s, priority %s",
+                    profile, mtu, phyName(txPhy), phyName(rxPhy), priority);
+        }
+
+        private static String phyName(int phy) {
+            switch (phy) {
+                case BluetoothDevice.PHY_LE_2M:
+                    return "2M";
+                case BluetoothDevice.PHY_LE_CODED:
+                    return "Coded";
+                default:
+                    return "1M";
+            }
+        }
+    }
+
+    // Бинарные данные после 'Start\r\n': пары байтов little-endian -> signed int16
+    public interface PayloadListener {
+        void onPayloadStarted();
+        void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond);
+        void onPayloadFinished();
     }
 
     public BluetoothService(Context context) {
+        this(context, null);
+    }
+
+    /** transport - канал вместо BluetoothGatt (симулятор, тесты); null - обычный GATT. */
+    public BluetoothService(Context context, BleTransport transport) {
         this.context = context;
+        this.transport = transport;
         this.mainHandler = new Handler(Looper.getMainLooper());
+        this.uiUpdates = new UiUpdateCoalescer(mainHandler, uiSink);
 
-        BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-        bluetoothAdapter = bluetoothManager.getAdapter();
+        if (transport == null) {
+            BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+            bluetoothAdapter = bluetoothManager.getAdapter();
+        } else {
+            bluetoothAdapter = null;
+        }
 
-        this.backgroundHandler = new Handler(Looper.getMainLooper());
+        ioThread = new HandlerThread("BluetoothIO", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        ioThread.start();
+        this.backgroundHandler = new Handler(ioThread.getLooper());
+        gattQueue = new GattOperationQueue(backgroundHandler);
 
         dataProcessingExecutor = Executors.newSingleThreadExecutor(r -> {
             Thread t = new Thread(r, "BluetoothDataProcessor");
@@ -123,6 +235,41 @@ public class BluetoothService {
         scheduleBufferProcessing();
     }
 
+    // Главный поток: доставка накопленного за кадр текущим слушателям
+    private final UiUpdateCoalescer.Sink uiSink = new UiUpdateCoalescer.Sink() {
+        @Override
+        public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            BluetoothCallback current = callback;
+            if (current != null) {
+                current.onDataBatch(formattedBatch, totalBytes, kbPerSecond);
+            }
+        }
+
+        @Override
+        public void onPayloadStarted() {
+            PayloadListener listener = payloadListener;
+            if (listener != null) {
+                listener.onPayloadStarted();
+            }
+        }
+
+        @Override
+        public void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond) {
+            PayloadListener listener = payloadListener;
+            if (listener != null) {
+                listener.onSamplesReceived(samples, totalBytes, kbPerSecond);
+            }
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            PayloadListener listener = payloadListener;
+            if (listener != null) {
+                listener.onPayloadFinished();
+            }
+        }
+    };
+
     public void setSyncMode(boolean enabled, long lastSyncTime) {
         this.syncMode = enabled;
         this.lastSyncTime = lastSyncTime;
@@ -143,7 +290,7 @@ public class BluetoothService {
         @Override
         public void run() {
             try {
-                if (isConnected.get() && bufferedBytesCount.get() > 0) {
+                if (isConnected.get() && !dataBuffer.isEmpty()) {
                     processDataBuffer();
                 }
             } catch (Exception e) {
@@ -157,290 +304,201 @@ public class BluetoothService {
     };
 
     private void processDataBuffer() {
-        dataProcessingExecutor.execute(() -> {
-            try {
-                List<byte[]> dataChunks = new ArrayList<>();
-                int totalSize = 0;
-
-                byte[] chunk;
-                while ((chunk = dataBuffer.poll()) != null) {
-                    dataChunks.add(chunk);
-                    totalSize += chunk.length;
-                }
-                bufferedBytesCount.set(0);
-
-                if (totalSize == 0) return;
-
-                ByteBuffer combinedBuffer = ByteBuffer.allocate(totalSize);
-                for (byte[] dataChunk : dataChunks) {
-                    combinedBuffer.put(dataChunk);
-
-                    if (saveToFile.get() && fileOutputStream != null) {
-                        try {
-                            synchronized (this) {
-                                if (fileOutputStream != null) {
-                                    fileOutputStream.write(dataChunk);
-                                    fileOutputStream.flush();
-                                }
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error writing to file", e);
-                            notifyError("Error writing to file: " + e.getMessage());
-                        }
-                    }
-                }
+        dataProcessingExecutor.execute(drainRunnable);
+    }
 
-                byte[] combinedData = combinedBuffer.array();
-                String formattedBatch = formatDataBatch(combinedData);
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkNotMainThread();
+            try {
+                synchronized (frameDetector) {
+                    formatBuffer.reset();
+                    payloadLength = 0;
 
-                long currentTime = System.currentTimeMillis();
-                double elapsedTimeSeconds = (currentTime - startReceivingTime) / 1000.0;
-                long totalBytes = totalBytesReceived.get();
-                double kbPerSecond = elapsedTimeSeconds > 0 ? (totalBytes / 1024.0) / elapsedTimeSeconds : 0;
+                    // Пакеты обрабатываются прямо из слэбов, без склейки в общий буфер
+                    if (dataBuffer.drain(chunkConsumer) == 0) return;
 
-                if (callback != null) {
-                    mainHandler.post(() -> {
-                        try {
-                            callback.onDataBatch(formattedBatch, totalBytes, kbPerSecond);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error in callback", e);
-                        }
-                    });
+                    // Текст и отсчеты после последнего маркера; onDataBatch идет каждую пачку
+                    queueUiSegment(true);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error processing data buffer", e);
                 notifyError("Error processing data: " + e.getMessage());
             }
-        });
-    }
-
-    private String formatDataBatch(byte[] data) {
-        if (asciiMode.get()) {
-            return formatDataBatchAsAscii(data);
-        } else {
-            return formatDataBatchAsHex(data);
         }
-    }
-
-    private String formatDataBatchAsAscii(byte[] data) {
-        StringBuilder result = new StringBuilder();
+    };
 
-        // Если включен режим чистого текста (для MT устройств), просто возвращаем текст как есть
-        if (rawTextMode.get()) {
-            for (byte b : data) {
-                int value = b & 0xFF;
-                if (value >= 32 && value <= 126) {
-                    result.append((char) value);
-                } else if (value == 10) {
-                    result.append("\n");
-                } else if (value == 13) {
-                    result.append("\r");
-                } else if (value == 9) {
-                    result.append("\t");
-                }
-            }
-            return result.toString();
+    // Под synchronized (frameDetector): накопленные текст и отсчеты уходят в UiUpdateCoalescer
+    // до события маркера, чтобы End и следующий Start в одной пачке не поменялись местами
+    private void queueUiSegment(boolean alwaysText) {
+        short[] samples = payloadLength > 0 ? decodeSamples(payloadScratch, payloadLength) : null;
+        payloadLength = 0;
+        if (samples != null) {
+            statistics.onSamplesDecoded(samples.length);
         }
 
-        Log.d(TAG, "formatDataBatchAsAscii called, initial numericMode: " + numericMode.get() + ", data length: " + data.length);
-
-        for (int i = 0; i < data.length; i++) {
-            byte currentByte = data[i];
-            int value = currentByte & 0xFF;
-
-            if (!numericMode.get()) {
-                sequenceBuffer.append((char) value);
-
-                String bufferContent = sequenceBuffer.toString();
-                if (bufferContent.contains("Start")) {
-                    int startIndex = bufferContent.lastIndexOf("Start");
-
-                    if (startIndex + 5 < bufferContent.length()) {
-                        String afterStart = bufferContent.substring(startIndex + 5);
-                        Log.d(TAG, "Found 'Start', checking what follows: [" +
-                                afterStart.replaceAll("\r", "\\\\r").replaceAll("\n", "\\\\n") + "]");
-
-                        StringBuilder codes = new StringBuilder();
-                        for (int k = 0; k < Math.min(afterStart.length(), 10); k++) {
-                            codes.append((int)afterStart.charAt(k)).append(" ");
-                        }
-                        Log.d(TAG, "ASCII codes after 'Start': " + codes.toString());
-                    }
-
-                    if (startIndex + 5 < bufferContent.length()) {
-                        String afterStart = bufferContent.substring(startIndex + 5);
-                        boolean foundNewline = false;
-
-                        for (int j = 0; j < afterStart.length(); j++) {
-                            char c = afterStart.charAt(j);
-                            int charCode = (int) c;
-
-                            if (charCode == 10) {
-                                foundNewline = true;
-                                Log.d(TAG, "Found LF (10) at position " + j + " after 'Start'");
-                                break;
-                            } else if (charCode == 13 && j + 1 < afterStart.length()) {
-                                char nextC = afterStart.charAt(j + 1);
-                                if ((int) nextC == 10) {
-                                    foundNewline = true;
-                                    Log.d(TAG, "Found CR+LF (13+10) at position " + j + " after 'Start'");
-                                    break;
-                                }
-                            }
-                        }
-
-                        if (!foundNewline && afterStart.startsWith(" ")) {
-                            Log.d(TAG, "Alternative pattern: 'Start' followed by space and data");
-                            foundNewline = true;
-                        }
-
-                        if (foundNewline) {
-                            numericMode.set(true);
-                            Log.d(TAG, "Switching to numeric mode at byte " + i + " after 'Start' + newline (real \\r\\n)");
-
-                            result.append("\n");
-
-                            if (callback != null) {
-                                mainHandler.post(() -> callback.onError("AUTO: Switched to numeric mode (paired bytes)"));
-                            }
-
-                            sequenceBuffer.setLength(0);
-
-                            if (value == 13 || value == 10) {
-                                continue;
-                            }
+        long currentTime = System.currentTimeMillis();
+        double elapsedTimeSeconds = (currentTime - startReceivingTime) / 1000.0;
+        long totalBytes = totalBytesReceived.get();
+        double kbPerSecond = elapsedTimeSeconds > 0 ? (totalBytes / 1024.0) / elapsedTimeSeconds : 0;
 
-                            result.append(value).append(" ");
-                            continue;
-                        }
-                    }
-                }
+        // На главный поток - не чаще одного раза за кадр
+        if (callback != null && (alwaysText || formatBuffer.length() > 0)) {
+            uiUpdates.addBatch(formatBuffer.toString(), totalBytes, kbPerSecond);
+        }
+        formatBuffer.reset();
+        if (payloadListener != null && samples != null && samples.length > 0) {
+            uiUpdates.addSamples(samples, totalBytes, kbPerSecond);
+        }
+    }
 
-                if (sequenceBuffer.length() > 100) {
-                    String keepEnd = sequenceBuffer.substring(sequenceBuffer.length() - 50);
-                    sequenceBuffer.setLength(0);
-                    sequenceBuffer.append(keepEnd);
-                }
+    // Вызывается из drainRunnable под synchronized (frameDetector)
+    private final ChunkRing.ChunkConsumer chunkConsumer = new ChunkRing.ChunkConsumer() {
+        @Override
+        public void onChunk(byte[] data, int offset, int length) {
+            // Запись на диск идет на потоке CaptureFileWriter, здесь только копирование
+            CaptureFileWriter writer = captureWriter;
+            long position = -1;
+            if (saveToFile.get() && writer != null) {
+                position = writer.write(data, offset, length);
+            }
+            captureChunk = data;
+            captureChunkWriter = writer;
+            captureChunkBase = position >= 0 ? position - offset : -1;
 
-                if (value >= 32 && value <= 126) {
-                    result.append((char) value);
-                } else if (value == 10) {
-                    result.append("\n");
-                } else if (value == 13) {
-                    if (i + 1 < data.length && (data[i + 1] & 0xFF) != 10) {
-                        result.append("\r");
-                    }
-                } else if (value == 9) {
-                    result.append("\t");
-                } else {
-                    result.append(".");
-                }
+            if (rawTextMode.get()) {
+                formatBuffer.appendRaw(data, offset, length);
             } else {
-                // НОВАЯ ЛОГИКА: Обрабатываем пары байтов
-
-                if (value == 69 && i + 4 < data.length &&
-                        (data[i+1] & 0xFF) == 110 &&
-                        (data[i+2] & 0xFF) == 100 &&
-                        (data[i+3] & 0xFF) == 13 &&
-                        (data[i+4] & 0xFF) == 10) {
+                frameDetector.process(data, offset, length, frameListener);
+            }
+        }
+    };
 
-                    Log.d(TAG, "Found 'End\\r\\n' in data stream");
-                    result.append("End ");  // Добавляем только маркер
+    // Вызывается детектором под synchronized (frameDetector) на потоке обработки
+    private final StreamFrameDetector.Listener frameListener = new StreamFrameDetector.Listener() {
+        @Override
+        public void onText(byte[] data, int offset, int length) {
+            if (data == captureChunk) {
+                captureTextEnd = captureChunkBase >= 0 ? captureChunkBase + offset + length : -1;
+            }
+            if (asciiMode.get()) {
+                formatBuffer.appendAscii(data, offset, length);
+            } else {
+                formatBuffer.appendHex(data, offset, length);
+            }
+        }
 
-                    if (callback != null) {
-                        mainHandler.post(() -> callback.onError("Found 'End' sequence"));
-                    }
+        @Override
+        public void onPayloadStart() {
+            // Текст с маркером Start уже в formatBuffer - он уходит раньше события
+            queueUiSegment(false);
+            if (payloadListener != null) {
+                uiUpdates.addPayloadStarted();
+            }
+            numericMode.set(true);
+            statistics.onPayloadStarted();
+            // Маркер Start всегда завершает последний текстовый диапазон
+            capturePayloadPosition = captureTextEnd;
+            if (capturePayloadPosition >= 0) {
+                captureChunkWriter.addEvent(CaptureContainer.EVENT_START, 0, capturePayloadPosition);
+            }
+            Log.d(TAG, "Switching to numeric mode after 'Start'");
+            notifyError("AUTO: Switched to numeric mode (paired bytes)");
+        }
 
-                    numericBuffer.clear();
-                    break;  // Останавливаем обработку после End
-                }
+        @Override
+        public void onPayload(byte[] data, int offset, int length) {
+            appendPayload(data, offset, length);
+            statistics.onPayloadBytes(length);
+            if (capturePayloadPosition >= 0) {
+                capturePayloadPosition += length;
+            }
+            // Числа после Start нужны в тексте только для видимой консоли
+            if (consoleEnabled.get()) {
+                formatBuffer.appendNumbers(data, offset, length);
+            }
+        }
 
-                numericBuffer.add(value);
-                // Просто добавляем байт (парная обработка будет при парсинге)
-                result.append(value).append(" ");
+        @Override
+        public void onPayloadEnd() {
+            // Выгрузка закончилась - возвращаем обычный приоритет соединения
+            if (activeLinkProfile == LinkProfile.BULK_TRANSFER) {
+                setLinkProfile(LinkProfile.BALANCED);
+            }
+            if (capturePayloadPosition >= 0 && captureChunkWriter == captureWriter) {
+                // Позиция первого байта маркера End; после смены файла позиции уже не его
+                captureChunkWriter.addEvent(CaptureContainer.EVENT_END, 0, capturePayloadPosition);
+            }
+            capturePayloadPosition = -1;
+            numericMode.set(false);
+            // Непарный байт учитывается после подсчета отсчетов последней пачки
+            queueUiSegment(false);
+            statistics.onPayloadFinished();
+            if (payloadListener != null) {
+                uiUpdates.addPayloadFinished();
             }
+            receptionComplete = true;
+            Log.d(TAG, "Found 'End\\r\\n' in data stream");
+            notifyError("Found 'End' sequence");
         }
+    };
 
-        return result.toString();
+    private void appendPayload(byte[] data, int offset, int length) {
+        if (payloadLength + length > payloadScratch.length) {
+            int newCapacity = Math.max(payloadScratch.length * 2, payloadLength + length);
+            payloadScratch = java.util.Arrays.copyOf(payloadScratch, newCapacity);
+        }
+        System.arraycopy(data, offset, payloadScratch, payloadLength, length);
+        payloadLength += length;
     }
 
-    private String formatDataBatchAsHex(byte[] data) {
-        StringBuilder result = new StringBuilder();
-
-        Log.d(TAG, "formatDataBatchAsHex called, initial numericMode: " + numericMode.get() + ", data length: " + data.length);
-
-        for (int i = 0; i < data.length; i++) {
-            byte currentByte = data[i];
-            int value = currentByte & 0xFF;
-
-            if (!numericMode.get()) {
-                sequenceBuffer.append((char) value);
-
-                String bufferContent = sequenceBuffer.toString();
-                if (bufferContent.contains("Start")) {
-                    int startIndex = bufferContent.lastIndexOf("Start");
-                    String afterStart = bufferContent.substring(startIndex + 5);
-
-                    if (afterStart.length() >= 2) {
-                        boolean foundCRLF = false;
-                        for (int j = 0; j < afterStart.length() - 1; j++) {
-                            char c1 = afterStart.charAt(j);
-                            char c2 = afterStart.charAt(j + 1);
-                            if (((int)c1 == 13 && (int)c2 == 10) || (int)c2 == 10) {
-                                foundCRLF = true;
-                                break;
-                            }
-                        }
+    // Склеивает пары байтов little-endian в signed int16, непарный байт переносится в следующий пакет
+    private short[] decodeSamples(byte[] payload, int length) {
+        int available = length + (pendingLowByte >= 0 ? 1 : 0);
+        short[] samples = new short[available / 2];
+        int count = 0;
+        int i = 0;
+
+        if (pendingLowByte >= 0 && length > 0) {
+            samples[count++] = (short) (((payload[0] & 0xFF) << 8) | pendingLowByte);
+            pendingLowByte = -1;
+            i = 1;
+        }
 
-                        if (foundCRLF) {
-                            numericMode.set(true);
-                            Log.d(TAG, "HEX mode - Switching to numeric mode at byte " + i + " after 'Start' + CR LF");
+        for (; i + 1 < length; i += 2) {
+            samples[count++] = (short) (((payload[i + 1] & 0xFF) << 8) | (payload[i] & 0xFF));
+        }
 
-                            if (callback != null) {
-                                mainHandler.post(() -> callback.onError("AUTO: Switched to numeric mode after 'Start'"));
-                            }
+        if (i < length) {
+            pendingLowByte = payload[i] & 0xFF;
+        }
 
-                            sequenceBuffer.setLength(0);
-                            result.append(value).append(" ");
-                            continue;
-                        }
-                    }
-                }
+        return samples;
+    }
 
-                if (sequenceBuffer.length() > 100) {
-                    String keepEnd = sequenceBuffer.substring(sequenceBuffer.length() - 50);
-                    sequenceBuffer.setLength(0);
-                    sequenceBuffer.append(keepEnd);
-                }
+    public void setPayloadListener(PayloadListener listener) {
+        this.payloadListener = listener;
+    }
 
-                if (value >= 32 && value <= 126) {
-                    result.append("'").append((char) value).append("' ");
-                } else if (value == 10) {
-                    result.append("\\n ");
-                } else if (value == 13) {
-                    result.append("\\r ");
-                } else if (value == 9) {
-                    result.append("\\t ");
-                } else if (value == 0) {
-                    result.append("NULL ");
-                } else {
-                    result.append(value).append(" ");
-                }
-            } else {
-                result.append(value).append(" ");
-            }
-        }
+    /** Экран с данными на переднем плане: обновления по кадрам, иначе - редко. */
+    public void setUiVisible(boolean visible) {
+        uiUpdates.setVisible(visible);
+    }
 
-        return result.toString();
+    // Консоль скрыта - числовые данные доставляются только через PayloadListener
+    public void setConsoleEnabled(boolean enabled) {
+        this.consoleEnabled.set(enabled);
     }
 
     public void setSaveToFile(boolean save) {
         saveToFile.set(save);
 
-        if (save && fileOutputStream == null) {
+        if (save && captureWriter == null) {
             createOutputFile();
-        } else if (!save && fileOutputStream != null) {
-            closeOutputFile();
+        } else if (!save && captureWriter != null) {
+            // После пакетов, уже стоящих в очереди обработки
+            runAfterPendingData(this::closeOutputFile);
         }
     }
 
@@ -454,39 +512,176 @@ public class BluetoothService {
                 throw new IOException("Cannot create directory: " + directory.getAbsolutePath());
             }
 
-            outputFile = new File(directory, "ble_data_" + timestamp + ".bin");
-            fileOutputStream = new FileOutputStream(outputFile);
+            outputFile = new File(directory, "ble_data_" + timestamp + ".cap");
+            captureWriter = new CaptureFileWriter(outputFile, captureListener);
 
             Log.d(TAG, "Created output file: " + outputFile.getAbsolutePath());
             notifyError("Started saving to: " + outputFile.getName());
         } catch (IOException e) {
             Log.e(TAG, "Error creating output file", e);
             outputFile = null;
-            fileOutputStream = null;
+            captureWriter = null;
             notifyError("Error creating file: " + e.getMessage());
         }
     }
 
+    private final CaptureFileWriter.Listener captureListener = new CaptureFileWriter.Listener() {
+        @Override
+        public void onBackPressure(long pendingBytes, long droppedBytes) {
+            notifyError(String.format(Locale.US, "Storage is falling behind: %d KB pending, %d KB dropped",
+                    pendingBytes / 1024, droppedBytes / 1024));
+        }
+
+        @Override
+        public void onWriteError(IOException e) {
+            notifyError("Error writing to file: " + e.getMessage());
+        }
+
+        @Override
+        public void onClosed(File file, long writtenBytes, long droppedBytes) {
+            if (droppedBytes > 0) {
+                notifyError("Capture incomplete: " + droppedBytes + " bytes not written");
+            }
+            if (callback != null) {
+                final String fileName = file.getAbsolutePath();
+                mainHandler.post(() -> callback.onError("Data saved to: " + fileName));
+            }
+        }
+    };
+
+    // Выполняет действие после уже поставленных в очередь пакетов (или сразу, если обработка остановлена)
+    private void runAfterPendingData(Runnable action) {
+        try {
+            dataProcessingExecutor.execute(action);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            action.run();
+        }
+    }
+
+    // Событие сессии в индекс файла захвата на текущей позиции принятых данных
+    private void recordCaptureEvent(int type, int value) {
+        CaptureFileWriter writer = captureWriter;
+        if (writer != null) {
+            writer.addEvent(type, value);
+        }
+    }
+
+    // Закрытие не блокирует: файл дописывается и закрывается на потоке CaptureFileWriter
     private synchronized void closeOutputFile() {
-        if (fileOutputStream != null) {
-            try {
-                fileOutputStream.flush();
-                fileOutputStream.close();
+        CaptureFileWriter writer = captureWriter;
+        if (writer != null) {
+            captureWriter = null;
+            outputFile = null;
+            writer.close();
+        }
+    }
 
-                if (callback != null && outputFile != null) {
-                    final String fileName = outputFile.getAbsolutePath();
-                    mainHandler.post(() -> callback.onError("Data saved to: " + fileName));
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing output file", e);
-                notifyError("Error closing file: " + e.getMessage());
-            } finally {
-                fileOutputStream = null;
-                outputFile = null;
+    /** Запись трассы сессии (null - выключить). Закрывает трассу вызывающий. */
+    public void setTraceRecorder(SessionTraceRecorder recorder) {
+        closeOwnTraceRecorder();
+        this.traceRecorder = recorder;
+    }
+
+    // Включено в DeveloperOptions: трасса с первого подключения до close(), вместе с переподключениями
+    private void startTraceIfEnabled() {
+        if (traceRecorder != null || !DeveloperOptions.isTraceRecordingEnabled(context)) return;
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+            File directory = new File(context.getExternalFilesDir(null), "BLETraces");
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory: " + directory.getAbsolutePath());
             }
+            File file = new File(directory, "trace_" + sdf.format(new Date()) + "_"
+                    + currentDeviceAddress.replace(":", "") + ".trc");
+            traceRecorder = new SessionTraceRecorder(file);
+            ownsTraceRecorder = true;
+            Log.d(TAG, "Recording session trace: " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating session trace", e);
+        }
+    }
+
+    private void closeOwnTraceRecorder() {
+        SessionTraceRecorder recorder = traceRecorder;
+        if (recorder == null || !ownsTraceRecorder) return;
+        traceRecorder = null;
+        ownsTraceRecorder = false;
+        try {
+            recorder.close();
+            Log.d(TAG, "Session trace saved: " + recorder.getEventCount() + " events, "
+                    + recorder.getDroppedEvents() + " dropped");
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing session trace", e);
         }
     }
 
+    private void recordServicesDiscovered(boolean success) {
+        SessionTraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordServicesDiscovered(success);
+        }
+    }
+
+    /**
+     * Точка входа для SessionTraceReplayer: события трассы проходят тот же путь, что и события GATT,
+     * до callback, PayloadListener и файла захвата. Вызывать не с главного потока.
+     */
+    public SessionTraceReplayer.Target getReplayTarget() {
+        return linkEvents;
+    }
+
+    // События канала без GATT: BleTransport и воспроизведение трассы
+    private final SessionTraceReplayer.Target linkEvents = new SessionTraceReplayer.Target() {
+        @Override
+        public void onConnectionStateChange(boolean connected) {
+            if (connected) {
+                isConnected.set(true);
+                isConnecting.set(false);
+                reconnectAttempts.set(0);
+                negotiatedMtu = DEFAULT_MTU;
+                SessionTraceRecorder recorder = traceRecorder;
+                if (recorder != null) {
+                    recorder.recordConnectionState(true);
+                }
+                notifyConnectionStateChange(true);
+                scheduleBufferProcessing();
+            } else {
+                // Отключение записывается в трассу в handleDisconnection
+                handleDisconnection();
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            // Как обрыв GATT с ошибкой: повторные подключения по политике
+            Log.w(TAG, "Link lost");
+            handleConnectionFailure("Link lost");
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            negotiatedMtu = mtu;
+            SessionTraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.recordMtu(mtu);
+            }
+            notifyLinkParameters();
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            servicesDiscovered.set(success);
+            notificationsEnabled.set(success);
+            recordServicesDiscovered(success);
+            notifyServicesDiscovered(success);
+        }
+
+        @Override
+        public void onNotification(byte[] data) {
+            handleReceivedData(data);
+        }
+    };
+
     public void setCallback(BluetoothCallback callback) {
         this.callback = callback;
     }
@@ -500,7 +695,11 @@ public class BluetoothService {
     }
 
     public void connect(String deviceAddress, UUID serviceUuid, UUID characteristicUuid) {
-        if (bluetoothAdapter == null || deviceAddress == null) {
+        connect(deviceAddress, serviceUuid, characteristicUuid, LinkProfile.BALANCED);
+    }
+
+    public void connect(String deviceAddress, UUID serviceUuid, UUID characteristicUuid, LinkProfile linkProfile) {
+        if ((bluetoothAdapter == null && transport == null) || deviceAddress == null) {
             notifyError("Bluetooth adapter not available or device address is null");
             return;
         }
@@ -508,11 +707,13 @@ public class BluetoothService {
         currentDeviceAddress = deviceAddress;
         currentServiceUuid = serviceUuid;
         currentCharacteristicUuid = characteristicUuid;
+        requestedLinkProfile = linkProfile;
 
         if (currentWriteCharacteristicUuid == null) {
             writeCharacteristic = null;
         }
 
+        startTraceIfEnabled();
         reconnectAttempts.set(0);
         connectInternal();
     }
@@ -530,18 +731,14 @@ public class BluetoothService {
         servicesDiscovered.set(false);
         notificationsEnabled.set(false);
 
-        resetNumericMode();
+        resetTransferState();
         Log.d(TAG, "Connection started - reset to text mode, numeric mode: " + numericMode.get());
 
-        totalBytesReceived.set(0);
-        totalPacketsReceived.set(0);
-        droppedPackets.set(0);
-        startReceivingTime = System.currentTimeMillis();
-        lastDataReceivedTime = 0;
-
-        clearReceptionBuffer();
-        dataBuffer.clear();
-        bufferedBytesCount.set(0);
+        if (transport != null) {
+            Log.d(TAG, "Connecting through transport to: " + currentDeviceAddress);
+            transport.connect(currentDeviceAddress, linkEvents);
+            return;
+        }
 
         final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(currentDeviceAddress);
         if (device == null) {
@@ -550,7 +747,7 @@ public class BluetoothService {
             return;
         }
 
-        mainHandler.postDelayed(() -> {
+        backgroundHandler.postDelayed(() -> {
             if (isConnecting.get() && !isConnected.get()) {
                 Log.e(TAG, "Connection timeout");
                 handleConnectionFailure("Connection timeout");
@@ -559,7 +756,13 @@ public class BluetoothService {
 
         Log.d(TAG, "Attempting to connect to device: " + currentDeviceAddress);
         try {
-            bluetoothGatt = device.connectGatt(context, false, gattCallback);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                // GATT callbacks приходят на ioThread, а не в binder пул
+                bluetoothGatt = device.connectGatt(context, false, gattCallback,
+                        BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, backgroundHandler);
+            } else {
+                bluetoothGatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+            }
             if (bluetoothGatt == null) {
                 throw new RuntimeException("Failed to create GATT connection");
             }
@@ -569,33 +772,104 @@ public class BluetoothService {
         }
     }
 
+    /**
+     * Повторные подключения после обрыва и ошибок настройки (null - по профилю подключения:
+     * BULK_TRANSFER - ReconnectPolicy.BULK_TRANSFER, остальные - ReconnectPolicy.COMMAND).
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        ReconnectPolicy policy = reconnectPolicy;
+        return policy != null ? policy : ReconnectPolicy.forProfile(requestedLinkProfile);
+    }
+
     private void handleConnectionFailure(String error) {
         isConnecting.set(false);
         isConnected.set(false);
+        resuming.set(false);
 
+        ReconnectPolicy policy = getReconnectPolicy();
         int attempts = reconnectAttempts.incrementAndGet();
-        Log.w(TAG, "Connection failed (attempt " + attempts + "/" + MAX_RECONNECT_ATTEMPTS + "): " + error);
+        Log.w(TAG, "Connection failed (attempt " + attempts + "/" + policy.maxAttempts + "): " + error);
 
         if (callback != null) {
-            mainHandler.post(() -> callback.onReconnectAttempt(attempts, MAX_RECONNECT_ATTEMPTS));
+            mainHandler.post(() -> callback.onReconnectAttempt(attempts, policy.maxAttempts));
         }
 
-        if (attempts < MAX_RECONNECT_ATTEMPTS) {
-            mainHandler.postDelayed(() -> {
-                Log.i(TAG, "Attempting to reconnect...");
-                connectInternal();
-            }, RECONNECT_DELAY);
+        if (attempts < policy.maxAttempts) {
+            recordCaptureEvent(CaptureContainer.EVENT_RECONNECT, attempts);
+            long delay = policy.delayForAttempt(attempts, backoffRandom);
+            backgroundHandler.postDelayed(() -> {
+                // disconnect() или новое подключение за время ожидания
+                if (reconnectAttempts.get() != attempts) return;
+                if (resumeGatt.getAndSet(false) && bluetoothGatt != null) {
+                    Log.i(TAG, "Attempting fast reconnect...");
+                    resumeConnection();
+                } else {
+                    Log.i(TAG, "Attempting to reconnect...");
+                    connectInternal();
+                }
+            }, delay);
         } else {
-            notifyError("Failed to connect after " + MAX_RECONNECT_ATTEMPTS + " attempts: " + error);
+            resumeGatt.set(false);
+            notifyError("Failed to connect after " + policy.maxAttempts + " attempts: " + error);
             notifyConnectionStateChange(false);
         }
     }
 
+    /**
+     * Переподключение через прежний BluetoothGatt: клиент хранит найденные сервисы и характеристики,
+     * так что после соединения поиск сервисов не нужен. connect() у Android идет как autoConnect
+     * и на некоторых стеках медленнее - после RESUME_TIMEOUT обычное подключение.
+     */
+    private void resumeConnection() {
+        BluetoothGatt gatt = bluetoothGatt;
+        if (gatt == null || isConnecting.get()) {
+            connectInternal();
+            return;
+        }
+
+        isConnected.set(false);
+        isConnecting.set(true);
+        servicesDiscovered.set(false);
+        notificationsEnabled.set(false);
+        resuming.set(true);
+        resetTransferState();
+
+        backgroundHandler.postDelayed(() -> {
+            if (isConnecting.get() && !isConnected.get() && bluetoothGatt == gatt) {
+                Log.w(TAG, "Fast reconnect timed out, opening a new connection");
+                isConnecting.set(false);
+                resuming.set(false);
+                connectInternal();
+            }
+        }, RESUME_TIMEOUT);
+
+        boolean started;
+        try {
+            started = gatt.connect();
+        } catch (Exception e) {
+            Log.e(TAG, "Error resuming GATT connection", e);
+            started = false;
+        }
+        if (!started) {
+            Log.w(TAG, "Fast reconnect rejected, opening a new connection");
+            isConnecting.set(false);
+            resuming.set(false);
+            connectInternal();
+        }
+    }
+
     private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.e(TAG, "GATT connection failed with status: " + status);
+                // Обрыв уже настроенного соединения - первая попытка через тот же клиент GATT
+                resumeGatt.set(servicesDiscovered.get() && gatt == bluetoothGatt
+                        && GattLayoutCache.get(currentDeviceAddress) != null);
                 handleConnectionFailure("GATT connection failed with status: " + status);
                 return;
             }
@@ -606,13 +880,33 @@ public class BluetoothService {
                 reconnectAttempts.set(0);
 
                 Log.i(TAG, "Connected to GATT server.");
+                recordCaptureEvent(CaptureContainer.EVENT_CONNECT, 0);
+                SessionTraceRecorder recorder = traceRecorder;
+                if (recorder != null) {
+                    recorder.recordConnectionState(true);
+                }
                 notifyConnectionStateChange(true);
                 scheduleBufferProcessing();
 
-                boolean mtuResult = gatt.requestMtu(517);
-                if (!mtuResult) {
-                    Log.w(TAG, "Failed to request MTU, proceeding with service discovery");
-                    gatt.discoverServices();
+                gattQueue.attach(gatt);
+                negotiatedMtu = DEFAULT_MTU;
+                txPhy = BluetoothDevice.PHY_LE_1M;
+                rxPhy = BluetoothDevice.PHY_LE_1M;
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                activeLinkProfile = LinkProfile.BALANCED;
+
+                boolean reuseLayout = resuming.getAndSet(false);
+                if (GattLayoutCache.getMtu(currentDeviceAddress) == DEFAULT_MTU) {
+                    // Устройство уже отказалось от большего MTU - обмен не повторяем
+                    Log.d(TAG, "MTU exchange skipped, device keeps " + DEFAULT_MTU);
+                    startServiceSetup(gatt, reuseLayout);
+                } else {
+                    gattQueue.requestMtu(REQUESTED_MTU, (success, mtuStatus) -> {
+                        if (!success) {
+                            Log.w(TAG, "MTU request failed (" + mtuStatus + "), proceeding with service discovery");
+                        }
+                        startServiceSetup(gatt, reuseLayout);
+                    });
                 }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.i(TAG, "Disconnected from GATT server.");
@@ -625,15 +919,30 @@ public class BluetoothService {
             Log.d(TAG, "MTU changed to: " + mtu + ", status: " + status);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                negotiatedMtu = mtu;
+                GattLayoutCache.putMtu(currentDeviceAddress, mtu);
+                recordCaptureEvent(CaptureContainer.EVENT_MTU, mtu);
+                SessionTraceRecorder recorder = traceRecorder;
+                if (recorder != null) {
+                    recorder.recordMtu(mtu);
+                }
                 notifyError("MTU increased to " + mtu + " bytes");
             } else {
                 Log.w(TAG, "Failed to increase MTU, using default (23 bytes)");
+                GattLayoutCache.putMtu(currentDeviceAddress, DEFAULT_MTU);
             }
 
-            boolean result = gatt.discoverServices();
-            if (!result) {
-                Log.e(TAG, "Failed to start service discovery");
-                handleConnectionFailure("Failed to start service discovery");
+            // Поиск сервисов запускается из completion запроса MTU
+            gattQueue.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.d(TAG, "PHY update: tx=" + txPhy + ", rx=" + rxPhy + ", status: " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BluetoothService.this.txPhy = txPhy;
+                BluetoothService.this.rxPhy = rxPhy;
+                notifyLinkParameters();
             }
         }
 
@@ -641,119 +950,196 @@ public class BluetoothService {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG, "Services discovered successfully");
+                setupServices(gatt);
+            } else {
+                Log.e(TAG, "Service discovery failed: " + status);
+                handleConnectionFailure("Service discovery failed");
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // До API 33; getValue() - общий массив характеристики, копируется сразу в слэб
+            byte[] data = characteristic.getValue();
+            if (data != null && data.length > 0) {
+                handleReceivedData(data);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            // API 33+: значение приходит аргументом, super не вызываем, чтобы не дублировать пакет
+            if (value != null && value.length > 0) {
+                handleReceivedData(value);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            gattQueue.onDescriptorWrite(status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            gattQueue.onCharacteristicWrite(status);
+        }
+    };
+
+    /** Запуск настройки после MTU: профиль, затем поиск сервисов или запомненная таблица клиента. */
+    private void startServiceSetup(BluetoothGatt gatt, boolean reuseLayout) {
+        // Профиль до поиска сервисов: высокий приоритет ускоряет и сам discovery
+        applyLinkProfile(gatt, requestedLinkProfile);
+
+        GattLayoutCache.Layout layout = GattLayoutCache.get(currentDeviceAddress);
+        if (reuseLayout && layout != null && layout.matches(currentServiceUuid, currentCharacteristicUuid)
+                && gatt.getService(currentServiceUuid) != null) {
+            Log.i(TAG, "Reusing GATT layout of " + currentDeviceAddress + ", service discovery skipped");
+            setupServices(gatt);
+            return;
+        }
+
+        boolean result = gatt.discoverServices();
+        if (!result) {
+            Log.e(TAG, "Failed to start service discovery");
+            handleConnectionFailure("Failed to start service discovery");
+        }
+    }
+
+    // Характеристики чтения/записи и уведомления после поиска сервисов (ioThread)
+    private void setupServices(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(currentServiceUuid);
+        if (service != null) {
+            // ВАЖНО: Всегда ищем write характеристику для MT устройств
+            if (currentWriteCharacteristicUuid == null && currentCharacteristicUuid != null) {
+                // Если подключаемся для чтения (connect), автоматически ищем запись
+                UUID autoWriteUuid = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+                BluetoothGattCharacteristic writeChar = service.getCharacteristic(autoWriteUuid);
+                if (writeChar != null) {
+                    writeCharacteristic = writeChar;
+                    Log.d(TAG, "✓ Auto-found write characteristic for MT device");
+                }
+            }
+            if (currentWriteCharacteristicUuid != null) {
+                writeCharacteristic = null;
+
+                GattLayoutCache.Layout layout = GattLayoutCache.get(currentDeviceAddress);
+                if (layout != null && layout.writeCharacteristicUuid != null
+                        && layout.matches(currentServiceUuid, currentCharacteristicUuid)) {
+                    // Характеристика, выбранная при прошлом подключении, - без перебора
+                    writeCharacteristic = service.getCharacteristic(layout.writeCharacteristicUuid);
+                }
 
-                BluetoothGattService service = gatt.getService(currentServiceUuid);
-                if (service != null) {
-                    // ВАЖНО: Всегда ищем write характеристику для MT устройств
-                    if (currentWriteCharacteristicUuid == null && currentCharacteristicUuid != null) {
-                        // Если подключаемся для чтения (connect), автоматически ищем запись
-                        UUID autoWriteUuid = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
-                        BluetoothGattCharacteristic writeChar = service.getCharacteristic(autoWriteUuid);
-                        if (writeChar != null) {
-                            writeCharacteristic = writeChar;
-                            Log.d(TAG, "✓ Auto-found write characteristic for MT device");
+                if (writeCharacteristic != null) {
+                    Log.d(TAG, "✓ Using remembered write characteristic: " + writeCharacteristic.getUuid());
+                } else {
+                    // ВАЖНО: Сначала ищем ТОЧНО указанную характеристику
+                    Log.d(TAG, "Looking for SPECIFIC write characteristic: " + currentWriteCharacteristicUuid);
+
+                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                        UUID uuid = characteristic.getUuid();
+                        int properties = characteristic.getProperties();
+
+                        Log.d(TAG, "Found characteristic: " + uuid);
+                        Log.d(TAG, "  Properties: Write=" + ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) +
+                                ", WriteNoResp=" + ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) +
+                                ", Read=" + ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) +
+                                ", Notify=" + ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0));
+
+                        // Проверяем, является ли это нужной характеристикой
+                        if (uuid.equals(currentWriteCharacteristicUuid)) {
+                            if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0 ||
+                                    (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                                writeCharacteristic = characteristic;
+                                Log.d(TAG, "✓ Found SPECIFIED write characteristic: " + uuid);
+                                break;
+                            } else {
+                                Log.w(TAG, "✗ Specified characteristic " + uuid + " does NOT support write!");
+                            }
                         }
                     }
-                    if (currentWriteCharacteristicUuid != null) {
-                        writeCharacteristic = null;
-
-                        // ВАЖНО: Сначала ищем ТОЧНО указанную характеристику
-                        Log.d(TAG, "Looking for SPECIFIC write characteristic: " + currentWriteCharacteristicUuid);
 
+                    // Если не нашли указанную, ищем любую подходящую
+                    if (writeCharacteristic == null) {
+                        Log.w(TAG, "Specified write characteristic not found, searching for ANY writable characteristic...");
                         for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
                             UUID uuid = characteristic.getUuid();
                             int properties = characteristic.getProperties();
 
-                            Log.d(TAG, "Found characteristic: " + uuid);
-                            Log.d(TAG, "  Properties: Write=" + ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) +
-                                    ", WriteNoResp=" + ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) +
-                                    ", Read=" + ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) +
-                                    ", Notify=" + ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0));
-
-                            // Проверяем, является ли это нужной характеристикой
-                            if (uuid.equals(currentWriteCharacteristicUuid)) {
-                                if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0 ||
-                                        (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
-                                    writeCharacteristic = characteristic;
-                                    Log.d(TAG, "✓ Found SPECIFIED write characteristic: " + uuid);
-                                    break;
-                                } else {
-                                    Log.w(TAG, "✗ Specified characteristic " + uuid + " does NOT support write!");
-                                }
-                            }
-                        }
-
-                        // Если не нашли указанную, ищем любую подходящую
-                        if (writeCharacteristic == null) {
-                            Log.w(TAG, "Specified write characteristic not found, searching for ANY writable characteristic...");
-                            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                                UUID uuid = characteristic.getUuid();
-                                int properties = characteristic.getProperties();
-
-                                if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0 ||
-                                        (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
-                                    writeCharacteristic = characteristic;
-                                    Log.d(TAG, "✓ Found ALTERNATIVE write characteristic: " + uuid);
-                                    break;
-                                }
+                            if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0 ||
+                                    (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                                writeCharacteristic = characteristic;
+                                Log.d(TAG, "✓ Found ALTERNATIVE write characteristic: " + uuid);
+                                break;
                             }
                         }
+                    }
+                }
 
-                        if (writeCharacteristic != null) {
-                            servicesDiscovered.set(true);
-                            notifyServicesDiscovered(true);
-                        } else {
-                            Log.e(TAG, "✗ NO write characteristic found AT ALL!");
-                            handleConnectionFailure("No write characteristic found");
-                        }
-                    } else {
-                        BluetoothGattCharacteristic characteristic = service.getCharacteristic(currentCharacteristicUuid);
-                        if (characteristic != null) {
-                            boolean success = enableNotifications(gatt, characteristic);
-                            servicesDiscovered.set(true);
-                            notifyServicesDiscovered(success);
-                        } else {
+                if (writeCharacteristic != null) {
+                    // connectForMTDevice: на том же соединении включаем уведомления для чтения
+                    boolean success = true;
+                    if (currentCharacteristicUuid != null) {
+                        BluetoothGattCharacteristic readCharacteristic = service.getCharacteristic(currentCharacteristicUuid);
+                        if (readCharacteristic == null) {
                             Log.e(TAG, "Read characteristic not found");
-                            handleConnectionFailure("Read characteristic not found");
+                            failSetup("Read characteristic not found");
+                            return;
                         }
+                        success = enableNotifications(gatt, readCharacteristic);
+                    }
+                    if (success) {
+                        rememberLayout();
                     }
+                    servicesDiscovered.set(true);
+                    recordServicesDiscovered(success);
+                    notifyServicesDiscovered(success);
                 } else {
-                    Log.e(TAG, "Service not found: " + currentServiceUuid);
-                    handleConnectionFailure("Service not found");
+                    Log.e(TAG, "✗ NO write characteristic found AT ALL!");
+                    failSetup("No write characteristic found");
                 }
             } else {
-                Log.e(TAG, "Service discovery failed: " + status);
-                handleConnectionFailure("Service discovery failed");
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(currentCharacteristicUuid);
+                if (characteristic != null) {
+                    boolean success = enableNotifications(gatt, characteristic);
+                    if (success) {
+                        rememberLayout();
+                    }
+                    servicesDiscovered.set(true);
+                    recordServicesDiscovered(success);
+                    notifyServicesDiscovered(success);
+                } else {
+                    Log.e(TAG, "Read characteristic not found");
+                    failSetup("Read characteristic not found");
+                }
             }
+        } else {
+            Log.e(TAG, "Service not found: " + currentServiceUuid);
+            failSetup("Service not found");
         }
+    }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                handleReceivedData(data);
-            }
-        }
+    // Запомненная таблица не подошла - следующее подключение с полным поиском
+    private void failSetup(String error) {
+        GattLayoutCache.invalidate(currentDeviceAddress);
+        handleConnectionFailure(error);
+    }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "Descriptor write successful");
-                if (descriptor.getCharacteristic().getUuid().equals(currentCharacteristicUuid)) {
-                    notificationsEnabled.set(true);
-                    notifyError("Notifications enabled successfully");
-                }
-            } else {
-                Log.e(TAG, "Descriptor write failed: " + status);
-                handleConnectionFailure("Failed to enable notifications: status " + status);
-            }
-        }
-    };
+    private void rememberLayout() {
+        BluetoothGattCharacteristic write = writeCharacteristic;
+        GattLayoutCache.put(currentDeviceAddress, currentServiceUuid, currentCharacteristicUuid,
+                write != null ? write.getUuid() : null);
+    }
 
     // Новый метод для MT устройств - и запись И чтение
     public void connectForMTDevice(String deviceAddress, UUID serviceUuid,
                                    UUID readCharacteristicUuid, UUID writeCharacteristicUuid) {
-        if (bluetoothAdapter == null || deviceAddress == null) {
+        connectForMTDevice(deviceAddress, serviceUuid, readCharacteristicUuid, writeCharacteristicUuid,
+                LinkProfile.BALANCED);
+    }
+
+    public void connectForMTDevice(String deviceAddress, UUID serviceUuid, UUID readCharacteristicUuid,
+                                   UUID writeCharacteristicUuid, LinkProfile linkProfile) {
+        if ((bluetoothAdapter == null && transport == null) || deviceAddress == null) {
             notifyError("Bluetooth adapter not available or device address is null");
             return;
         }
@@ -762,7 +1148,9 @@ public class BluetoothService {
         currentServiceUuid = serviceUuid;
         currentCharacteristicUuid = readCharacteristicUuid;
         currentWriteCharacteristicUuid = writeCharacteristicUuid;
+        requestedLinkProfile = linkProfile;
 
+        startTraceIfEnabled();
         reconnectAttempts.set(0);
         connectInternal();
     }
@@ -773,6 +1161,18 @@ public class BluetoothService {
     }
 
     public boolean sendCommand(String command) {
+        return sendCommand(command, null);
+    }
+
+    /**
+     * Ставит команду в очередь GATT операций. Длинные команды делятся по MTU,
+     * completion вызывается на потоке ioThread после записи последней части.
+     */
+    public boolean sendCommand(String command, GattOperationQueue.Completion completion) {
+        if (transport != null) {
+            return sendThroughTransport(command, completion);
+        }
+
         if (bluetoothGatt == null || writeCharacteristic == null || !isConnected.get()) {
             Log.e(TAG, "Cannot send command: not connected or characteristic not available");
             Log.e(TAG, "  bluetoothGatt: " + (bluetoothGatt != null));
@@ -788,22 +1188,44 @@ public class BluetoothService {
             Log.d(TAG, "Command bytes: " + java.util.Arrays.toString(commandBytes));
             Log.d(TAG, "Using characteristic: " + writeCharacteristic.getUuid());
 
-            writeCharacteristic.setValue(commandBytes);
-            boolean result = bluetoothGatt.writeCharacteristic(writeCharacteristic);
-
-            if (result) {
-                Log.d(TAG, "✓ Command sent successfully");
-            } else {
-                Log.e(TAG, "✗ Failed to send command");
+            SessionTraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.recordWrite(commandBytes, 0, commandBytes.length);
             }
 
-            return result;
+            gattQueue.writeCharacteristic(writeCharacteristic, commandBytes, writeCharacteristic.getWriteType(),
+                    (success, status) -> {
+                        if (success) {
+                            Log.d(TAG, "✓ Command sent successfully");
+                        } else {
+                            Log.e(TAG, "✗ Failed to send command, status: " + status);
+                        }
+                        if (completion != null) {
+                            completion.onComplete(success, status);
+                        }
+                    });
+
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "✗ Error sending command", e);
             return false;
         }
     }
 
+    private boolean sendThroughTransport(String command, GattOperationQueue.Completion completion) {
+        if (!isConnected.get()) {
+            Log.e(TAG, "Cannot send command: not connected");
+            return false;
+        }
+
+        byte[] commandBytes = command.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        SessionTraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordWrite(commandBytes, 0, commandBytes.length);
+        }
+        return transport.write(commandBytes, completion);
+    }
+
     private void handleDisconnection() {
         boolean wasConnected = isConnected.getAndSet(false);
         isConnecting.set(false);
@@ -812,16 +1234,25 @@ public class BluetoothService {
 
         currentWriteCharacteristicUuid = null;
         writeCharacteristic = null;
+        gattQueue.clear();
 
-        if (bufferedBytesCount.get() > 0) {
+        if (!dataBuffer.isEmpty()) {
             processDataBuffer();
         }
 
         if (saveToFile.get()) {
-            closeOutputFile();
+            // После слива оставшихся пакетов в файл
+            runAfterPendingData(() -> {
+                recordCaptureEvent(CaptureContainer.EVENT_DISCONNECT, 0);
+                closeOutputFile();
+            });
         }
 
         if (wasConnected) {
+            SessionTraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.recordConnectionState(false);
+            }
             notifyConnectionStateChange(false);
         }
 
@@ -829,9 +1260,15 @@ public class BluetoothService {
     }
 
     private void handleReceivedData(byte[] data) {
+        checkNotMainThread();
         try {
-            synchronized (receptionBuffer) {
-                receptionBuffer.write(data);
+            SessionTraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.recordNotification(data, 0, data.length);
+            }
+            statistics.onPacket(data.length, System.nanoTime());
+            if (!dataBuffer.offer(data, 0, data.length)) {
+                statistics.onPacketDropped();
             }
 
             lastDataReceivedTime = System.currentTimeMillis();
@@ -846,15 +1283,12 @@ public class BluetoothService {
                 Log.d(TAG, "Received " + totalPackets + " packets, " + totalBytes + " bytes");
             }
 
-            checkForEndSequence(data);
-
             long currentTime = System.currentTimeMillis();
             if (currentTime - lastUIUpdateTime > UI_UPDATE_INTERVAL || receptionComplete) {
                 lastUIUpdateTime = currentTime;
 
-                dataProcessingExecutor.execute(() -> {
-                    processDataForUI();
-                });
+                // Форматируются только новые байты - тот же проход, что и по таймеру
+                processDataBuffer();
             }
 
         } catch (Exception e) {
@@ -862,51 +1296,6 @@ public class BluetoothService {
         }
     }
 
-    private void checkForEndSequence(byte[] data) {
-        if (data.length >= 5) {
-            int len = data.length;
-            if (data[len-5] == 69 && data[len-4] == 110 && data[len-3] == 100 &&
-                    data[len-2] == 13 && data[len-1] == 10) {
-                receptionComplete = true;
-                Log.d(TAG, "Reception complete - End sequence detected");
-            }
-        }
-    }
-
-    private void processDataForUI() {
-        try {
-            byte[] allData;
-            synchronized (receptionBuffer) {
-                allData = receptionBuffer.toByteArray();
-            }
-
-            if (allData.length == 0) return;
-
-            int displayStart = Math.max(0, allData.length - MAX_DATA_DISPLAY_SIZE);
-            byte[] displayData = new byte[allData.length - displayStart];
-            System.arraycopy(allData, displayStart, displayData, 0, displayData.length);
-
-            String formattedData = formatDataBatch(displayData);
-
-            if (callback != null) {
-                long totalBytes = totalBytesReceived.get();
-                long duration = System.currentTimeMillis() - startReceivingTime;
-                double kbPerSecond = duration > 0 ? (totalBytes / 1024.0) / (duration / 1000.0) : 0;
-
-                mainHandler.post(() -> {
-                    try {
-                        callback.onDataBatch(formattedData, totalBytes, kbPerSecond);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error in UI callback", e);
-                    }
-                });
-            }
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing data for UI", e);
-        }
-    }
-
     private boolean enableNotifications(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         try {
             boolean success = gatt.setCharacteristicNotification(characteristic, true);
@@ -921,10 +1310,18 @@ public class BluetoothService {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
 
             if (descriptor != null) {
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                boolean writeSuccess = gatt.writeDescriptor(descriptor);
-                Log.d(TAG, "Descriptor write initiated: " + writeSuccess);
-                return writeSuccess;
+                gattQueue.writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, (writeSuccess, status) -> {
+                    if (writeSuccess) {
+                        Log.d(TAG, "Descriptor write successful");
+                        notificationsEnabled.set(true);
+                        notifyError("Notifications enabled successfully");
+                    } else {
+                        Log.e(TAG, "Descriptor write failed: " + status);
+                        failSetup("Failed to enable notifications: status " + status);
+                    }
+                });
+                Log.d(TAG, "Descriptor write queued");
+                return true;
             } else {
                 Log.e(TAG, "Client configuration descriptor not found");
                 return false;
@@ -938,9 +1335,15 @@ public class BluetoothService {
     public void disconnect() {
         Log.d(TAG, "Disconnect requested");
         isConnecting.set(false);
-        reconnectAttempts.set(MAX_RECONNECT_ATTEMPTS);
-
-        if (bluetoothGatt != null) {
+        resuming.set(false);
+        resumeGatt.set(false);
+        // Отложенная попытка переподключения увидит другой номер и не запустится
+        reconnectAttempts.set(getReconnectPolicy().maxAttempts);
+
+        if (transport != null && isConnected.get()) {
+            // Отключение придет через linkEvents
+            transport.disconnect();
+        } else if (bluetoothGatt != null) {
             bluetoothGatt.disconnect();
         } else {
             handleDisconnection();
@@ -963,17 +1366,23 @@ public class BluetoothService {
         Log.d(TAG, "Closing BluetoothService");
 
         disconnect();
+        if (transport != null) {
+            transport.close();
+        }
 
-        if (bufferedBytesCount.get() > 0) {
+        if (!dataBuffer.isEmpty()) {
             processDataBuffer();
         }
 
         if (saveToFile.get()) {
-            closeOutputFile();
+            // После слива оставшихся пакетов в файл
+            runAfterPendingData(this::closeOutputFile);
         }
+        closeOwnTraceRecorder();
 
         mainHandler.removeCallbacksAndMessages(null);
         backgroundHandler.removeCallbacksAndMessages(null);
+        ioThread.quitSafely();
 
         try {
             dataProcessingExecutor.shutdown();
@@ -989,15 +1398,17 @@ public class BluetoothService {
     public void setAsciiMode(boolean asciiMode) {
         this.asciiMode.set(asciiMode);
 
-        if (bufferedBytesCount.get() > 0) {
+        if (!dataBuffer.isEmpty()) {
             processDataBuffer();
         }
     }
 
     public void resetNumericMode() {
         boolean wasNumeric = numericMode.getAndSet(false);
-        sequenceBuffer.setLength(0);
-        numericBuffer.clear();
+        synchronized (frameDetector) {
+            frameDetector.reset();
+            pendingLowByte = -1;
+        }
         Log.d(TAG, "Numeric mode reset");
 
         if (wasNumeric && callback != null) {
@@ -1007,9 +1418,11 @@ public class BluetoothService {
 
     public void forceNumericMode(boolean enable) {
         boolean wasNumeric = numericMode.getAndSet(enable);
-        if (enable) {
-            sequenceBuffer.setLength(0);
-            numericBuffer.clear();
+        synchronized (frameDetector) {
+            frameDetector.setInPayload(enable);
+            if (enable) {
+                pendingLowByte = -1;
+            }
         }
         Log.d(TAG, "Numeric mode " + (enable ? "enabled" : "disabled") + " manually");
 
@@ -1064,28 +1477,91 @@ public class BluetoothService {
         }
     }
 
+    /**
+     * Переключает профиль текущего соединения (например, BULK_TRANSFER перед SendData).
+     * Запрошенный при подключении профиль для переподключений не меняется.
+     */
+    public void setLinkProfile(LinkProfile profile) {
+        backgroundHandler.post(() -> {
+            BluetoothGatt gatt = bluetoothGatt;
+            if (gatt != null && isConnected.get() && activeLinkProfile != profile) {
+                applyLinkProfile(gatt, profile);
+            }
+        });
+    }
+
+    public LinkParameters getLinkParameters() {
+        return new LinkParameters(activeLinkProfile, negotiatedMtu, txPhy, rxPhy, connectionPriority);
+    }
+
+    // Вызывается на ioThread. Data length extension Android согласует сам, публичного API нет
+    private void applyLinkProfile(BluetoothGatt gatt, LinkProfile profile) {
+        int priority = profile == LinkProfile.BULK_TRANSFER
+                ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+        if (gatt.requestConnectionPriority(priority)) {
+            connectionPriority = priority;
+        } else {
+            Log.w(TAG, "Connection priority request rejected: " + priority);
+        }
+
+        if (profile == LinkProfile.BULK_TRANSFER && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bluetoothAdapter.isLe2MPhySupported()) {
+            // Результат придет в onPhyUpdate
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+
+        activeLinkProfile = profile;
+        Log.d(TAG, "Link profile applied: " + profile);
+        notifyLinkParameters();
+    }
+
+    private void notifyLinkParameters() {
+        if (callback != null) {
+            LinkParameters parameters = getLinkParameters();
+            mainHandler.post(() -> {
+                try {
+                    callback.onLinkParametersChanged(parameters);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error in link parameters callback", e);
+                }
+            });
+        }
+    }
+
     public void forceReconnect() {
         Log.i(TAG, "Force reconnect requested");
         reconnectAttempts.set(0);
         disconnect();
 
-        mainHandler.postDelayed(() -> {
+        backgroundHandler.postDelayed(() -> {
             if (currentDeviceAddress != null && currentServiceUuid != null && currentCharacteristicUuid != null) {
                 connectInternal();
             }
         }, 1000);
     }
 
-    public byte[] getCompleteReceivedData() {
-        synchronized (receptionBuffer) {
-            return receptionBuffer.toByteArray();
-        }
+    /**
+     * Счетчики, статистика и разбор Start/End - с нуля, как при новом подключении.
+     * Для следующей выгрузки на уже открытом соединении.
+     */
+    public void resetTransferState() {
+        resetNumericMode();
+
+        totalBytesReceived.set(0);
+        totalPacketsReceived.set(0);
+        statistics.reset();
+        startReceivingTime = System.currentTimeMillis();
+        lastDataReceivedTime = 0;
+
+        clearReceptionBuffer();
+        dataProcessingExecutor.execute(dataBuffer::clear);
+        uiUpdates.clear();
     }
 
     public void clearReceptionBuffer() {
-        synchronized (receptionBuffer) {
-            receptionBuffer.reset();
-        }
         receptionComplete = false;
         lastUIUpdateTime = 0;
     }
@@ -1098,14 +1574,39 @@ public class BluetoothService {
         return totalPacketsReceived.get();
     }
 
+    private void checkNotMainThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            long count = mainThreadProcessingCount.incrementAndGet();
+            Log.w(TAG, "BLE data processed on main thread (" + count + ")");
+        }
+    }
+
+    /** Число срабатываний обработки данных на главном потоке; 0 в нормальной работе. */
+    public long getMainThreadProcessingCount() {
+        return mainThreadProcessingCount.get();
+    }
+
+    /** Отброшенные при переполнении пакеты плюс потери, выведенные из размера данных. */
     public long getDroppedPackets() {
-        return droppedPackets.get();
+        return statistics.snapshot().getLostPacketEstimate();
+    }
+
+    /** Принятые и еще не обработанные пакеты - окно управления потоком SimulatedLoggerTransport. */
+    int getPendingPackets() {
+        return dataBuffer.size();
     }
 
     public double getPacketLossRate() {
-        long total = totalPacketsReceived.get();
-        long dropped = droppedPackets.get();
-        return total > 0 ? (dropped * 100.0 / total) : 0.0;
+        return statistics.snapshot().getLossRate();
+    }
+
+    public TransferStatistics.Snapshot getTransferStatistics() {
+        return statistics.snapshot();
+    }
+
+    // Ожидаемое число отсчетов (DataSize?) для вывода недостающих данных; подключение его сбрасывает
+    public void setExpectedSampleCount(long count) {
+        statistics.setExpectedSampleCount(count);
     }
 
     public long getConnectionDuration() {
@@ -0,0 +1,254 @@
+package com.example.ggk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Файл захвата сырого потока с индексом событий сессии.
+ *
+ * Формат (little-endian):
+ * заголовок (64 байта) - magic, версия, емкость и число записей индекса, смещение и длина данных;
+ * индекс - INDEX_CAPACITY записей по 24 байта: тип, значение, смещение в данных, время (мс);
+ * данные - с PAYLOAD_OFFSET, пишутся через MappedByteBuffer экстентами по EXTENT_SIZE.
+ * Reader находит, например, начало 'Start' по индексу без чтения всего файла.
+ */
+public class CaptureContainer implements Closeable {
+
+    public static final int EVENT_CONNECT = 1;
+    public static final int EVENT_MTU = 2;
+    public static final int EVENT_START = 3;
+    public static final int EVENT_END = 4;
+    public static final int EVENT_RECONNECT = 5;
+    public static final int EVENT_DISCONNECT = 6;
+
+    private static final long MAGIC = 0x31305041434B4747L; // "GGKCAP01"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final int INDEX_CAPACITY = 256;
+    private static final int PAYLOAD_OFFSET = 8192;
+    private static final int EXTENT_SIZE = 4 * 1024 * 1024;
+
+    // Поля заголовка
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_INDEX_CAPACITY = 12;
+    private static final int HEADER_INDEX_COUNT = 16;
+    private static final int HEADER_PAYLOAD_OFFSET = 24;
+    private static final int HEADER_PAYLOAD_LENGTH = 32;
+    private static final int HEADER_CREATED = 40;
+
+    public static final class Event {
+        public final int type;
+        public final int value;
+        public final long offset;
+        public final long timeMillis;
+
+        Event(int type, int value, long offset, long timeMillis) {
+            this.type = type;
+            this.value = value;
+            this.offset = offset;
+            this.timeMillis = timeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{type=" + type + ", value=" + value + ", offset=" + offset + "}";
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer extent;
+    private long extentStart = 0;
+    private long payloadLength = 0;
+    private int indexCount = 0;
+    private boolean closed = false;
+
+    public CaptureContainer(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        channel.truncate(0);
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAYLOAD_OFFSET);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(HEADER_MAGIC, MAGIC);
+        header.putInt(HEADER_VERSION, VERSION);
+        header.putInt(HEADER_INDEX_CAPACITY, INDEX_CAPACITY);
+        header.putInt(HEADER_INDEX_COUNT, 0);
+        header.putLong(HEADER_PAYLOAD_OFFSET, PAYLOAD_OFFSET);
+        header.putLong(HEADER_PAYLOAD_LENGTH, 0);
+        header.putLong(HEADER_CREATED, System.currentTimeMillis());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Копирует данные из буфера в отображенную область. Один поток записи.
+     * Длина в заголовке обновляется после данных: файл без close() читается до нее.
+     */
+    public synchronized void write(ByteBuffer source) throws IOException {
+        if (closed) throw new IOException("Capture is closed");
+
+        while (source.hasRemaining()) {
+            if (extent == null || !extent.hasRemaining()) {
+                mapNextExtent();
+            }
+
+            int count = Math.min(source.remaining(), extent.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            extent.put(source);
+            source.limit(limit);
+            payloadLength += count;
+        }
+        header.putLong(HEADER_PAYLOAD_LENGTH, payloadLength);
+    }
+
+    /** Добавляет событие в индекс. offset - позиция в данных, к которой относится событие. */
+    public synchronized boolean addEvent(int type, int value, long offset) {
+        if (closed || indexCount >= INDEX_CAPACITY) {
+            return false;
+        }
+
+        int position = HEADER_SIZE + indexCount * INDEX_ENTRY_SIZE;
+        header.putInt(position, type);
+        header.putInt(position + 4, value);
+        header.putLong(position + 8, offset);
+        header.putLong(position + 16, System.currentTimeMillis());
+        indexCount++;
+        header.putInt(HEADER_INDEX_COUNT, indexCount);
+        return true;
+    }
+
+    public synchronized long getPayloadLength() {
+        return payloadLength;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            header.putLong(HEADER_PAYLOAD_LENGTH, payloadLength);
+            if (extent != null) {
+                extent.force();
+            }
+            header.force();
+            // Отрезаем неиспользованный хвост последнего экстента
+            channel.truncate(PAYLOAD_OFFSET + payloadLength);
+        } finally {
+            channel.close();
+            randomAccessFile.close();
+        }
+    }
+
+    private void mapNextExtent() throws IOException {
+        if (extent != null) {
+            extentStart += EXTENT_SIZE;
+        }
+        // Отображение за концом файла расширяет его
+        extent = channel.map(FileChannel.MapMode.READ_WRITE, PAYLOAD_OFFSET + extentStart, EXTENT_SIZE);
+    }
+
+    /** Чтение файла захвата: индекс событий и произвольный доступ к данным. */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final long payloadOffset;
+        private final long payloadLength;
+        private final List<Event> events;
+
+        public Reader(File file) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+
+            try {
+                if (channel.size() < PAYLOAD_OFFSET) {
+                    throw new IOException("Not a capture file: " + file.getName());
+                }
+
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, PAYLOAD_OFFSET);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getLong(HEADER_MAGIC) != MAGIC) {
+                    throw new IOException("Not a capture file: " + file.getName());
+                }
+
+                int count = Math.min(header.getInt(HEADER_INDEX_COUNT), header.getInt(HEADER_INDEX_CAPACITY));
+                payloadOffset = header.getLong(HEADER_PAYLOAD_OFFSET);
+                // Длина в заголовке актуальна и без close(); размер файла включает
+                // незаполненный хвост последнего экстента, он только ограничивает сверху
+                long recordedLength = header.getLong(HEADER_PAYLOAD_LENGTH);
+                payloadLength = Math.max(0, Math.min(recordedLength, channel.size() - payloadOffset));
+
+                List<Event> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int position = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+                    list.add(new Event(header.getInt(position), header.getInt(position + 4),
+                            header.getLong(position + 8), header.getLong(position + 16)));
+                }
+                events = Collections.unmodifiableList(list);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public List<Event> getEvents() {
+            return events;
+        }
+
+        public Event findFirst(int type, long fromOffset) {
+            for (Event event : events) {
+                if (event.type == type && event.offset >= fromOffset) {
+                    return event;
+                }
+            }
+            return null;
+        }
+
+        public long getPayloadLength() {
+            return payloadLength;
+        }
+
+        /** Отображает участок данных только для чтения. */
+        public ByteBuffer mapPayload(long offset, int length) throws IOException {
+            if (offset < 0 || offset + length > payloadLength) {
+                throw new IOException("Range outside payload: " + offset + "+" + length);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, payloadOffset + offset, length);
+        }
+
+        /** Бинарные данные первой выгрузки: от 'Start' до 'End' (или до конца файла). */
+        public ByteBuffer mapFirstDataRegion() throws IOException {
+            Event start = findFirst(EVENT_START, 0);
+            if (start == null) {
+                return null;
+            }
+            Event end = findFirst(EVENT_END, start.offset);
+            long endOffset = end != null ? end.offset : payloadLength;
+            return mapPayload(start.offset, (int) Math.min(Integer.MAX_VALUE, endOffset - start.offset));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            randomAccessFile.close();
+        }
+    }
+}
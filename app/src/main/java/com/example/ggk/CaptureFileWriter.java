@@ -0,0 +1,241 @@
+package com.example.ggk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Асинхронная запись сырого потока в файл.
+ * Пакеты копируются в большие буферы, полные буферы отдельный поток переносит в CaptureContainer.
+ * Сброс - по заполнению буфера или по таймеру. Если диск не успевает, поток приема
+ * не блокируется: буферы добавляются до лимита, о нагрузке сообщается слушателю.
+ * События сессии попадают в индекс контейнера со смещением в потоке данных.
+ */
+public class CaptureFileWriter {
+    private static final String TAG = "CaptureFileWriter";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BUFFERS = 32;
+    // Очередь на запись, при которой сообщаем о нагрузке, и при которой снимаем сообщение
+    private static final int HIGH_WATERMARK = MAX_BUFFERS / 2;
+    private static final int LOW_WATERMARK = MAX_BUFFERS / 8;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    public interface Listener {
+        void onBackPressure(long pendingBytes, long droppedBytes);
+        void onWriteError(IOException e);
+        void onClosed(File file, long writtenBytes, long droppedBytes);
+    }
+
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final File file;
+    private final Listener listener;
+    private final CaptureContainer container;
+    private final Thread writerThread;
+
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(MAX_BUFFERS + 1);
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(MAX_BUFFERS);
+
+    // Состояние под lock: текущий буфер производителя
+    private final Object lock = new Object();
+    private ByteBuffer activeBuffer;
+    private int allocatedBuffers = 0;
+    private boolean closed = false;
+    private boolean backPressure = false;
+    private long pendingBytes = 0;
+    private long droppedBytes = 0;
+    // Позиция в данных файла: принятые байты без отброшенных
+    private long position = 0;
+
+    private volatile long writtenBytes = 0;
+
+    public CaptureFileWriter(File file, Listener listener) throws IOException {
+        this.file = file;
+        this.listener = listener;
+        this.container = new CaptureContainer(file);
+
+        writerThread = new Thread(this::writeLoop, "CaptureWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Копирует данные в буфер записи. Не блокируется на диске.
+     * Возвращает позицию начала данных в файле или -1, если файл закрыт.
+     */
+    public long write(byte[] data, int offset, int length) {
+        synchronized (lock) {
+            if (closed) return -1;
+
+            long start = position;
+
+            while (length > 0) {
+                if (activeBuffer == null) {
+                    activeBuffer = obtainBuffer();
+                    if (activeBuffer == null) {
+                        // Все буферы ждут записи - данные теряются, но учитываются
+                        droppedBytes += length;
+                        reportBackPressure();
+                        return start;
+                    }
+                }
+
+                int count = Math.min(activeBuffer.remaining(), length);
+                activeBuffer.put(data, offset, count);
+                offset += count;
+                length -= count;
+                position += count;
+
+                if (!activeBuffer.hasRemaining()) {
+                    handOffActiveBuffer();
+                }
+            }
+            return start;
+        }
+    }
+
+    /** Событие сессии на текущей позиции потока. */
+    public void addEvent(int type, int value) {
+        synchronized (lock) {
+            addEvent(type, value, position);
+        }
+    }
+
+    /** Событие сессии на заданной позиции (например, внутри только что записанного пакета). */
+    public void addEvent(int type, int value, long offset) {
+        if (!container.addEvent(type, value, offset)) {
+            Log.w(TAG, "Capture index is full, event " + type + " not recorded");
+        }
+    }
+
+    /** Дописывает накопленное и закрывает файл на потоке записи, не блокируя вызывающего. */
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            handOffActiveBuffer();
+            filledBuffers.offer(END_OF_STREAM);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public long getPendingBytes() {
+        synchronized (lock) {
+            return pendingBytes + (activeBuffer != null ? activeBuffer.position() : 0);
+        }
+    }
+
+    public long getDroppedBytes() {
+        synchronized (lock) {
+            return droppedBytes;
+        }
+    }
+
+    // Вызывается под lock
+    private ByteBuffer obtainBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null && allocatedBuffers < MAX_BUFFERS) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            allocatedBuffers++;
+        }
+        return buffer;
+    }
+
+    // Вызывается под lock
+    private void handOffActiveBuffer() {
+        if (activeBuffer == null || activeBuffer.position() == 0) return;
+
+        activeBuffer.flip();
+        pendingBytes += activeBuffer.remaining();
+        filledBuffers.offer(activeBuffer);
+        activeBuffer = null;
+
+        if (filledBuffers.size() >= HIGH_WATERMARK) {
+            reportBackPressure();
+        }
+    }
+
+    // Вызывается под lock, сообщает один раз до разгрузки очереди
+    private void reportBackPressure() {
+        if (backPressure) return;
+        backPressure = true;
+        Log.w(TAG, "Storage is falling behind: " + pendingBytes + " bytes pending, " + droppedBytes + " dropped");
+        try {
+            listener.onBackPressure(pendingBytes, droppedBytes);
+        } catch (Exception e) {
+            Log.e(TAG, "Error in back-pressure callback", e);
+        }
+    }
+
+    private void writeLoop() {
+        boolean failed = false;
+        try {
+            while (true) {
+                ByteBuffer buffer = filledBuffers.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+                if (buffer == null) {
+                    // Данных давно не было - сбрасываем неполный буфер по таймеру
+                    synchronized (lock) {
+                        handOffActiveBuffer();
+                    }
+                    continue;
+                }
+                if (buffer == END_OF_STREAM) {
+                    break;
+                }
+
+                int size = buffer.remaining();
+                if (!failed) {
+                    try {
+                        container.write(buffer);
+                        writtenBytes += size;
+                    } catch (IOException e) {
+                        failed = true;
+                        Log.e(TAG, "Error writing capture", e);
+                        listener.onWriteError(e);
+                    }
+                }
+
+                buffer.clear();
+                synchronized (lock) {
+                    pendingBytes -= size;
+                    if (failed) {
+                        droppedBytes += size;
+                    }
+                    freeBuffers.offer(buffer);
+                    if (backPressure && filledBuffers.size() <= LOW_WATERMARK) {
+                        backPressure = false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        try {
+            container.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing capture", e);
+            listener.onWriteError(e);
+        }
+
+        Log.d(TAG, "Capture closed: " + file.getName() + ", " + writtenBytes + " bytes");
+        listener.onClosed(file, writtenBytes, getDroppedBytes());
+    }
+
+}
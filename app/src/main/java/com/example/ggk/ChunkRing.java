@@ -0,0 +1,105 @@
+package com.example.ggk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Очередь пакетов один производитель / один потребитель на переиспользуемых слэбах.
+ * Производитель - binder поток GATT callback, потребитель - поток обработки данных.
+ * После прогрева прием пакета не выделяет память: байты копируются в готовый слэб.
+ */
+public class ChunkRing {
+
+    public interface ChunkConsumer {
+        void onChunk(byte[] data, int offset, int length);
+    }
+
+    private final byte[][] slabs;
+    private final int[] lengths;
+    private final int mask;
+
+    // Индексы растут монотонно, позиция в массиве - index & mask
+    private final AtomicLong head = new AtomicLong(0); // следующий слот для чтения
+    private final AtomicLong tail = new AtomicLong(0); // следующий слот для записи
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+    // Кэш индекса потребителя, чтобы не читать volatile на каждом пакете
+    private long cachedHead = 0;
+
+    public ChunkRing(int slotCount, int slabSize) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        slabs = new byte[slotCount][];
+        lengths = new int[slotCount];
+        mask = slotCount - 1;
+        for (int i = 0; i < slotCount; i++) {
+            slabs[i] = new byte[slabSize];
+        }
+    }
+
+    /** Копирует пакет в свободный слэб. Только поток производителя. */
+    public boolean offer(byte[] data, int offset, int length) {
+        long currentTail = tail.get();
+        if (currentTail - cachedHead >= slabs.length) {
+            cachedHead = head.get();
+            if (currentTail - cachedHead >= slabs.length) {
+                // Потребитель не успевает - пакет теряется, но учитывается
+                overflowCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        int index = (int) (currentTail & mask);
+        byte[] slab = slabs[index];
+        if (slab.length < length) {
+            // Пакет больше ожидаемого MTU - слэб расширяется один раз
+            slab = new byte[length];
+            slabs[index] = slab;
+        }
+        System.arraycopy(data, offset, slab, 0, length);
+        lengths[index] = length;
+
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /** Отдает все накопленные пакеты по порядку, возвращает их число. Только поток потребителя. */
+    public int drain(ChunkConsumer consumer) {
+        long currentHead = head.get();
+        // Один volatile read на пачку
+        long available = tail.get();
+        int count = 0;
+        try {
+            while (currentHead < available) {
+                int index = (int) (currentHead & mask);
+                consumer.onChunk(slabs[index], 0, lengths[index]);
+                currentHead++;
+                count++;
+            }
+        } finally {
+            // Слоты освобождаются пачкой после обработки
+            head.lazySet(currentHead);
+        }
+        return count;
+    }
+
+    /** Пакетов в очереди; из другого потока - оценка. */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /** Отбрасывает накопленные пакеты. Только поток потребителя. */
+    public void clear() {
+        // cachedHead производителя лишь отстает и обновится при следующей проверке
+        head.lazySet(tail.get());
+        overflowCount.set(0);
+    }
+}
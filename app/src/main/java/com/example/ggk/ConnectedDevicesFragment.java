@@ -3,14 +3,14 @@ package com.example.ggk;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -32,6 +32,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
@@ -43,17 +44,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
 @SuppressLint("MissingPermission")
 public class ConnectedDevicesFragment extends Fragment {
     private static final String TAG = "ConnectedDevicesFragment";
-    private static final long SCAN_INTERVAL = 10000; // Сканирование каждые 10 секунд
-    private static final long SCAN_DURATION = 5000; // Длительность сканирования 5 секунд
+    // Индикатор после запуска поиска; сам фоновый поиск идет, пока экран открыт
+    private static final long SCAN_INDICATOR_DURATION = 3000;
 
     private RecyclerView recyclerView;
     private View emptyView;
@@ -67,51 +66,22 @@ public class ConnectedDevicesFragment extends Fragment {
     private View scanIndicatorContainer;
     private ProgressBar scanProgress;
     private ImageView scanCompleteIcon;
+    private ExtendedFloatingActionButton downloadAllButton;
+
+    // Выгрузка нескольких логгеров идет в TransferService, экран только наблюдает
+    private TransferService transferService;
+    private boolean serviceBound = false;
 
     private BluetoothAdapter bluetoothAdapter;
     private Handler scanHandler;
-    private boolean isScanning = false;
-    private Set<String> availableDeviceAddresses = new HashSet<>();
-    private Map<String, String> deviceNameMap = new HashMap<>(); // MAC адрес -> Имя устройства
+    // Доступность сохраненных устройств: фоновый LE поиск -> трекер -> только изменения в список
+    private LeDeviceScanner deviceScanner;
+    private DevicePresenceTracker presenceTracker;
 
-    private final BroadcastReceiver scanReceiver = new BroadcastReceiver() {
+    private final DevicePresenceTracker.Listener presenceListener = new DevicePresenceTracker.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (device != null) {
-                    String address = device.getAddress();
-                    String name = device.getName();
-
-                    Log.d(TAG, "ACTION_FOUND: " + name + " (" + address + ")");
-
-                    // Добавляем в список доступных устройств
-                    availableDeviceAddresses.add(address);
-
-                    // Сохраняем имя устройства
-                    if (name != null && !name.isEmpty()) {
-                        deviceNameMap.put(address, name);
-                        Log.d(TAG, "  Saved device name: " + name);
-                    }
-
-                    // Сразу обновляем UI
-                    updateDeviceAvailability();
-                }
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-                isScanning = true;
-                showScanIndicator(true);
-                Log.d(TAG, "ACTION_DISCOVERY_STARTED");
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                isScanning = false;
-                showScanIndicator(false);
-                Log.d(TAG, "ACTION_DISCOVERY_FINISHED");
-                Log.d(TAG, "Total found devices: " + availableDeviceAddresses.size());
-
-                // Финальное обновление UI
-                updateDeviceAvailability();
-            }
+        public void onPresenceChanged(List<DevicePresenceTracker.Device> appeared, List<String> gone) {
+            applyPresence(appeared, gone);
         }
     };
 
@@ -129,6 +99,14 @@ public class ConnectedDevicesFragment extends Fragment {
         scanIndicatorContainer = view.findViewById(R.id.scan_indicator_container);
         scanProgress = view.findViewById(R.id.scan_progress);
         scanCompleteIcon = view.findViewById(R.id.scan_complete_icon);
+        downloadAllButton = view.findViewById(R.id.download_all_button);
+        downloadAllButton.setOnClickListener(v -> startDownloadAll());
+        downloadAllButton.setOnLongClickListener(v -> {
+            showParallelDownloadsDialog();
+            return true;
+        });
+        serviceBound = requireContext().bindService(TransferService.intent(requireContext()),
+                serviceConnection, Context.BIND_AUTO_CREATE);
 
         allDevices = new ArrayList<>();
         filteredDevices = new ArrayList<>();
@@ -138,6 +116,8 @@ public class ConnectedDevicesFragment extends Fragment {
         BluetoothManager bluetoothManager = (BluetoothManager) requireContext()
                 .getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
+        presenceTracker = new DevicePresenceTracker(presenceListener);
+        deviceScanner = new LeDeviceScanner(requireContext(), presenceTracker);
 
         adapter = new ConnectedDevicesAdapter(
                 new ConnectedDevicesAdapter.OnDeviceClickListener() {
@@ -202,20 +182,12 @@ public class ConnectedDevicesFragment extends Fragment {
     public void onResume() {
         super.onResume();
 
-        // Регистрируем приемник для сканирования
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        requireContext().registerReceiver(scanReceiver, filter);
-
         refreshDeviceList();
 
-        // Начинаем периодическое сканирование
-        startPeriodicScanning();
-
-        // Сразу запускаем сканирование для обновления статусов
-        startBluetoothScan();
+        // Фоновый поиск для статусов доступности; на время выгрузки эфир отдан логгерам
+        if (!isDownloading()) {
+            startPresenceTracking();
+        }
     }
 
     @Override
@@ -223,12 +195,22 @@ public class ConnectedDevicesFragment extends Fragment {
         super.onPause();
 
         // Останавливаем сканирование
-        stopPeriodicScanning();
+        stopPresenceTracking();
+    }
 
-        // Отменяем регистрацию приемника
-        try {
-            requireContext().unregisterReceiver(scanReceiver);
-        } catch (IllegalArgumentException ignored) {}
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // Выгрузка продолжается в сервисе, экран только отписывается
+        if (transferService != null) {
+            transferService.setDownloadObserver(null);
+        }
+        if (serviceBound) {
+            requireContext().unbindService(serviceConnection);
+            serviceBound = false;
+        }
+        transferService = null;
+        downloadAllButton = null;
     }
 
     private void showScanIndicator(boolean scanning) {
@@ -255,148 +237,80 @@ public class ConnectedDevicesFragment extends Fragment {
 
     // Публичный метод для запуска сканирования из MainActivity
     public void startBluetoothScanPublic() {
-        startBluetoothScan();
-    }
-
-    private void startPeriodicScanning() {
-        // Очищаем предыдущие задачи
-        scanHandler.removeCallbacks(scanRunnable);
-
-        // Планируем периодические сканирования
-        scanHandler.postDelayed(scanRunnable, SCAN_INTERVAL);
-    }
-
-    private void stopPeriodicScanning() {
-        scanHandler.removeCallbacks(scanRunnable);
-
-        if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
+        if (!isDownloading()) {
+            startPresenceTracking();
         }
     }
 
-    private final Runnable scanRunnable = new Runnable() {
-        @Override
-        public void run() {
-            startBluetoothScan();
-            scanHandler.postDelayed(this, SCAN_INTERVAL);
-        }
-    };
-
-    private void startBluetoothScan() {
+    /**
+     * Фоновый LE поиск (LOW_POWER, фильтры по FFF0 и адресам сохраненных устройств в контроллере)
+     * питает трекер присутствия. Повторный вызов при идущем поиске ничего не перезапускает.
+     */
+    private void startPresenceTracking() {
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
             Log.w(TAG, "Bluetooth not available or not enabled");
             return;
         }
 
-        if (isScanning) {
-            Log.d(TAG, "Already scanning");
-            return;
-        }
-
-        Log.d(TAG, "=== STARTING BLUETOOTH SCAN ===");
-
-        // Очищаем список доступных устройств перед новым сканированием
-        availableDeviceAddresses.clear();
-        deviceNameMap.clear();
+        presenceTracker.start();
+        if (deviceScanner.isScanning()) return;
 
-        // Сначала добавляем все сопряженные устройства как доступные
-        try {
-            Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-            Log.d(TAG, "Found " + pairedDevices.size() + " paired devices:");
-
-            for (BluetoothDevice device : pairedDevices) {
-                String address = device.getAddress();
-                String name = device.getName();
-
-                availableDeviceAddresses.add(address);
-                if (name != null) {
-                    deviceNameMap.put(address, name);
-                }
-
-                Log.d(TAG, "  Paired: " + name + " | MAC: " + address);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting paired devices", e);
+        List<String> knownAddresses = new ArrayList<>();
+        for (DeviceInfo device : allDevices) {
+            knownAddresses.add(device.address);
         }
-
-        // Отменяем предыдущее сканирование, если оно еще идет
-        if (bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
+        deviceScanner.setKnownAddresses(knownAddresses);
+
+        boolean started = deviceScanner.start(false);
+        Log.d(TAG, "Presence scan started: " + started + ", known devices: " + knownAddresses.size());
+        if (started) {
+            showScanIndicator(true);
+            scanHandler.removeCallbacks(scanIndicatorRunnable);
+            scanHandler.postDelayed(scanIndicatorRunnable, SCAN_INDICATOR_DURATION);
         }
-
-        // Начинаем новое сканирование
-        isScanning = true;
-        boolean started = bluetoothAdapter.startDiscovery();
-        Log.d(TAG, "Discovery started: " + started);
-
-        // Сразу обновляем доступность для сопряженных устройств
-        updateDeviceAvailability();
-
-        // Автоматически останавливаем сканирование через SCAN_DURATION
-        scanHandler.postDelayed(() -> {
-            if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
-                Log.d(TAG, "Stopping discovery after timeout");
-                bluetoothAdapter.cancelDiscovery();
-            }
-        }, SCAN_DURATION);
     }
 
-    private void updateDeviceAvailability() {
-        Log.d(TAG, "=== updateDeviceAvailability START ===");
-        Log.d(TAG, "Available addresses count: " + availableDeviceAddresses.size());
-
-        // Создаем нормализованный набор доступных MAC адресов
-        Set<String> normalizedAvailableAddresses = new HashSet<>();
-        Map<String, String> normalizedToOriginal = new HashMap<>();
+    private void stopPresenceTracking() {
+        scanHandler.removeCallbacks(scanIndicatorRunnable);
+        deviceScanner.stop();
+        presenceTracker.stop();
+    }
 
-        // ВАЖНО: Сначала выводим ВСЕ найденные устройства
-        Log.d(TAG, "--- All available devices: ---");
-        for (String mac : availableDeviceAddresses) {
-            String normalized = normalizeMacAddress(mac);
-            normalizedAvailableAddresses.add(normalized);
-            normalizedToOriginal.put(normalized, mac);
+    private final Runnable scanIndicatorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            showScanIndicator(false);
+        }
+    };
 
-            String deviceName = deviceNameMap.get(mac);
-            Log.d(TAG, "  Available: " + (deviceName != null ? deviceName : "Unknown") +
-                    " | MAC: " + mac + " | Normalized: " + normalized);
+    // Изменения присутствия: статус меняется только у затронутых устройств, список - только при изменении
+    private void applyPresence(List<DevicePresenceTracker.Device> appeared, List<String> gone) {
+        Map<String, DevicePresenceTracker.Device> appearedByAddress = new HashMap<>();
+        for (DevicePresenceTracker.Device seen : appeared) {
+            appearedByAddress.put(seen.address, seen);
         }
-        Log.d(TAG, "------------------------------");
 
         boolean hasChanges = false;
-
-        // Теперь проверяем каждое сохраненное устройство
-        Log.d(TAG, "--- Checking saved devices: ---");
         for (DeviceInfo device : allDevices) {
-            boolean wasAvailable = device.isAvailable;
-            String normalizedDeviceMac = normalizeMacAddress(device.address);
-
-            Log.d(TAG, "Checking: " + device.getDisplayName());
-            Log.d(TAG, "  Saved MAC: " + device.address + " | Normalized: " + normalizedDeviceMac);
-
-            device.isAvailable = normalizedAvailableAddresses.contains(normalizedDeviceMac);
-
-            if (device.isAvailable) {
-                String originalMac = normalizedToOriginal.get(normalizedDeviceMac);
-                if (originalMac != null && deviceNameMap.containsKey(originalMac)) {
-                    device.bluetoothName = deviceNameMap.get(originalMac);
-                    Log.d(TAG, "  ✓ AVAILABLE | Bluetooth name: " + device.bluetoothName);
-                } else {
-                    Log.d(TAG, "  ✓ AVAILABLE (no name update)");
+            String key = DevicePresenceTracker.normalize(device.address);
+            DevicePresenceTracker.Device seen = appearedByAddress.get(key);
+            if (seen != null) {
+                if (seen.getName() != null) {
+                    device.bluetoothName = seen.getName();
                 }
-            } else {
-                Log.d(TAG, "  ✗ NOT AVAILABLE");
-                Log.d(TAG, "  Normalized MAC not found in available list");
-            }
-
-            if (wasAvailable != device.isAvailable) {
-                Log.d(TAG, "  >>> STATUS CHANGED: " + wasAvailable + " -> " + device.isAvailable);
+                if (!device.isAvailable) {
+                    device.isAvailable = true;
+                    hasChanges = true;
+                    Log.d(TAG, "Available: " + device.getDisplayName() + ", rssi " + seen.getRssi());
+                }
+            } else if (device.isAvailable && gone.contains(key)) {
+                device.isAvailable = false;
                 hasChanges = true;
+                Log.d(TAG, "Out of range: " + device.getDisplayName());
             }
         }
-        Log.d(TAG, "------------------------------");
-        Log.d(TAG, "=== updateDeviceAvailability END (hasChanges: " + hasChanges + ") ===");
 
-        if (hasChanges || filteredDevices.isEmpty()) {
+        if (hasChanges) {
             filterDevices();
         }
     }
@@ -422,7 +336,12 @@ public class ConnectedDevicesFragment extends Fragment {
 
                     info.lastModified = file.lastModified();
                     info.folder = file;
-                    info.isAvailable = false; // По умолчанию недоступно
+                    // Статус из трекера: устройство могло появиться в эфире до перезагрузки списка
+                    DevicePresenceTracker.Device seen = presenceTracker.get(info.address);
+                    info.isAvailable = seen != null;
+                    if (seen != null) {
+                        info.bluetoothName = seen.getName();
+                    }
 
                     // Получаем размер данных
                     File dataFile = new File(file, "data.txt");
@@ -479,8 +398,126 @@ public class ConnectedDevicesFragment extends Fragment {
 
         adapter.submitList(newList);
         updateEmptyState();
+        updateDownloadAllButton();
+    }
+
+    private boolean isDownloading() {
+        return transferService != null && transferService.getDownloadScheduler() != null;
     }
 
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            transferService = ((TransferService.LocalBinder) service).getService();
+            transferService.setDownloadObserver(downloadListener);
+
+            DownloadScheduler scheduler = transferService.getDownloadScheduler();
+            if (scheduler != null && downloadAllButton != null) {
+                // Выгрузка шла, пока экрана не было
+                stopPresenceTracking();
+                downloadAllButton.setVisibility(View.VISIBLE);
+                downloadAllButton.setEnabled(false);
+                updateDownloadProgress(scheduler.getSummary());
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            transferService = null;
+        }
+    };
+
+    private void updateDownloadAllButton() {
+        if (downloadAllButton == null || isDownloading()) return;
+
+        int available = 0;
+        for (DeviceInfo device : allDevices) {
+            if (device.isAvailable) available++;
+        }
+        downloadAllButton.setVisibility(available > 1 ? View.VISIBLE : View.GONE);
+        downloadAllButton.setText("Скачать все (" + available + ")");
+    }
+
+    private void startDownloadAll() {
+        if (transferService == null || isDownloading()) return;
+
+        stopPresenceTracking();
+        List<DownloadSession> sessions = new ArrayList<>();
+        for (DeviceInfo device : allDevices) {
+            if (!device.isAvailable || device.address == null) continue;
+            // Сохраненное MT устройство узнаем по маркеру, новое - по имени в эфире
+            DownloadSession.Protocol protocol = MTDeviceDataHelper.isMTDevice(requireContext(), device.folderName)
+                    ? DownloadSession.Protocol.MT_SEND_DATA
+                    : DownloadSession.protocolFor(device.bluetoothName);
+            sessions.add(new DownloadSession(requireContext(), device.address,
+                    device.folderName, protocol, null));
+        }
+        DownloadScheduler scheduler = transferService.startDownloads(sessions,
+                DeveloperOptions.getMaxParallelDownloads(requireContext()));
+        downloadAllButton.setEnabled(false);
+        updateDownloadProgress(scheduler.getSummary());
+    }
+
+    // Сколько логгеров выгружать одновременно: зависит от BLE контроллера телефона
+    private void showParallelDownloadsDialog() {
+        String[] items = new String[DownloadScheduler.MAX_CONCURRENT_LIMIT];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = String.valueOf(i + 1);
+        }
+        int current = DeveloperOptions.getMaxParallelDownloads(requireContext());
+        new MaterialAlertDialogBuilder(requireContext())
+                .setTitle("Одновременных выгрузок")
+                .setSingleChoiceItems(items, current - 1, (dialog, which) -> {
+                    DeveloperOptions.setMaxParallelDownloads(requireContext(), which + 1);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Отмена", null)
+                .show();
+    }
+
+    private void updateDownloadProgress(DownloadScheduler.Summary summary) {
+        if (downloadAllButton == null) return;
+        downloadAllButton.setText(String.format(Locale.getDefault(), "Скачано %d/%d, %.1f КБ/с",
+                summary.completed + summary.failed, summary.total, summary.getKbPerSecond()));
+    }
+
+    private final DownloadScheduler.Listener downloadListener = new DownloadScheduler.Listener() {
+        @Override
+        public void onSessionStarted(DownloadSession session) {
+            Log.d(TAG, "Download started: " + session.getDeviceName());
+        }
+
+        @Override
+        public void onSessionProgress(DownloadSession session, DownloadScheduler.Summary summary) {
+            updateDownloadProgress(summary);
+        }
+
+        @Override
+        public void onSessionFinished(DownloadSession session, DownloadScheduler.Summary summary) {
+            updateDownloadProgress(summary);
+            if (session.getState() == DownloadSession.State.FAILED && getContext() != null) {
+                Toast.makeText(getContext(), session.getDeviceName() + ": " + session.getError(),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onAllFinished(DownloadScheduler.Summary summary) {
+            if (getContext() == null) return;
+
+            new MaterialAlertDialogBuilder(requireContext())
+                    .setTitle("Выгрузка завершена")
+                    .setMessage(summary.toDisplayString())
+                    .setPositiveButton("OK", null)
+                    .show();
+            downloadAllButton.setEnabled(true);
+            refreshDeviceList();
+            if (isResumed()) {
+                startPresenceTracking();
+            }
+        }
+    };
+
     private void updateEmptyState() {
         if (filteredDevices.isEmpty()) {
             emptyView.setVisibility(View.VISIBLE);
@@ -653,13 +690,6 @@ public class ConnectedDevicesFragment extends Fragment {
         return 0;
     }
 
-    private String normalizeMacAddress(String mac) {
-        if (mac == null || mac.isEmpty()) return "";
-        // Убираем все разделители и пробелы, приводим к верхнему регистру
-        String normalized = mac.replaceAll("[:\\-\\s]", "").toUpperCase().trim();
-        Log.d(TAG, "Normalized MAC: " + mac + " -> " + normalized);
-        return normalized;
-    }
 
     private void showRenameDialog(DeviceInfo device) {
         View dialogView = LayoutInflater.from(requireContext()).inflate(R.layout.dialog_rename_device, null);
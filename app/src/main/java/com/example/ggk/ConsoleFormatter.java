@@ -0,0 +1,146 @@
+package com.example.ggk;
+
+/**
+ * Форматирование байтов для консоли через заранее построенные таблицы токенов.
+ * Каждый байт превращается в готовую последовательность символов из таблицы и копируется
+ * в переиспользуемый char[] - без StringBuilder.append(int) и промежуточных строк.
+ * Вывод совпадает с прежним: ASCII, "hex" ('c', \n, NULL, десятичные коды), числа и чистый текст.
+ * Не потокобезопасен: используется на потоке обработки данных.
+ */
+public class ConsoleFormatter {
+
+    // Токен байта занимает в таблице TOKEN_STRIDE символов ("NULL " - самый длинный),
+    // копируются всегда все, позиция сдвигается на настоящую длину токена
+    private static final int TOKEN_STRIDE = 5;
+    private static final char SKIP = 0;
+
+    private static final char[] HEX_TOKENS = new char[256 * TOKEN_STRIDE];
+    private static final byte[] HEX_LENGTHS = new byte[256];
+    private static final char[] NUMBER_TOKENS = new char[256 * TOKEN_STRIDE];
+    private static final byte[] NUMBER_LENGTHS = new byte[256];
+    // Один символ на байт, SKIP - байт не выводится
+    private static final char[] ASCII_CHARS = new char[256];
+    private static final char[] RAW_CHARS = new char[256];
+
+    static {
+        StringBuilder hex = new StringBuilder(TOKEN_STRIDE);
+        StringBuilder numbers = new StringBuilder(TOKEN_STRIDE);
+        for (int value = 0; value < 256; value++) {
+            hex.setLength(0);
+            if (value >= 32 && value <= 126) {
+                hex.append('\'').append((char) value).append("' ");
+            } else if (value == 10) {
+                hex.append("\\n ");
+            } else if (value == 13) {
+                hex.append("\\r ");
+            } else if (value == 9) {
+                hex.append("\\t ");
+            } else if (value == 0) {
+                hex.append("NULL ");
+            } else {
+                hex.append(value).append(' ');
+            }
+
+            numbers.setLength(0);
+            numbers.append(value).append(' ');
+
+            hex.getChars(0, hex.length(), HEX_TOKENS, value * TOKEN_STRIDE);
+            HEX_LENGTHS[value] = (byte) hex.length();
+            numbers.getChars(0, numbers.length(), NUMBER_TOKENS, value * TOKEN_STRIDE);
+            NUMBER_LENGTHS[value] = (byte) numbers.length();
+
+            boolean printable = value >= 32 && value <= 126;
+            boolean control = value == 10 || value == 13 || value == 9;
+            ASCII_CHARS[value] = printable || control ? (char) value : '.';
+            RAW_CHARS[value] = printable || control ? (char) value : SKIP;
+        }
+    }
+
+    private char[] buffer;
+    private int length = 0;
+
+    public ConsoleFormatter(int initialCapacity) {
+        buffer = new char[Math.max(64, initialCapacity)];
+    }
+
+    /** Текст; непечатаемые байты - '.', '\r' выводится только если за ним в пакете не '\n'. */
+    public void appendAscii(byte[] data, int offset, int count) {
+        ensureCapacity(count);
+        char[] out = buffer;
+        int position = length;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int value = data[i] & 0xFF;
+            if (value == 13 && (i + 1 >= end || data[i + 1] == 10)) {
+                continue;
+            }
+            out[position++] = ASCII_CHARS[value];
+        }
+        length = position;
+    }
+
+    /** Консольный "hex": символы в кавычках, управляющие как \n \r \t, NULL, прочие - десятичный код. */
+    public void appendHex(byte[] data, int offset, int count) {
+        appendTokens(HEX_TOKENS, HEX_LENGTHS, data, offset, count);
+    }
+
+    /** Десятичные значения байтов через пробел (данные после Start). */
+    public void appendNumbers(byte[] data, int offset, int count) {
+        appendTokens(NUMBER_TOKENS, NUMBER_LENGTHS, data, offset, count);
+    }
+
+    /** Чистый текст MT устройств: печатаемые символы и \n \r \t, остальное пропускается. */
+    public void appendRaw(byte[] data, int offset, int count) {
+        ensureCapacity(count);
+        char[] out = buffer;
+        int position = length;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            char c = RAW_CHARS[data[i] & 0xFF];
+            if (c != SKIP) {
+                out[position++] = c;
+            }
+        }
+        length = position;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    /** Накопленный текст; буфер остается для следующей пачки. */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void appendTokens(char[] tokens, byte[] lengths, byte[] data, int offset, int count) {
+        // Запас на полный шаг для каждого байта: лишние символы перезапишет следующий токен
+        ensureCapacity(count * TOKEN_STRIDE);
+        char[] out = buffer;
+        int position = length;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int value = data[i] & 0xFF;
+            int start = value * TOKEN_STRIDE;
+            out[position] = tokens[start];
+            out[position + 1] = tokens[start + 1];
+            out[position + 2] = tokens[start + 2];
+            out[position + 3] = tokens[start + 3];
+            out[position + 4] = tokens[start + 4];
+            position += lengths[value];
+        }
+        length = position;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = length + extra;
+        if (required > buffer.length) {
+            buffer = java.util.Arrays.copyOf(buffer, Math.max(buffer.length * 2, required));
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.example.ggk;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -40,6 +44,9 @@ public class DataTransferFragment extends Fragment {
     private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
     private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
     private static final long NO_DATA_TIMEOUT = 2000; // 2 секунды без данных
+    private static final long STATS_UPDATE_INTERVAL = 1000;
+    // Консоль показывает только хвост потока
+    private static final int MAX_CONSOLE_CHARS = 32 * 1024;
 
     private TextView textView;
     private TextView infoTextView;
@@ -55,13 +62,21 @@ public class DataTransferFragment extends Fragment {
     private View lowerSection;
     private TextView syncInfoView;
     private TextView syncTimeRangeView;
+    private TextView transferStatsView;
+    private long lastStatsUpdateTime = 0;
 
+    // Соединение принадлежит TransferService и переживает пересоздание экрана
+    private TransferService transferService;
+    private boolean serviceBound = false;
+    private TransferLink transferLink;
     private BluetoothService bluetoothService;
     private Handler mainHandler;
 
-    private StringBuilder dataBuffer = new StringBuilder();
+    private final FormattedTextWindow dataBuffer = new FormattedTextWindow(MAX_CONSOLE_CHARS);
     private StringBuilder infoBuffer = new StringBuilder();
     private List<String> numericData = new ArrayList<>();
+    private short[] receivedSamples = new short[4096];
+    private int receivedSampleCount = 0;
 
     private boolean isFromHistory;
     private String deviceAddress;
@@ -138,6 +153,15 @@ public class DataTransferFragment extends Fragment {
             statusCard.addView(syncTimeRangeView);
         }
 
+        if (!isFromHistory && statusView != null) {
+            // Статистика приема: потери, интервалы между пакетами, задержки потока
+            ViewGroup statusCard = view.findViewById(R.id.status_card);
+            transferStatsView = new TextView(getContext());
+            transferStatsView.setTextSize(11);
+            transferStatsView.setPadding(32, 2, 32, 4);
+            statusCard.addView(transferStatsView);
+        }
+
         reconnectButton.setOnClickListener(v -> connectToDevice());
 
         scrollView.setOnTouchListener((v, event) -> {
@@ -166,8 +190,26 @@ public class DataTransferFragment extends Fragment {
     }
 
     private void initializeBluetooth() {
-        bluetoothService = new BluetoothService(requireContext());
-        bluetoothService.setCallback(bluetoothCallback);
+        if (transferService == null) {
+            // Продолжим, когда сервис будет привязан
+            if (!serviceBound) {
+                updateStatus("Подключение...");
+                showProgress(true);
+                serviceBound = requireContext().bindService(TransferService.intent(requireContext()),
+                        serviceConnection, Context.BIND_AUTO_CREATE);
+            }
+            return;
+        }
+
+        TransferLink link = transferService.getLink(deviceAddress);
+        if (link != null && link.isStarted() && !link.isClosed()) {
+            // Выгрузка шла, пока экрана не было - подхватываем накопленное
+            attachToLink(link);
+            restoreFromLink(link);
+            return;
+        }
+
+        attachToLink(transferService.openLink(deviceAddress));
 
         // Если режим синхронизации, включаем специальный режим
         if (isSyncMode) {
@@ -177,6 +219,89 @@ public class DataTransferFragment extends Fragment {
         connectToDevice();
     }
 
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            transferService = ((TransferService.LocalBinder) service).getService();
+            if (getView() != null) {
+                initializeBluetooth();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            transferService = null;
+        }
+    };
+
+    private void attachToLink(TransferLink link) {
+        transferLink = link;
+        bluetoothService = link.getBluetoothService();
+        link.setObserver(bluetoothCallback, payloadListener);
+        bluetoothService.setConsoleEnabled(isResumed());
+        bluetoothService.setUiVisible(isResumed());
+    }
+
+    private void restoreFromLink(TransferLink link) {
+        Log.d(TAG, "Restoring transfer: " + link.getSampleCount() + " values, finished: " + link.isPayloadFinished());
+
+        if (link.isConnected()) {
+            updateStatus("Подключено");
+            updateStatusIndicator(R.color.bluetooth_connected);
+            showProgress(false);
+            statsContainer.setVisibility(View.VISIBLE);
+        } else {
+            updateStatus("Подключение...");
+            showProgress(true);
+        }
+
+        if (isSyncMode) {
+            syncStartTime = link.getStartTime();
+            calculateExpectedDataPoints();
+        }
+
+        bytesReceivedView.setText(String.format(Locale.US, "%.2f KB", link.getTotalBytes() / 1024.0));
+        transferSpeedView.setText(String.format(Locale.US, "%.2f KB/s", link.getKbPerSecond()));
+
+        if (link.isPayloadStarted()) {
+            dataStarted = true;
+            dataStartTime = link.getPayloadStartTime();
+            infoBuffer.append(link.getInfoText());
+            infoTextView.setText(translateAndFilterInfo(infoBuffer.toString()));
+            dataBuffer.append(link.getConsoleText());
+            textView.setText(dataBuffer.toString());
+        } else {
+            dataBuffer.append(link.getInfoText());
+            infoTextView.setText(dataBuffer.toString());
+        }
+
+        short[] samples = link.getSamples();
+        if (samples.length > 0) {
+            payloadListener.onSamplesReceived(samples, link.getTotalBytes(), link.getKbPerSecond());
+        }
+
+        if (link.isPayloadFinished()) {
+            payloadListener.onPayloadFinished();
+        } else if (link.isPayloadStarted()) {
+            // Если поток затих, пока экрана не было, onDataBatch больше не придет
+            mainHandler.postDelayed(noDataRunnable, NO_DATA_TIMEOUT);
+        }
+    }
+
+    // Выгрузка обработана - соединение в сервисе больше не нужно
+    private void releaseLink() {
+        if (transferService != null && transferLink != null) {
+            transferService.closeLink(deviceAddress);
+        } else if (bluetoothService != null) {
+            bluetoothService.disconnect();
+        }
+        transferLink = null;
+        bluetoothService = null;
+
+        updateStatusIndicator(R.color.bluetooth_disconnected);
+        reconnectButton.setVisibility(View.VISIBLE);
+    }
+
     private void connectToDevice() {
         if (bluetoothService == null) {
             initializeBluetooth();
@@ -187,7 +312,8 @@ public class DataTransferFragment extends Fragment {
         showProgress(true);
         reconnectButton.setVisibility(View.GONE);
 
-        bluetoothService.connect(deviceAddress, SERVICE_UUID, READ_UUID);
+        // Дамп Start...End идет сразу после подключения - соединение настраивается под выгрузку
+        transferLink.connect(SERVICE_UUID, READ_UUID, BluetoothService.LinkProfile.BULK_TRANSFER);
     }
 
     private void showProgress(boolean show) {
@@ -248,52 +374,19 @@ public class DataTransferFragment extends Fragment {
             // Добавляем данные в буфер
             dataBuffer.append(formattedBatch);
 
-            // Проверяем, началась ли передача данных
-            String currentData = dataBuffer.toString();
-            int startIndex = currentData.indexOf("Start");
-
-            if (!dataStarted && startIndex != -1) {
-                dataStarted = true;
-                dataStartTime = System.currentTimeMillis();
-
-                // Сохраняем информацию до Start
-                infoBuffer.append(currentData.substring(0, startIndex));
-
-                // Отображаем информацию до Start в верхнем окне
-                infoTextView.setText(translateAndFilterInfo(infoBuffer.toString()));
-
-                // Очищаем нижнее окно для отображения данных после Start
-                textView.setText("");
-
-                // Удаляем из буфера всё до Start включительно
-                dataBuffer = new StringBuilder(currentData.substring(startIndex + 5));
-            }
-
             if (dataStarted) {
-                // В режиме синхронизации подсчитываем полученные точки
-                if (isSyncMode) {
-                    receivedDataPoints = countDataPointsInBuffer(dataBuffer.toString());
-                    updateSyncInfo();
-
-                    // Если получили нужное количество данных, останавливаем
-                    if (receivedDataPoints >= expectedDataPoints && expectedDataPoints > 0) {
-                        Log.d(TAG, "Received enough data points: " + receivedDataPoints + "/" + expectedDataPoints);
-                        processReceivedData();
-                        return;
-                    }
-                }
-
                 // Отображаем только данные после Start в нижнем окне
                 textView.setText(dataBuffer.toString());
             } else {
                 // Пока не встретили Start, показываем всё в верхнем окне
-                infoTextView.setText(currentData);
+                infoTextView.setText(dataBuffer.toString());
             }
 
             // Обновляем статистику
             bytesReceivedView.setText(String.format(Locale.US, "%.2f KB", totalBytes / 1024.0));
             transferSpeedView.setText(String.format(Locale.US, "%.2f KB/s", kbPerSecond));
             updateStatusIndicator(R.color.data_received);
+            updateTransferStats(false);
 
             if (autoScroll.get()) {
                 scrollToBottom();
@@ -312,8 +405,82 @@ public class DataTransferFragment extends Fragment {
         public void onReconnectAttempt(int attempt, int maxAttempts) {
             updateStatus("Переподключение... (" + attempt + "/" + maxAttempts + ")");
         }
+
+        @Override
+        public void onLinkParametersChanged(BluetoothService.LinkParameters parameters) {
+            Log.i(TAG, "Link parameters: " + parameters + ", speed: " + transferSpeedView.getText());
+        }
+    };
+
+    private final BluetoothService.PayloadListener payloadListener = new BluetoothService.PayloadListener() {
+        @Override
+        public void onPayloadStarted() {
+            if (dataStarted) {
+                return;
+            }
+            dataStarted = true;
+            dataStartTime = System.currentTimeMillis();
+
+            // Пакет с маркером уже добавлен в буфер через onDataBatch
+            int startIndex = dataBuffer.lastIndexOf("Start");
+            if (startIndex == -1) {
+                startIndex = dataBuffer.length();
+            }
+
+            // Сохраняем информацию до Start
+            infoBuffer.append(dataBuffer.subSequence(0, startIndex));
+
+            // Отображаем информацию до Start в верхнем окне
+            infoTextView.setText(translateAndFilterInfo(infoBuffer.toString()));
+
+            // Удаляем из буфера всё до Start включительно
+            dataBuffer.removeHead(startIndex + 5);
+            textView.setText(dataBuffer.toString());
+        }
+
+        @Override
+        public void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond) {
+            if (receivedSampleCount + samples.length > receivedSamples.length) {
+                int newCapacity = Math.max(receivedSamples.length * 2, receivedSampleCount + samples.length);
+                receivedSamples = java.util.Arrays.copyOf(receivedSamples, newCapacity);
+            }
+            System.arraycopy(samples, 0, receivedSamples, receivedSampleCount, samples.length);
+            receivedSampleCount += samples.length;
+
+            // В режиме синхронизации подсчитываем полученные точки
+            if (isSyncMode) {
+                receivedDataPoints = receivedSampleCount;
+                updateSyncInfo();
+
+                // Если получили нужное количество данных, останавливаем
+                if (receivedDataPoints >= expectedDataPoints && expectedDataPoints > 0) {
+                    Log.d(TAG, "Received enough data points: " + receivedDataPoints + "/" + expectedDataPoints);
+                    mainHandler.removeCallbacks(noDataRunnable);
+                    processReceivedData();
+                }
+            }
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            // Получен 'End\r\n' - не ждем таймаута отсутствия данных
+            Log.d(TAG, "End marker received, " + receivedSampleCount + " values");
+            mainHandler.removeCallbacks(noDataRunnable);
+            updateTransferStats(true);
+            processReceivedData();
+        }
     };
 
+    private void updateTransferStats(boolean force) {
+        if (transferStatsView == null || bluetoothService == null) return;
+
+        long now = System.currentTimeMillis();
+        if (!force && now - lastStatsUpdateTime < STATS_UPDATE_INTERVAL) return;
+        lastStatsUpdateTime = now;
+
+        transferStatsView.setText(bluetoothService.getTransferStatistics().toDisplayString());
+    }
+
     private void calculateExpectedDataPoints() {
         if (!isSyncMode || lastSyncTime == 0) {
             return;
@@ -350,41 +517,15 @@ public class DataTransferFragment extends Fragment {
         }
     }
 
-    private int countDataPointsInBuffer(String data) {
-        // Подсчитываем количество чисел в буфере
-        String[] lines = data.split("\n");
-        int count = 0;
-        for (String line : lines) {
-            line = line.trim();
-            if (!line.isEmpty()) {
-                String[] parts = line.split("\\s+");
-                for (String part : parts) {
-                    if (isNumeric(part)) {
-                        count++;
-                    }
-                }
-            }
-        }
-        return count;
-    }
-
     private void processReceivedData() {
-        if (dataBuffer.length() == 0) {
+        if (dataBuffer.length() == 0 && receivedSampleCount == 0) {
             return;
         }
 
         updateStatus("Обработка данных...");
 
-        String data = dataBuffer.toString();
-
-        // Удаляем End если есть
-        int endIndex = data.lastIndexOf("End");
-        if (endIndex != -1) {
-            data = data.substring(0, endIndex);
-        }
-
-        // Парсим числовые данные
-        parseNumericData(data);
+        // Значения уже декодированы BluetoothService из бинарного потока
+        buildNumericData();
 
         // В режиме синхронизации обрезаем лишние данные
         if (isSyncMode && expectedDataPoints > 0 && numericData.size() > expectedDataPoints) {
@@ -400,9 +541,7 @@ public class DataTransferFragment extends Fragment {
         }
 
         // Отключаемся
-        if (bluetoothService != null) {
-            bluetoothService.disconnect();
-        }
+        releaseLink();
 
         updateStatus("Данные сохранены");
 
@@ -413,67 +552,13 @@ public class DataTransferFragment extends Fragment {
         }
     }
 
-    private void parseNumericData(String data) {
-        numericData.clear();
-
-        Log.d(TAG, "=== parseNumericData START ===");
-        Log.d(TAG, "Raw data length: " + data.length());
-        Log.d(TAG, "First 200 chars: " + data.substring(0, Math.min(200, data.length())));
-
-        // Разбираем данные после Start
-        String[] lines = data.split("\n");
-        List<Integer> byteValues = new ArrayList<>();
-
-        // Сначала собираем все байты
-        for (String line : lines) {
-            line = line.trim();
-            if (!line.isEmpty()) {
-                String[] parts = line.split("\\s+");
-                for (String part : parts) {
-                    if (isNumeric(part)) {
-                        try {
-                            int byteValue = Integer.parseInt(part);
-                            byteValues.add(byteValue);
-                        } catch (NumberFormatException e) {
-                            // Игнорируем
-                        }
-                    }
-                }
-            }
-        }
-
-        Log.d(TAG, "Total byte values collected: " + byteValues.size());
-
-        // Выводим первые 20 байтов для отладки
-        StringBuilder firstBytes = new StringBuilder("First 20 bytes: ");
-        for (int i = 0; i < Math.min(20, byteValues.size()); i++) {
-            firstBytes.append(byteValues.get(i)).append(" ");
+    private void buildNumericData() {
+        numericData = new ArrayList<>(receivedSampleCount);
+        for (int i = 0; i < receivedSampleCount; i++) {
+            numericData.add(String.valueOf(receivedSamples[i]));
         }
-        Log.d(TAG, firstBytes.toString());
 
-        // Теперь обрабатываем попарно как signed int16 (little-endian)
-        Log.d(TAG, "=== Processing byte pairs ===");
-        for (int i = 0; i < byteValues.size() - 1; i += 2) {
-            int lowByte = byteValues.get(i);
-            int highByte = byteValues.get(i + 1);
-
-            // Преобразуем в signed int16 (little-endian)
-            short signedValue = (short)((highByte << 8) | lowByte);
-
-            numericData.add(String.valueOf(signedValue));
-
-            if (i < 10) { // Логируем первые 5 пар для отладки
-                Log.d(TAG, String.format("Pair %d: [%3d, %3d] -> binary [%s, %s] -> combined: %d -> signed int16: %d",
-                        i/2,
-                        lowByte, highByte,
-                        String.format("%8s", Integer.toBinaryString(lowByte & 0xFF)).replace(' ', '0'),
-                        String.format("%8s", Integer.toBinaryString(highByte & 0xFF)).replace(' ', '0'),
-                        (highByte << 8) | lowByte,
-                        signedValue));
-            }
-        }
-
-        Log.d(TAG, "Parsed " + numericData.size() + " signed int16 values from " + byteValues.size() + " bytes");
+        Log.d(TAG, "Collected " + numericData.size() + " signed int16 values from binary stream");
 
         // Выводим первые 10 итоговых значений
         StringBuilder firstValues = new StringBuilder("First 10 values: ");
@@ -481,7 +566,6 @@ public class DataTransferFragment extends Fragment {
             firstValues.append(numericData.get(i)).append(" ");
         }
         Log.d(TAG, firstValues.toString());
-        Log.d(TAG, "=== parseNumericData END ===");
     }
 
     private void testByteConversion() {
@@ -508,15 +592,6 @@ public class DataTransferFragment extends Fragment {
         Log.d(TAG, "=== END TEST ===");
     }
 
-    private boolean isNumeric(String str) {
-        try {
-            Double.parseDouble(str);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
-        }
-    }
-
     private void appendDataToFiles() {
         try {
             // Создаем папку для устройства если её нет
@@ -639,6 +714,24 @@ public class DataTransferFragment extends Fragment {
         statusView.setText("Статус: " + status);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (bluetoothService != null) {
+            bluetoothService.setConsoleEnabled(true);
+            bluetoothService.setUiVisible(true);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (bluetoothService != null) {
+            bluetoothService.setConsoleEnabled(false);
+            bluetoothService.setUiVisible(false);
+        }
+    }
+
     private void scrollToBottom() {
         scrollView.post(() -> scrollView.fullScroll(View.FOCUS_DOWN));
     }
@@ -651,9 +744,20 @@ public class DataTransferFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (bluetoothService != null) {
-            bluetoothService.close();
+        if (transferLink != null) {
+            transferLink.setObserver(null, null);
+            if (requireActivity().isFinishing() && transferService != null) {
+                // Экран устройства закрыт - прием прерывается, как и раньше
+                transferService.closeLink(deviceAddress);
+            }
+        }
+        if (serviceBound) {
+            requireContext().unbindService(serviceConnection);
+            serviceBound = false;
         }
+        transferService = null;
+        transferLink = null;
+        bluetoothService = null;
         mainHandler.removeCallbacksAndMessages(null);
     }
 
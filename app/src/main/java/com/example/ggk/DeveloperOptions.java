@@ -0,0 +1,43 @@
+package com.example.ggk;
+
+import android.content.Context;
+
+/**
+ * Настройки для разработчиков в app_prefs: запись трассы переключается из меню главного экрана,
+ * число одновременных выгрузок - долгим нажатием на "Скачать все".
+ */
+public final class DeveloperOptions {
+    private static final String PREFS_NAME = "app_prefs";
+    private static final String KEY_TRACE_RECORDING = "trace_recording";
+    private static final String KEY_MAX_PARALLEL_DOWNLOADS = "max_parallel_downloads";
+
+    private DeveloperOptions() {
+    }
+
+    /** Каждое подключение BluetoothService пишет трассу SessionTraceRecorder в BLETraces. */
+    public static boolean isTraceRecordingEnabled(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_TRACE_RECORDING, false);
+    }
+
+    public static void setTraceRecordingEnabled(Context context, boolean enabled) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(KEY_TRACE_RECORDING, enabled)
+                .apply();
+    }
+
+    /** Ограничение DownloadScheduler для "Скачать все", 1..MAX_CONCURRENT_LIMIT. */
+    public static int getMaxParallelDownloads(Context context) {
+        int value = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(KEY_MAX_PARALLEL_DOWNLOADS, DownloadScheduler.DEFAULT_MAX_CONCURRENT);
+        return Math.max(1, Math.min(value, DownloadScheduler.MAX_CONCURRENT_LIMIT));
+    }
+
+    public static void setMaxParallelDownloads(Context context, int maxConcurrent) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putInt(KEY_MAX_PARALLEL_DOWNLOADS, maxConcurrent)
+                .apply();
+    }
+}
@@ -118,6 +118,8 @@ public class DeviceListAdapter extends ListAdapter<DeviceListAdapter.DeviceItem,
         private final BluetoothDevice device;
         private final boolean isPaired;
         private String customName;
+        // Имя из рекламного пакета LE: у нового устройства device.getName() бывает null
+        private String advertisedName;
 
         public DeviceItem(BluetoothDevice device, boolean isPaired) {
             this.device = device;
@@ -128,9 +130,14 @@ public class DeviceListAdapter extends ListAdapter<DeviceListAdapter.DeviceItem,
             this.customName = customName;
         }
 
+        public void setAdvertisedName(String advertisedName) {
+            this.advertisedName = advertisedName;
+        }
+
         @SuppressLint("MissingPermission")
         public String getName() {
-            return device.getName();
+            String name = device.getName();
+            return name != null ? name : advertisedName;
         }
 
         // Получаем отображаемое имя (пользовательское или оригинальное)
@@ -139,7 +146,7 @@ public class DeviceListAdapter extends ListAdapter<DeviceListAdapter.DeviceItem,
             if (customName != null && !customName.isEmpty()) {
                 return customName;
             }
-            return device.getName();
+            return getName();
         }
 
         public String getAddress() {
@@ -0,0 +1,184 @@
+package com.example.ggk;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Какие устройства сейчас в эфире: по адресу - время последнего рекламного пакета,
+ * сглаженный RSSI и имя. Запись живет TTL после последнего пакета, так что поиску не нужно
+ * каждый раз начинаться с чистого списка - достаточно редкого фонового LE поиска.
+ * Наблюдатель получает только изменения: устройство появилось или пропало.
+ * Питается результатами LeDeviceScanner (реализует его Listener). Все методы - на главном потоке.
+ */
+public class DevicePresenceTracker implements LeDeviceScanner.Listener {
+    private static final String TAG = "DevicePresenceTracker";
+
+    // Фоновый поиск ловит логгер раз в несколько секунд, пара пропусков не должна гасить значок
+    public static final long DEFAULT_TTL = 30000;
+    // Доля нового замера в сглаженном RSSI
+    private static final double RSSI_ALPHA = 0.25;
+
+    public interface Listener {
+        /** gone - адреса в виде normalize(); один из списков может быть пустым. */
+        void onPresenceChanged(List<Device> appeared, List<String> gone);
+    }
+
+    /** Устройство в эфире. */
+    public static final class Device {
+        public final String address;
+        private String name;
+        private long lastSeen;
+        private double smoothedRssi;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** SystemClock.elapsedRealtime() последнего пакета. */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public int getRssi() {
+            return (int) Math.round(smoothedRssi);
+        }
+    }
+
+    private final long ttl;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Device> devices = new HashMap<>();
+    private boolean running = false;
+
+    public DevicePresenceTracker(Listener listener) {
+        this(DEFAULT_TTL, listener);
+    }
+
+    public DevicePresenceTracker(long ttl, Listener listener) {
+        this.ttl = ttl;
+        this.listener = listener;
+    }
+
+    /** Адрес без разделителей в верхнем регистре - ключ для сравнения с сохраненными устройствами. */
+    public static String normalize(String address) {
+        if (address == null) return "";
+        StringBuilder result = new StringBuilder(12);
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != ':' && c != '-' && !Character.isWhitespace(c)) {
+                result.append(Character.toUpperCase(c));
+            }
+        }
+        return result.toString();
+    }
+
+    /** Включает проверку TTL; устаревшие за время остановки записи уходят сразу. */
+    public void start() {
+        if (running) return;
+        running = true;
+        sweep();
+    }
+
+    /** Записи сохраняются, TTL продолжит отсчет после start. */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(sweepRunnable);
+    }
+
+    public boolean isPresent(String address) {
+        return devices.containsKey(normalize(address));
+    }
+
+    public Device get(String address) {
+        return devices.get(normalize(address));
+    }
+
+    @Override
+    public void onDevicesFound(List<ScanResult> results) {
+        long now = SystemClock.elapsedRealtime();
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        List<Device> appeared = new ArrayList<>();
+        for (ScanResult result : results) {
+            if (result.getDevice() == null) continue;
+            // Пачка контроллера приходит с опозданием - время берем из самого результата
+            long age = Math.max(0, (nowNanos - result.getTimestampNanos()) / 1_000_000L);
+            Device device = update(result.getDevice().getAddress(), LeDeviceScanner.nameOf(result),
+                    result.getRssi(), now - Math.min(age, ttl));
+            if (device != null) {
+                appeared.add(device);
+            }
+        }
+        if (!appeared.isEmpty()) {
+            listener.onPresenceChanged(appeared, new ArrayList<>());
+        }
+    }
+
+    // Возвращает устройство, если его не было в эфире
+    Device update(String address, String name, int rssi, long seenAt) {
+        String key = normalize(address);
+        Device device = devices.get(key);
+        boolean isNew = device == null;
+        if (isNew) {
+            device = new Device(key);
+            device.smoothedRssi = rssi;
+            devices.put(key, device);
+            Log.d(TAG, "Appeared: " + address + " (" + name + "), rssi " + rssi);
+        } else {
+            device.smoothedRssi += RSSI_ALPHA * (rssi - device.smoothedRssi);
+        }
+        device.lastSeen = Math.max(device.lastSeen, seenAt);
+        if (name != null && !name.isEmpty()) {
+            device.name = name;
+        }
+        return isNew ? device : null;
+    }
+
+    // Удаляет устаревшие записи, возвращает их адреса
+    List<String> expire(long now) {
+        List<String> gone = new ArrayList<>();
+        Iterator<Device> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            Device device = iterator.next();
+            if (now - device.lastSeen > ttl) {
+                iterator.remove();
+                gone.add(device.address);
+            }
+        }
+        if (!gone.isEmpty()) {
+            Log.d(TAG, String.format(Locale.US, "Gone: %s (%d left)", gone, devices.size()));
+        }
+        return gone;
+    }
+
+    private void sweep() {
+        List<String> gone = expire(SystemClock.elapsedRealtime());
+        if (!gone.isEmpty()) {
+            listener.onPresenceChanged(new ArrayList<>(), gone);
+        }
+        if (running) {
+            handler.removeCallbacks(sweepRunnable);
+            handler.postDelayed(sweepRunnable, Math.max(1000, ttl / 3));
+        }
+    }
+
+    private final Runnable sweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+}
@@ -0,0 +1,237 @@
+package com.example.ggk;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Очередь выгрузок с нескольких логгеров на объекте.
+ * Одновременно идет не больше maxConcurrent сессий - столько GATT соединений контроллер
+ * держит без потери скорости; освободившееся место сразу занимает следующий логгер.
+ * Сохранение файлов идет на отдельном потоке и не задерживает следующую выгрузку.
+ * Методы вызываются с главного потока, события Listener приходят на нем же.
+ */
+public class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    // Типичный контроллер держит 4-7 LE соединений, часть может быть занята (часы, гарнитура)
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    public static final int MAX_CONCURRENT_LIMIT = 7;
+
+    public interface Listener {
+        void onSessionStarted(DownloadSession session);
+        void onSessionProgress(DownloadSession session, Summary summary);
+        void onSessionFinished(DownloadSession session, Summary summary);
+        void onAllFinished(Summary summary);
+    }
+
+    /** Сводка по всем сессиям: объем, общая скорость и выигрыш от параллельности. */
+    public static final class Summary {
+        public final int total;
+        public final int completed;
+        public final int failed;
+        public final int running;
+        public final long bytes;
+        public final long samples;
+        // От первого подключения до последнего завершения
+        public final long wallTimeMs;
+        // Сумма длительностей сессий - столько заняла бы выгрузка по одной
+        public final long serialTimeMs;
+
+        Summary(int total, int completed, int failed, int running,
+                long bytes, long samples, long wallTimeMs, long serialTimeMs) {
+            this.total = total;
+            this.completed = completed;
+            this.failed = failed;
+            this.running = running;
+            this.bytes = bytes;
+            this.samples = samples;
+            this.wallTimeMs = wallTimeMs;
+            this.serialTimeMs = serialTimeMs;
+        }
+
+        public double getKbPerSecond() {
+            return wallTimeMs > 0 ? (bytes / 1024.0) / (wallTimeMs / 1000.0) : 0;
+        }
+
+        public double getSpeedup() {
+            return wallTimeMs > 0 ? (double) serialTimeMs / wallTimeMs : 0;
+        }
+
+        public String toDisplayString() {
+            return String.format(Locale.getDefault(),
+                    "Готово %d из %d (ошибок: %d)\n%.1f КБ за %.1f сек, %.1f КБ/с\nПо очереди: %.1f сек",
+                    completed, total, failed, bytes / 1024.0, wallTimeMs / 1000.0,
+                    getKbPerSecond(), serialTimeMs / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "sessions=%d completed=%d failed=%d running=%d bytes=%d samples=%d wall=%dms serial=%dms %.1f KB/s x%.2f",
+                    total, completed, failed, running, bytes, samples, wallTimeMs, serialTimeMs,
+                    getKbPerSecond(), getSpeedup());
+        }
+    }
+
+    private final int maxConcurrent;
+    private final Handler mainHandler;
+    // Поток сохранения создается на время работы очереди
+    private ExecutorService saveExecutor;
+    private Listener listener;
+
+    private final ArrayDeque<DownloadSession> queue = new ArrayDeque<>();
+    private final List<DownloadSession> running = new ArrayList<>();
+    private final List<DownloadSession> sessions = new ArrayList<>();
+    private long firstStartTime = 0;
+    private long lastFinishTime = 0;
+    private int pendingSaves = 0;
+    private boolean cancelled = false;
+
+    public DownloadScheduler(int maxConcurrent, Listener listener) {
+        this.maxConcurrent = Math.max(1, Math.min(maxConcurrent, MAX_CONCURRENT_LIMIT));
+        this.listener = listener;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Ограничение после приведения к 1..MAX_CONCURRENT_LIMIT. */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Добавляет логгер в очередь; если есть свободное место, выгрузка начинается сразу. */
+    public void enqueue(DownloadSession session) {
+        if (cancelled) return;
+        for (DownloadSession existing : sessions) {
+            if (existing.getDeviceAddress().equals(session.getDeviceAddress()) && !existing.isFinished()) {
+                Log.d(TAG, "Already queued: " + session.getDeviceAddress());
+                return;
+            }
+        }
+        sessions.add(session);
+        queue.add(session);
+        startNext();
+    }
+
+    /** Останавливает идущие выгрузки и очищает очередь. Уже принятые данные не сохраняются. */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+        for (DownloadSession session : new ArrayList<>(running)) {
+            session.cancel();
+        }
+    }
+
+    public boolean isIdle() {
+        return queue.isEmpty() && running.isEmpty() && pendingSaves == 0;
+    }
+
+    public List<DownloadSession> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    public Summary getSummary() {
+        int completed = 0;
+        int failed = 0;
+        long bytes = 0;
+        long samples = 0;
+        long serial = 0;
+        for (DownloadSession session : sessions) {
+            if (session.getState() == DownloadSession.State.COMPLETED) {
+                completed++;
+            } else if (session.getState() == DownloadSession.State.FAILED) {
+                failed++;
+            }
+            bytes += session.getBytesReceived();
+            samples += session.getSampleCount();
+            serial += session.getDurationMs();
+        }
+        long end = running.isEmpty() && lastFinishTime > 0 ? lastFinishTime : System.currentTimeMillis();
+        long wall = firstStartTime > 0 ? end - firstStartTime : 0;
+        return new Summary(sessions.size(), completed, failed, running.size(), bytes, samples, wall, serial);
+    }
+
+    private void startNext() {
+        while (!cancelled && running.size() < maxConcurrent && !queue.isEmpty()) {
+            DownloadSession session = queue.poll();
+            running.add(session);
+            if (firstStartTime == 0) {
+                firstStartTime = System.currentTimeMillis();
+            }
+            Log.d(TAG, "Starting " + session.getDeviceName() + " (" + running.size() + "/" + maxConcurrent
+                    + " running, " + queue.size() + " queued)");
+            session.start(sessionListener);
+            if (listener != null) {
+                listener.onSessionStarted(session);
+            }
+        }
+    }
+
+    private final DownloadSession.Listener sessionListener = new DownloadSession.Listener() {
+        @Override
+        public void onSessionProgress(DownloadSession session) {
+            if (listener != null) {
+                listener.onSessionProgress(session, getSummary());
+            }
+        }
+
+        @Override
+        public void onSessionDone(DownloadSession session) {
+            running.remove(session);
+            lastFinishTime = Math.max(lastFinishTime, session.getFinishTime());
+            // Место освобождено до сохранения файлов
+            startNext();
+
+            if (session.getState() == DownloadSession.State.COMPLETED) {
+                if (saveExecutor == null) {
+                    saveExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "DownloadSave"));
+                }
+                pendingSaves++;
+                saveExecutor.execute(() -> {
+                    try {
+                        session.save();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error saving " + session.getDeviceName(), e);
+                    }
+                    mainHandler.post(() -> {
+                        pendingSaves--;
+                        reportFinished(session);
+                    });
+                });
+            } else {
+                reportFinished(session);
+            }
+        }
+    };
+
+    private void reportFinished(DownloadSession session) {
+        Summary summary = getSummary();
+        Log.d(TAG, session.getDeviceName() + " finished: " + session.getState() + ", " + summary);
+        if (listener != null) {
+            listener.onSessionFinished(session, summary);
+        }
+        if (isIdle()) {
+            Log.i(TAG, "All downloads finished: " + summary);
+            if (saveExecutor != null) {
+                saveExecutor.shutdown();
+                saveExecutor = null;
+            }
+            if (listener != null) {
+                listener.onAllFinished(summary);
+            }
+        }
+    }
+}
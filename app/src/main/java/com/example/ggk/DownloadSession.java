@@ -0,0 +1,397 @@
+package com.example.ggk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Выгрузка одного логгера на собственном BluetoothService, без экрана.
+ * MT устройства получают команду SendData, обычные сами отдают дамп Start...End после подключения.
+ * Конец выгрузки - маркер End или пауза в данных; результат сохраняется в те же файлы,
+ * что пишут MTDataFragment и DataTransferFragment. Состояние меняется только на главном потоке.
+ */
+public class DownloadSession {
+    private static final String TAG = "DownloadSession";
+
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    // Подключение и первые данные; дальше - пауза в потоке как у фрагментов выгрузки
+    private static final long FIRST_DATA_TIMEOUT = 30000;
+    private static final long MT_DATA_TIMEOUT = 3000;
+    private static final long LEGACY_DATA_TIMEOUT = 2000;
+    private static final long SEND_DATA_DELAY = 500;
+
+    public enum Protocol {
+        MT_SEND_DATA,
+        LEGACY_DUMP
+    }
+
+    public enum State {
+        QUEUED,
+        CONNECTING,
+        RECEIVING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    interface Listener {
+        void onSessionProgress(DownloadSession session);
+        void onSessionDone(DownloadSession session);
+    }
+
+    private final Context context;
+    private final String deviceAddress;
+    private final String deviceName;
+    private final Protocol protocol;
+    private final BleTransport transport;
+    private final Handler mainHandler;
+
+    private BluetoothService bluetoothService;
+    private Listener listener;
+
+    private State state = State.QUEUED;
+    private String error;
+    private final StringBuilder infoBuffer = new StringBuilder();
+    private boolean payloadStarted = false;
+    // Соединение оборвалось, BluetoothService переподключается
+    private boolean reconnecting = false;
+    private short[] samples = new short[4096];
+    private int sampleCount = 0;
+    private long bytesReceived = 0;
+    private long startTime = 0;
+    private long dataStartTime = 0;
+    private long finishTime = 0;
+
+    public DownloadSession(Context context, String deviceAddress, String deviceName) {
+        this(context, deviceAddress, deviceName, protocolFor(deviceName), null);
+    }
+
+    /** transport - канал вместо BluetoothGatt (симулятор); null - обычный GATT. */
+    public DownloadSession(Context context, String deviceAddress, String deviceName,
+                           Protocol protocol, BleTransport transport) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        this.deviceAddress = deviceAddress;
+        this.deviceName = deviceName;
+        this.protocol = protocol;
+        this.transport = transport;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /** MT устройства различаются по имени так же, как в списке доступных устройств. */
+    public static Protocol protocolFor(String deviceName) {
+        return deviceName != null && deviceName.startsWith("MT") ? Protocol.MT_SEND_DATA : Protocol.LEGACY_DUMP;
+    }
+
+    // Главный поток
+    void start(Listener listener) {
+        if (state != State.QUEUED) return;
+        this.listener = listener;
+        state = State.CONNECTING;
+        startTime = System.currentTimeMillis();
+
+        Log.d(TAG, "Starting download from " + deviceName + " (" + deviceAddress + "), protocol " + protocol);
+
+        bluetoothService = new BluetoothService(context, transport);
+        bluetoothService.setCallback(bluetoothCallback);
+        bluetoothService.setPayloadListener(payloadListener);
+        bluetoothService.setRawTextMode(false);
+        // Экрана нет: числа в тексте не нужны, события приходят раз в секунду
+        bluetoothService.setConsoleEnabled(false);
+        bluetoothService.setUiVisible(false);
+        bluetoothService.connect(deviceAddress, SERVICE_UUID, READ_UUID, BluetoothService.LinkProfile.BULK_TRANSFER);
+
+        mainHandler.postDelayed(timeoutRunnable, FIRST_DATA_TIMEOUT);
+    }
+
+    // Главный поток
+    void cancel() {
+        if (isFinished()) return;
+        finish(State.CANCELLED, null);
+    }
+
+    private final BluetoothService.BluetoothCallback bluetoothCallback = new BluetoothService.BluetoothCallback() {
+        @Override
+        public void onConnectionStateChange(boolean connected) {
+            Log.d(TAG, deviceName + " connection: " + connected);
+            if (!connected && reconnecting && !isFinished()) {
+                // Попытки переподключения кончились
+                finish(State.FAILED, "Соединение потеряно");
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            if (isFinished()) return;
+            if (!success) {
+                finish(State.FAILED, "Ошибка обнаружения сервисов");
+                return;
+            }
+            if (reconnecting) {
+                // Устройство отдает дамп с начала - принятое до обрыва отбрасывается
+                reconnecting = false;
+                Log.d(TAG, deviceName + ": reconnected, restarting dump (" + sampleCount + " values dropped)");
+                payloadStarted = false;
+                sampleCount = 0;
+                infoBuffer.setLength(0);
+                state = State.CONNECTING;
+                mainHandler.removeCallbacks(timeoutRunnable);
+                mainHandler.postDelayed(timeoutRunnable, FIRST_DATA_TIMEOUT);
+            }
+            if (protocol == Protocol.MT_SEND_DATA) {
+                mainHandler.postDelayed(sendDataRunnable, SEND_DATA_DELAY);
+            }
+        }
+
+        @Override
+        public void onDataReceived(byte[] data, String formattedData) {}
+
+        @Override
+        public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            if (isFinished()) return;
+            bytesReceived = totalBytes;
+            // Текст до Start - информация обычного устройства (info.txt)
+            if (protocol == Protocol.LEGACY_DUMP && !payloadStarted) {
+                infoBuffer.append(formattedBatch);
+            }
+            if (state == State.RECEIVING) {
+                restartDataTimeout();
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            Log.d(TAG, deviceName + ": " + message);
+        }
+
+        @Override
+        public void onReconnectAttempt(int attempt, int maxAttempts) {
+            Log.d(TAG, deviceName + " reconnect " + attempt + "/" + maxAttempts);
+            if (isFinished()) return;
+            // Пауза на время переподключения - не конец выгрузки
+            reconnecting = true;
+            mainHandler.removeCallbacks(sendDataRunnable);
+            mainHandler.removeCallbacks(timeoutRunnable);
+            mainHandler.postDelayed(timeoutRunnable, FIRST_DATA_TIMEOUT);
+        }
+    };
+
+    private final BluetoothService.PayloadListener payloadListener = new BluetoothService.PayloadListener() {
+        @Override
+        public void onPayloadStarted() {
+            if (isFinished() || reconnecting || payloadStarted) return;
+            payloadStarted = true;
+            if (dataStartTime == 0) {
+                dataStartTime = System.currentTimeMillis();
+            }
+            int startIndex = infoBuffer.lastIndexOf("Start");
+            if (startIndex >= 0) {
+                infoBuffer.setLength(startIndex);
+            }
+            onReceiving();
+        }
+
+        @Override
+        public void onSamplesReceived(short[] values, long totalBytes, double kbPerSecond) {
+            if (isFinished() || reconnecting) return;
+            bytesReceived = totalBytes;
+            if (sampleCount + values.length > samples.length) {
+                samples = java.util.Arrays.copyOf(samples, Math.max(samples.length * 2, sampleCount + values.length));
+            }
+            System.arraycopy(values, 0, samples, sampleCount, values.length);
+            sampleCount += values.length;
+            onReceiving();
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            if (isFinished()) return;
+            Log.d(TAG, deviceName + ": End marker, " + sampleCount + " values");
+            finish(State.COMPLETED, null);
+        }
+    };
+
+    private final Runnable sendDataRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isFinished()) return;
+            dataStartTime = System.currentTimeMillis();
+            if (!bluetoothService.sendCommand("SendData\r")) {
+                finish(State.FAILED, "Не удалось отправить SendData");
+                return;
+            }
+            Log.d(TAG, deviceName + ": SendData sent");
+        }
+    };
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isFinished()) return;
+            if (reconnecting) {
+                finish(State.FAILED, "Соединение потеряно");
+            } else if (sampleCount > 0) {
+                // Поток затих - выгрузка закончилась (MT устройства End не присылают)
+                finish(State.COMPLETED, null);
+            } else {
+                finish(State.FAILED, state == State.CONNECTING ? "Нет соединения" : "Данные не получены");
+            }
+        }
+    };
+
+    private void onReceiving() {
+        if (state == State.CONNECTING) {
+            state = State.RECEIVING;
+        }
+        restartDataTimeout();
+        if (listener != null) {
+            listener.onSessionProgress(this);
+        }
+    }
+
+    private void restartDataTimeout() {
+        mainHandler.removeCallbacks(timeoutRunnable);
+        mainHandler.postDelayed(timeoutRunnable,
+                protocol == Protocol.MT_SEND_DATA ? MT_DATA_TIMEOUT : LEGACY_DATA_TIMEOUT);
+    }
+
+    private void finish(State finalState, String message) {
+        state = finalState;
+        error = message;
+        finishTime = System.currentTimeMillis();
+        mainHandler.removeCallbacks(timeoutRunnable);
+        mainHandler.removeCallbacks(sendDataRunnable);
+
+        if (finalState == State.FAILED) {
+            Log.e(TAG, deviceName + " download failed: " + message);
+        } else {
+            Log.d(TAG, deviceName + " download " + finalState + ": " + sampleCount + " values, "
+                    + bytesReceived + " bytes in " + getDurationMs() + " ms");
+        }
+
+        if (bluetoothService != null) {
+            BluetoothService service = bluetoothService;
+            bluetoothService = null;
+            bytesReceived = Math.max(bytesReceived, service.getTransferStatistics().bytes);
+            // Соединение освобождается сразу - следующий логгер может подключаться;
+            // MT устройству сначала уходит Stop
+            if (protocol == Protocol.MT_SEND_DATA && service.isConnected()
+                    && service.sendCommand("Stop\r", (success, status) -> mainHandler.post(service::close))) {
+                Log.d(TAG, deviceName + ": Stop sent, closing after write");
+            } else {
+                service.close();
+            }
+        }
+
+        if (listener != null) {
+            listener.onSessionDone(this);
+        }
+    }
+
+    /**
+     * Сохраняет принятые данные в папку устройства. Только для COMPLETED, вызывать не с главного потока.
+     */
+    void save() throws IOException {
+        if (state != State.COMPLETED) return;
+        if (protocol == Protocol.MT_SEND_DATA) {
+            saveMTData();
+        } else {
+            saveLegacyData();
+        }
+    }
+
+    // Как MTDataFragment: аномальные значения отбрасываются, порядок от старых к новым
+    private void saveMTData() throws IOException {
+        double[] values = new double[sampleCount];
+        int count = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            short value = samples[i];
+            if ((value & 0xFF) == 0 && Math.abs(value) > 1000) {
+                continue;
+            }
+            values[count++] = value;
+        }
+        if (count < values.length) {
+            values = java.util.Arrays.copyOf(values, count);
+        }
+        MTDeviceDataHelper.saveMTData(context, deviceName, deviceAddress, values, dataStartTime, false);
+    }
+
+    // Как DataTransferFragment: info.txt и data.txt в обратном порядке, последняя точка - начало выгрузки
+    private void saveLegacyData() throws IOException {
+        File deviceFolder = new File(context.getFilesDir(), DeviceInfoHelper.sanitizeFileName(deviceName));
+        if (!deviceFolder.exists()) {
+            deviceFolder.mkdirs();
+        }
+
+        DeviceInfoHelper.saveDeviceAddress(context, deviceName, deviceAddress);
+
+        try (FileWriter writer = new FileWriter(new File(deviceFolder, "info.txt"))) {
+            writer.write(infoBuffer.toString());
+        }
+
+        try (FileWriter writer = new FileWriter(new File(deviceFolder, "data.txt"))) {
+            SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss", Locale.getDefault());
+            long endTime = dataStartTime - (sampleCount * 1000L);
+            for (int i = 0; i < sampleCount; i++) {
+                long timestamp = endTime + (i * 1000L);
+                writer.write(samples[sampleCount - 1 - i] + ";" + sdf.format(new Date(timestamp)) + "\n");
+            }
+        }
+    }
+
+    public boolean isFinished() {
+        return state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getFinishTime() {
+        return finishTime;
+    }
+
+    public long getDurationMs() {
+        if (startTime == 0) return 0;
+        return (finishTime > 0 ? finishTime : System.currentTimeMillis()) - startTime;
+    }
+}
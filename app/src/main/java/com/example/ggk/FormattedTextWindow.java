@@ -0,0 +1,66 @@
+package com.example.ggk;
+
+/**
+ * Ограниченное окно отформатированного текста для консоли.
+ * Новые фрагменты дописываются в конец, старые строки отбрасываются с начала.
+ * Обрезка идет с запасом (до 3/4 емкости) и по границе строки, поэтому выполняется
+ * редко, а окно не начинается с половины строки.
+ */
+public class FormattedTextWindow implements CharSequence {
+    private final int capacity;
+    private final StringBuilder text;
+
+    public FormattedTextWindow(int capacity) {
+        this.capacity = capacity;
+        this.text = new StringBuilder(capacity + capacity / 4);
+    }
+
+    public void append(CharSequence fragment) {
+        text.append(fragment);
+        if (text.length() > capacity) {
+            trim();
+        }
+    }
+
+    /** Отбрасывает начало окна до позиции end (например, текст до маркера Start). */
+    public void removeHead(int end) {
+        text.delete(0, Math.min(end, text.length()));
+    }
+
+    public int lastIndexOf(String value) {
+        return text.lastIndexOf(value);
+    }
+
+    public void clear() {
+        text.setLength(0);
+    }
+
+    private void trim() {
+        int cut = text.length() - capacity * 3 / 4;
+        int lineEnd = text.indexOf("\n", cut);
+        if (lineEnd >= 0 && lineEnd < text.length() - 1) {
+            cut = lineEnd + 1;
+        }
+        text.delete(0, cut);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.ggk;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Параметры GATT соединения по адресу устройства, запомненные после успешной настройки:
+ * согласованный MTU и выбранные характеристики. При повторном подключении к тому же адресу
+ * BluetoothService не повторяет обмен MTU, если устройство его не поддерживает, и берет
+ * характеристики без перебора; после обрыва - без повторного поиска сервисов.
+ * Живет до конца процесса, потокобезопасен.
+ */
+public final class GattLayoutCache {
+
+    /** Запомненная настройка одного устройства. */
+    public static final class Layout {
+        public final UUID serviceUuid;
+        public final UUID readCharacteristicUuid;
+        public final UUID writeCharacteristicUuid;
+        // 0 - обмен MTU еще не проходил; DEFAULT (23) - устройство больший MTU не принимает
+        public final int mtu;
+
+        Layout(UUID serviceUuid, UUID readCharacteristicUuid, UUID writeCharacteristicUuid, int mtu) {
+            this.serviceUuid = serviceUuid;
+            this.readCharacteristicUuid = readCharacteristicUuid;
+            this.writeCharacteristicUuid = writeCharacteristicUuid;
+            this.mtu = mtu;
+        }
+
+        /** Запомнено для того же сервиса и той же характеристики уведомлений. */
+        public boolean matches(UUID serviceUuid, UUID readCharacteristicUuid) {
+            return this.serviceUuid.equals(serviceUuid)
+                    && (readCharacteristicUuid == null || readCharacteristicUuid.equals(this.readCharacteristicUuid));
+        }
+    }
+
+    private static final Map<String, Layout> layouts = new HashMap<>();
+    private static final Map<String, Integer> mtus = new HashMap<>();
+
+    private GattLayoutCache() {
+    }
+
+    public static synchronized Layout get(String deviceAddress) {
+        return deviceAddress != null ? layouts.get(deviceAddress) : null;
+    }
+
+    /** MTU, согласованный с устройством в прошлый раз; 0 - неизвестен. */
+    public static synchronized int getMtu(String deviceAddress) {
+        Integer mtu = deviceAddress != null ? mtus.get(deviceAddress) : null;
+        return mtu != null ? mtu : 0;
+    }
+
+    public static synchronized void putMtu(String deviceAddress, int mtu) {
+        if (deviceAddress == null) return;
+        mtus.put(deviceAddress, mtu);
+    }
+
+    public static synchronized void put(String deviceAddress, UUID serviceUuid,
+                                        UUID readCharacteristicUuid, UUID writeCharacteristicUuid) {
+        if (deviceAddress == null || serviceUuid == null) return;
+        layouts.put(deviceAddress, new Layout(serviceUuid, readCharacteristicUuid, writeCharacteristicUuid,
+                getMtu(deviceAddress)));
+    }
+
+    /** Запомненное не подошло (сервис изменился, запись не прошла) - в следующий раз полный поиск. */
+    public static synchronized void invalidate(String deviceAddress) {
+        if (deviceAddress == null) return;
+        layouts.remove(deviceAddress);
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.ggk;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Последовательная очередь GATT операций одного соединения.
+ * Android допускает только одну незавершенную операцию, поэтому запись характеристики,
+ * запись дескриптора и запрос MTU ставятся в очередь и завершаются в соответствующих
+ * callbacks либо по таймауту. Запись без ответа тоже ждет своего onCharacteristicWrite
+ * (стек принял пакет) - следующая операция стартует по подтверждению, а не по опросу.
+ * Вся работа выполняется на потоке переданного Handler, там же вызываются Completion.
+ */
+@SuppressLint("MissingPermission")
+public class GattOperationQueue {
+    private static final String TAG = "GattOperationQueue";
+    private static final long OPERATION_TIMEOUT = 5000;
+    // Занят стек чужой операцией (не из очереди) - редкий случай, повтор с паузой
+    private static final long BUSY_RETRY_DELAY = 5;
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final int DEFAULT_MTU = 23;
+
+    public static final int STATUS_TIMEOUT = -1;
+
+    private static final int STARTED = 0;
+    private static final int BUSY = 1;
+    private static final int FAILED = 2;
+
+    public interface Completion {
+        void onComplete(boolean success, int status);
+    }
+
+    private abstract static class Operation {
+        final String name;
+        final Completion completion;
+        long firstAttemptTime = 0;
+
+        Operation(String name, Completion completion) {
+            this.name = name;
+            this.completion = completion;
+        }
+
+        abstract int start(BluetoothGatt gatt);
+    }
+
+    private static class WriteOperation extends Operation {
+        private final BluetoothGattCharacteristic characteristic;
+        private final byte[] value;
+        private final int writeType;
+
+        WriteOperation(BluetoothGattCharacteristic characteristic, byte[] value, int writeType, Completion completion) {
+            super("write " + characteristic.getUuid(), completion);
+            this.characteristic = characteristic;
+            this.value = value;
+            this.writeType = writeType;
+        }
+
+        @Override
+        int start(BluetoothGatt gatt) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                int result = gatt.writeCharacteristic(characteristic, value, writeType);
+                if (result == BluetoothStatusCodes.SUCCESS) {
+                    return STARTED;
+                }
+                return result == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY ? BUSY : FAILED;
+            }
+
+            characteristic.setWriteType(writeType);
+            characteristic.setValue(value);
+            if (gatt.writeCharacteristic(characteristic)) {
+                return STARTED;
+            }
+            // До API 33 false для записи без ответа обычно означает занятый стек - повторяем
+            return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? BUSY : FAILED;
+        }
+    }
+
+    private static class DescriptorWriteOperation extends Operation {
+        private final BluetoothGattDescriptor descriptor;
+        private final byte[] value;
+
+        DescriptorWriteOperation(BluetoothGattDescriptor descriptor, byte[] value, Completion completion) {
+            super("descriptor " + descriptor.getUuid(), completion);
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+
+        @Override
+        int start(BluetoothGatt gatt) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                int result = gatt.writeDescriptor(descriptor, value);
+                if (result == BluetoothStatusCodes.SUCCESS) {
+                    return STARTED;
+                }
+                return result == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY ? BUSY : FAILED;
+            }
+
+            descriptor.setValue(value);
+            return gatt.writeDescriptor(descriptor) ? STARTED : FAILED;
+        }
+    }
+
+    private static class MtuOperation extends Operation {
+        private final int mtu;
+
+        MtuOperation(int mtu, Completion completion) {
+            super("mtu " + mtu, completion);
+            this.mtu = mtu;
+        }
+
+        @Override
+        int start(BluetoothGatt gatt) {
+            return gatt.requestMtu(mtu) ? STARTED : FAILED;
+        }
+    }
+
+    // Завершает исходный запрос после всех частей длинной записи или на первой ошибке
+    private static class ChunkedCompletion implements Completion {
+        private final Completion completion;
+        private int remaining;
+        private boolean done = false;
+
+        ChunkedCompletion(Completion completion, int parts) {
+            this.completion = completion;
+            this.remaining = parts;
+        }
+
+        @Override
+        public void onComplete(boolean success, int status) {
+            if (done) return;
+            remaining--;
+            if (!success || remaining == 0) {
+                done = true;
+                if (completion != null) {
+                    completion.onComplete(success, status);
+                }
+            }
+        }
+    }
+
+    private final Handler handler;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private Operation current;
+    private BluetoothGatt gatt;
+    private int mtu = DEFAULT_MTU;
+
+    public GattOperationQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /** Привязывает очередь к новому соединению. */
+    public void attach(BluetoothGatt gatt) {
+        runOnQueueThread(() -> {
+            failAll();
+            this.gatt = gatt;
+            mtu = DEFAULT_MTU;
+        });
+    }
+
+    /** Завершает с ошибкой все операции (разрыв соединения). */
+    public void clear() {
+        runOnQueueThread(() -> {
+            failAll();
+            gatt = null;
+        });
+    }
+
+    /** Запись с разбиением на части по текущему MTU. Completion - после последней части. */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                    int writeType, Completion completion) {
+        runOnQueueThread(() -> {
+            int chunkSize = Math.max(1, mtu - ATT_HEADER_SIZE);
+            int parts = Math.max(1, (value.length + chunkSize - 1) / chunkSize);
+            Completion partCompletion = parts == 1 ? completion : new ChunkedCompletion(completion, parts);
+
+            for (int offset = 0, part = 0; part < parts; part++, offset += chunkSize) {
+                int length = Math.min(chunkSize, value.length - offset);
+                byte[] chunk = parts == 1 ? value : java.util.Arrays.copyOfRange(value, offset, offset + length);
+                pending.add(new WriteOperation(characteristic, chunk, writeType, partCompletion));
+            }
+            next();
+        });
+    }
+
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Completion completion) {
+        runOnQueueThread(() -> {
+            pending.add(new DescriptorWriteOperation(descriptor, value, completion));
+            next();
+        });
+    }
+
+    public void requestMtu(int mtu, Completion completion) {
+        runOnQueueThread(() -> {
+            pending.add(new MtuOperation(mtu, completion));
+            next();
+        });
+    }
+
+    public void onCharacteristicWrite(int status) {
+        runOnQueueThread(() -> {
+            // Для записи без ответа - стек принял пакет и готов к следующей операции
+            if (current instanceof WriteOperation) {
+                complete(status);
+            }
+        });
+    }
+
+    public void onDescriptorWrite(int status) {
+        runOnQueueThread(() -> {
+            if (current instanceof DescriptorWriteOperation) {
+                complete(status);
+            }
+        });
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        runOnQueueThread(() -> {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                this.mtu = mtu;
+            }
+            if (current instanceof MtuOperation) {
+                complete(status);
+            }
+        });
+    }
+
+    private void next() {
+        while (current == null && !pending.isEmpty()) {
+            Operation operation = pending.peek();
+
+            if (gatt == null) {
+                pending.poll();
+                finish(operation, false, BluetoothGatt.GATT_FAILURE);
+                continue;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (operation.firstAttemptTime == 0) {
+                operation.firstAttemptTime = now;
+            }
+
+            int result;
+            try {
+                result = operation.start(gatt);
+            } catch (Exception e) {
+                Log.e(TAG, "Error starting " + operation.name, e);
+                result = FAILED;
+            }
+
+            if (result == BUSY) {
+                if (now - operation.firstAttemptTime < OPERATION_TIMEOUT) {
+                    handler.removeCallbacks(nextRunnable);
+                    handler.postDelayed(nextRunnable, BUSY_RETRY_DELAY);
+                    return;
+                }
+                result = FAILED;
+            }
+
+            pending.poll();
+
+            if (result == FAILED) {
+                Log.e(TAG, "Failed to start " + operation.name);
+                finish(operation, false, BluetoothGatt.GATT_FAILURE);
+            } else {
+                current = operation;
+                handler.postDelayed(timeoutRunnable, OPERATION_TIMEOUT);
+            }
+        }
+    }
+
+    private void complete(int status) {
+        handler.removeCallbacks(timeoutRunnable);
+        Operation operation = current;
+        current = null;
+        finish(operation, status == BluetoothGatt.GATT_SUCCESS, status);
+        next();
+    }
+
+    private void finish(Operation operation, boolean success, int status) {
+        if (operation.completion == null) return;
+        try {
+            operation.completion.onComplete(success, status);
+        } catch (Exception e) {
+            Log.e(TAG, "Error in completion of " + operation.name, e);
+        }
+    }
+
+    private void failAll() {
+        handler.removeCallbacks(timeoutRunnable);
+        handler.removeCallbacks(nextRunnable);
+
+        Operation operation = current;
+        current = null;
+        if (operation != null) {
+            finish(operation, false, BluetoothGatt.GATT_FAILURE);
+        }
+        while ((operation = pending.poll()) != null) {
+            finish(operation, false, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    private void runOnQueueThread(Runnable runnable) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            runnable.run();
+        } else {
+            handler.post(runnable);
+        }
+    }
+
+    private final Runnable nextRunnable = this::next;
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (current == null) return;
+            Log.w(TAG, "Timeout: " + current.name);
+            Operation operation = current;
+            current = null;
+            finish(operation, false, STATUS_TIMEOUT);
+            next();
+        }
+    };
+}
@@ -0,0 +1,264 @@
+package com.example.ggk;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Поиск логгеров через BluetoothLeScanner вместо классического startDiscovery.
+ * Логгер виден с первого рекламного пакета (обычно за доли секунды), а не после inquiry на 5-12 с,
+ * телефоны и гарнитуры в список не попадают.
+ * Пока список на экране - SCAN_MODE_LOW_LATENCY, отбор в приложении (префикс имени MT фильтром
+ * контроллера не задать); в фоне - SCAN_MODE_LOW_POWER, фильтры по сервису FFF0 и адресам
+ * известных устройств в контроллере и пакетная выдача контроллера через reportDelay.
+ * Результаты одного устройства внутри пачки сливаются, Listener получает пачку не чаще раза
+ * в BATCH_INTERVAL. Все методы и события - на главном потоке.
+ */
+@SuppressLint("MissingPermission")
+public class LeDeviceScanner {
+    private static final String TAG = "LeDeviceScanner";
+
+    public static final UUID LOGGER_SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    public static final String MT_NAME_PREFIX = "MT";
+
+    // Пачка для списка на экране: один пересчет списка вместо десятков на каждый пакет
+    private static final long BATCH_INTERVAL = 250;
+    // Пачки контроллера в фоне, приложение просыпается раз в REPORT_DELAY
+    private static final long REPORT_DELAY = 2000;
+
+    public interface Listener {
+        /** Новые результаты, по одному на адрес (последний пакет). */
+        void onDevicesFound(List<ScanResult> results);
+
+        default void onScanFailed(int errorCode) {
+        }
+    }
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Set<String> knownAddresses = new HashSet<>();
+    private final Map<String, ScanResult> pending = new LinkedHashMap<>();
+    private BluetoothLeScanner scanner;
+    private boolean scanning = false;
+    private boolean visible = false;
+    private boolean flushScheduled = false;
+
+    public LeDeviceScanner(Context context, Listener listener) {
+        BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        this.bluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        this.listener = listener;
+    }
+
+    /**
+     * Адреса сохраненных устройств: ищутся фильтром контроллера, даже если не рекламируют FFF0
+     * и не называются MT*. Применяется со следующего start или setVisible.
+     */
+    public void setKnownAddresses(Collection<String> addresses) {
+        knownAddresses.clear();
+        for (String address : addresses) {
+            if (address != null) {
+                knownAddresses.add(address.toUpperCase(Locale.US));
+            }
+        }
+    }
+
+    /**
+     * Запускает поиск. visible - список на экране: быстрый режим и выдача без задержки контроллера.
+     * false - BLE недоступен или выключен.
+     */
+    public boolean start(boolean visible) {
+        if (scanning) {
+            setVisible(visible);
+            return true;
+        }
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            Log.w(TAG, "Bluetooth not available or not enabled");
+            return false;
+        }
+        scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.w(TAG, "LE scanner not available");
+            return false;
+        }
+
+        this.visible = visible;
+        try {
+            scanner.startScan(buildFilters(), buildSettings(), scanCallback);
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting LE scan", e);
+            scanner = null;
+            return false;
+        }
+        scanning = true;
+        Log.d(TAG, "LE scan started (" + (visible ? "foreground" : "background")
+                + ", " + knownAddresses.size() + " known)");
+        return true;
+    }
+
+    /** Экран списка показан или скрыт; идущий поиск перезапускается с другим режимом. */
+    public void setVisible(boolean visible) {
+        if (this.visible == visible) return;
+        if (scanning) {
+            stopScan();
+            start(visible);
+        } else {
+            this.visible = visible;
+        }
+    }
+
+    public void stop() {
+        if (!scanning) return;
+        stopScan();
+        mainHandler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        flush();
+        Log.d(TAG, "LE scan stopped");
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    private void stopScan() {
+        scanning = false;
+        BluetoothLeScanner current = scanner;
+        scanner = null;
+        if (current == null) return;
+        try {
+            if (!visible) {
+                // Пачка, накопленная контроллером, иначе пропадет
+                current.flushPendingScanResults(scanCallback);
+            }
+            current.stopScan(scanCallback);
+        } catch (Exception e) {
+            // Bluetooth выключили во время поиска
+            Log.w(TAG, "Error stopping LE scan", e);
+        }
+    }
+
+    private List<ScanFilter> buildFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (visible) {
+            // ScanFilter сравнивает имя только целиком - префикс MT проверяется в matches(),
+            // поэтому на экране поиск идет без фильтров контроллера
+            return filters;
+        }
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(LOGGER_SERVICE_UUID))
+                .build());
+        for (String address : knownAddresses) {
+            try {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid address skipped: " + address);
+            }
+        }
+        return filters;
+    }
+
+    private ScanSettings buildSettings() {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(visible ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_LOW_POWER)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        if (!visible && bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(REPORT_DELAY);
+        }
+        return builder.build();
+    }
+
+    /** Наш логгер: рекламирует FFF0, называется MT* или уже сохранен. */
+    public boolean matches(ScanResult result) {
+        if (result.getDevice() == null) return false;
+        if (knownAddresses.contains(result.getDevice().getAddress().toUpperCase(Locale.US))) {
+            return true;
+        }
+        ScanRecord record = result.getScanRecord();
+        if (record == null) return false;
+        List<ParcelUuid> uuids = record.getServiceUuids();
+        if (uuids != null && uuids.contains(new ParcelUuid(LOGGER_SERVICE_UUID))) {
+            return true;
+        }
+        String name = record.getDeviceName();
+        return name != null && name.startsWith(MT_NAME_PREFIX);
+    }
+
+    /** Имя из рекламного пакета; у нового LE устройства BluetoothDevice.getName() часто null. */
+    public static String nameOf(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        String name = record != null ? record.getDeviceName() : null;
+        if (name == null && result.getDevice() != null) {
+            name = result.getDevice().getName();
+        }
+        return name;
+    }
+
+    private void add(ScanResult result) {
+        if (!matches(result)) return;
+        pending.put(result.getDevice().getAddress(), result);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            mainHandler.postDelayed(flushRunnable, BATCH_INTERVAL);
+        }
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+        List<ScanResult> batch = new ArrayList<>(pending.values());
+        pending.clear();
+        listener.onDevicesFound(batch);
+    }
+
+    // ScanCallback вызывается на главном потоке
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            add(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                add(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "LE scan failed: " + errorCode);
+            scanning = false;
+            scanner = null;
+            listener.onScanFailed(errorCode);
+        }
+    };
+}
@@ -0,0 +1,75 @@
+package com.example.ggk;
+
+/**
+ * Потоковое деление текста ответов MT устройства на строки по '\r' и '\n'.
+ * Каждый символ просматривается один раз; строка целиком внутри пришедшего куска отдается
+ * слушателю диапазоном самого куска, без копирования. Копируется только хвост, который
+ * продолжится в следующем куске. Пробелы по краям отбрасываются, пустые строки не отдаются.
+ */
+public class LineTokenizer {
+
+    public interface Listener {
+        /** Диапазон действителен только во время вызова. */
+        void onLine(CharSequence text, int offset, int length);
+    }
+
+    private final int maxLineLength;
+    // Начало строки из предыдущих кусков
+    private final StringBuilder carry = new StringBuilder();
+    // Строка без перевода строки длиннее maxLineLength - мусор, пропускается до терминатора
+    private boolean overflow = false;
+
+    public LineTokenizer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void push(CharSequence text, Listener listener) {
+        int end = text.length();
+        int lineStart = 0;
+
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '\r' && c != '\n') continue;
+
+            if (carry.length() > 0 || overflow) {
+                appendCarry(text, lineStart, i);
+                if (!overflow) {
+                    emit(carry, 0, carry.length(), listener);
+                }
+                carry.setLength(0);
+                overflow = false;
+            } else if (i - lineStart <= maxLineLength) {
+                emit(text, lineStart, i, listener);
+            }
+            lineStart = i + 1;
+        }
+
+        if (lineStart < end) {
+            appendCarry(text, lineStart, end);
+        }
+    }
+
+    /** Сбрасывает недописанную строку (обрыв, отмена команд). */
+    public void reset() {
+        carry.setLength(0);
+        overflow = false;
+    }
+
+    private void appendCarry(CharSequence text, int start, int end) {
+        if (overflow) return;
+        if (carry.length() + end - start > maxLineLength) {
+            overflow = true;
+            carry.setLength(0);
+            return;
+        }
+        carry.append(text, start, end);
+    }
+
+    private static void emit(CharSequence text, int start, int end, Listener listener) {
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (end > start) {
+            listener.onLine(text, start, end - start);
+        }
+    }
+}
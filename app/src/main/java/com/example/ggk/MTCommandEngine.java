@@ -0,0 +1,267 @@
+package com.example.ggk;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Команды MT устройству без ожидания ответа на предыдущую.
+ * Устройство отвечает строкой "Имя значение", где Имя - команда без '?' и аргументов, поэтому
+ * ответ находится по имени, а не по очереди: до maxInFlight команд уходят подряд, и опрос занимает
+ * примерно один обмен плюс время передачи ответов. Команды с одним именем отвечаются по порядку.
+ * Ответ может занимать несколько строк: строки без имени команды дописываются к последнему
+ * ответу, пока не придет строка с именем другой команды, пауза quietGapMs или таймаут команды.
+ * Каждая команда получает свой CompletableFuture со значением ответа и свой таймаут
+ * (TimeoutException). Все методы и завершения future - на главном потоке.
+ */
+public class MTCommandEngine {
+    private static final String TAG = "MTCommandEngine";
+
+    // Входной буфер логгера невелик - больше нескольких коротких команд сразу не шлем
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_TIMEOUT = 5000;
+    // Тишина после строки ответа, после которой ответ считается полным;
+    // при скрытой консоли текст приходит раз в секунду - нужна пауза больше
+    public static final long DEFAULT_QUIET_GAP = 300;
+
+    private static final String COMMAND_TERMINATOR = "\r";
+    // Строка без перевода строки длиннее этого - мусор, а не ответ
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    /** Отправка строки устройству; MTConnectionCache.Connection::sendCommand. */
+    public interface Sender {
+        boolean send(String command, GattOperationQueue.Completion completion);
+    }
+
+    private static final class Pending {
+        final String command;
+        final String name;
+        final long timeoutMs;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        // Строки ответа; первая - после имени команды
+        final StringBuilder value = new StringBuilder();
+        Runnable timeoutRunnable;
+
+        Pending(String command, long timeoutMs) {
+            this.command = command;
+            this.name = responseName(command);
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private final Sender sender;
+    private final int maxInFlight;
+    private final long quietGapMs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayDeque<Pending> queued = new ArrayDeque<>();
+    private final List<Pending> inFlight = new ArrayList<>();
+    private final LineTokenizer tokenizer = new LineTokenizer(MAX_LINE_LENGTH);
+    // Ответ получен, ждем продолжения; место в inFlight уже освобождено
+    private Pending collecting;
+
+    public MTCommandEngine(Sender sender) {
+        this(sender, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public MTCommandEngine(Sender sender, int maxInFlight) {
+        this(sender, maxInFlight, DEFAULT_QUIET_GAP);
+    }
+
+    public MTCommandEngine(Sender sender, int maxInFlight, long quietGapMs) {
+        this.sender = sender;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.quietGapMs = quietGapMs;
+    }
+
+    /** Имя, с которого начинается ответ: "Idn?" -> "Idn", "Units 2" и "Units=2" -> "Units". */
+    static String responseName(String command) {
+        String name = command.trim();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ' ' || c == '=' || c == '?') {
+                return name.substring(0, i);
+            }
+        }
+        return name;
+    }
+
+    public CompletableFuture<String> submit(String command) {
+        return submit(command, DEFAULT_TIMEOUT);
+    }
+
+    /** Команда без терминатора; future получает ответ без имени команды. */
+    public CompletableFuture<String> submit(String command, long timeoutMs) {
+        Pending pending = new Pending(command, timeoutMs);
+        queued.add(pending);
+        pump();
+        return pending.future;
+    }
+
+    /** Текст из уведомлений FFF1 (onDataBatch); строка может прийти по частям. */
+    public void onText(CharSequence text) {
+        tokenizer.push(text, lineListener);
+        if (collecting != null) {
+            // Поток идет - пауза отсчитывается заново, даже если строка еще не закончена
+            mainHandler.removeCallbacks(quietRunnable);
+            mainHandler.postDelayed(quietRunnable, quietGapMs);
+        }
+    }
+
+    /** Команды отправлены, ждут очереди или ответ еще дописывается. */
+    public boolean isBusy() {
+        return !inFlight.isEmpty() || !queued.isEmpty() || collecting != null;
+    }
+
+    /** Обрыв или остановка: все незавершенные команды завершаются ошибкой. */
+    public void cancelAll(String reason) {
+        List<Pending> cancelled = new ArrayList<>(inFlight);
+        cancelled.addAll(queued);
+        if (collecting != null) {
+            cancelled.add(collecting);
+            collecting = null;
+            mainHandler.removeCallbacks(quietRunnable);
+        }
+        inFlight.clear();
+        queued.clear();
+        tokenizer.reset();
+        if (!cancelled.isEmpty()) {
+            Log.d(TAG, "Cancelled " + cancelled.size() + " commands: " + reason);
+        }
+        for (Pending pending : cancelled) {
+            if (pending.timeoutRunnable != null) {
+                mainHandler.removeCallbacks(pending.timeoutRunnable);
+            }
+            pending.future.completeExceptionally(new IllegalStateException(reason));
+        }
+    }
+
+    private void pump() {
+        while (inFlight.size() < maxInFlight && !queued.isEmpty()) {
+            Pending pending = queued.poll();
+            inFlight.add(pending);
+            pending.timeoutRunnable = () -> {
+                if (pending == collecting) {
+                    // Продолжение шло до самого таймаута - отдаем, что собрано
+                    finishCollecting();
+                    return;
+                }
+                Log.w(TAG, "Timeout: " + pending.command);
+                fail(pending, new TimeoutException(pending.command));
+            };
+            mainHandler.postDelayed(pending.timeoutRunnable, pending.timeoutMs);
+
+            boolean sent = sender.send(pending.command + COMMAND_TERMINATOR, (success, status) -> {
+                if (!success) {
+                    mainHandler.post(() -> fail(pending, new IllegalStateException("Write failed: " + status)));
+                }
+            });
+            if (!sent) {
+                Log.e(TAG, "Failed to send: " + pending.command);
+                fail(pending, new IllegalStateException("Not sent"));
+            }
+        }
+    }
+
+    private final LineTokenizer.Listener lineListener = new LineTokenizer.Listener() {
+        @Override
+        public void onLine(CharSequence text, int offset, int length) {
+            dispatch(text, offset, offset + length);
+        }
+    };
+
+    private final Runnable quietRunnable = this::finishCollecting;
+
+    // Строка text[start, end) сравнивается с именами на месте, копируется только значение ответа
+    private void dispatch(CharSequence text, int start, int end) {
+        Pending match = null;
+        int valueStart = 0;
+        for (Pending pending : inFlight) {
+            if (isNameAt(text, start, start, end, pending.name)) {
+                match = pending;
+                valueStart = start + pending.name.length();
+                break;
+            }
+        }
+        if (match == null && collecting != null) {
+            // Строка без имени команды - продолжение собираемого ответа
+            collecting.value.append('\n').append(text, start, end);
+            return;
+        }
+        if (match == null) {
+            // Перед именем бывает остаток предыдущего ответа - ищем имя внутри строки
+            // отдельным словом, чтобы Units не совпало с началом UnitsAll
+            for (Pending pending : inFlight) {
+                int index = lastIndexOf(text, start, end, pending.name);
+                if (index > start) {
+                    match = pending;
+                    valueStart = index + pending.name.length();
+                    break;
+                }
+            }
+        }
+        if (match == null) {
+            Log.d(TAG, "Unmatched line of " + (end - start) + " chars");
+            return;
+        }
+
+        // Имя другой команды - предыдущий ответ закончился
+        finishCollecting();
+        while (valueStart < end && text.charAt(valueStart) <= ' ') valueStart++;
+        if (valueStart < end && text.charAt(valueStart) == '?') {
+            // Эхо самой команды, ответ еще впереди
+            return;
+        }
+        inFlight.remove(match);
+        match.value.append(text, valueStart, end);
+        collecting = match;
+        mainHandler.postDelayed(quietRunnable, quietGapMs);
+        pump();
+    }
+
+    private void finishCollecting() {
+        Pending pending = collecting;
+        if (pending == null) return;
+        collecting = null;
+        mainHandler.removeCallbacks(quietRunnable);
+        mainHandler.removeCallbacks(pending.timeoutRunnable);
+        pending.future.complete(pending.value.toString());
+    }
+
+    private static boolean regionMatches(CharSequence text, int index, int end, String name) {
+        if (end - index < name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (text.charAt(index + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Имя с границами слова: до и после него не буква и не цифра (или край строки)
+    private static boolean isNameAt(CharSequence text, int start, int index, int end, String name) {
+        if (!regionMatches(text, index, end, name)) return false;
+        int nameEnd = index + name.length();
+        return (index == start || !Character.isLetterOrDigit(text.charAt(index - 1)))
+                && (nameEnd == end || !Character.isLetterOrDigit(text.charAt(nameEnd)));
+    }
+
+    private static int lastIndexOf(CharSequence text, int start, int end, String name) {
+        for (int index = end - name.length(); index >= start; index--) {
+            if (isNameAt(text, start, index, end, name)) return index;
+        }
+        return -1;
+    }
+
+    private void fail(Pending pending, Exception error) {
+        // Уже завершена ответом или отменой
+        if (!inFlight.remove(pending)) return;
+        mainHandler.removeCallbacks(pending.timeoutRunnable);
+        pending.future.completeExceptionally(error);
+        pump();
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.ggk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Общие соединения с MT устройствами по адресу.
+ * Вкладки, диалоги и выгрузка берут соединение через acquire и возвращают через release,
+ * так что переход между экранами не стоит повторного подключения, согласования MTU и поиска сервисов.
+ * Когда соединение никому не нужно, оно держится еще IDLE_TIMEOUT и только потом закрывается.
+ * Все методы и события - на главном потоке.
+ */
+public final class MTConnectionCache {
+    private static final String TAG = "MTConnectionCache";
+
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    // Смена вкладки или поворот экрана укладываются, а батарея логгера зря не тратится
+    private static final long IDLE_TIMEOUT = 30000;
+
+    private static MTConnectionCache instance;
+
+    private final Map<String, Connection> connections = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static MTConnectionCache getInstance() {
+        if (instance == null) {
+            instance = new MTConnectionCache();
+        }
+        return instance;
+    }
+
+    private MTConnectionCache() {
+    }
+
+    /** Соединение с устройством; каждому acquire должен соответствовать release. */
+    public Connection acquire(Context context, String deviceAddress) {
+        return acquire(context, deviceAddress, null);
+    }
+
+    /** transport - канал вместо BluetoothGatt (симулятор) для нового соединения; null - обычный GATT. */
+    Connection acquire(Context context, String deviceAddress, BleTransport transport) {
+        Connection connection = connections.get(deviceAddress);
+        if (connection == null) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            connection = new Connection(appContext, deviceAddress, transport);
+            connections.put(deviceAddress, connection);
+            Log.d(TAG, "Connection created: " + deviceAddress);
+        } else {
+            mainHandler.removeCallbacks(connection.idleRunnable);
+        }
+        connection.refCount++;
+        Log.d(TAG, "Acquired " + deviceAddress + " (refs: " + connection.refCount + ")");
+        return connection;
+    }
+
+    /** Освобождает соединение; последнее освобождение запускает таймер отключения. */
+    public void release(Connection connection) {
+        if (connection == null || connection.closed || connection.refCount == 0) return;
+        connection.refCount--;
+        Log.d(TAG, "Released " + connection.deviceAddress + " (refs: " + connection.refCount + ")");
+        if (connection.refCount == 0) {
+            mainHandler.postDelayed(connection.idleRunnable, IDLE_TIMEOUT);
+        }
+    }
+
+    /** Экран устройства закрыт - неиспользуемое соединение закрывается сразу, без ожидания. */
+    public void closeIfIdle(String deviceAddress) {
+        Connection connection = connections.get(deviceAddress);
+        if (connection != null && connection.refCount == 0) {
+            mainHandler.removeCallbacks(connection.idleRunnable);
+            close(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connections.get(connection.deviceAddress) == connection) {
+            connections.remove(connection.deviceAddress);
+        }
+        connection.close();
+    }
+
+    /**
+     * Одно GATT соединение с MT устройством: команды в FFF2, ответы через уведомления FFF1.
+     * События BluetoothService раздаются всем подписанным экранам; отсчеты выгрузки (PayloadListener)
+     * получает только тот, кто занял соединение через beginTransfer.
+     */
+    public final class Connection {
+        private final String deviceAddress;
+        private final BluetoothService bluetoothService;
+        private final List<BluetoothService.BluetoothCallback> callbacks = new ArrayList<>();
+        private int refCount = 0;
+        private boolean ready = false;
+        private boolean closed = false;
+
+        private final Runnable idleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (refCount == 0) {
+                    Log.d(TAG, "Idle timeout, closing " + deviceAddress);
+                    MTConnectionCache.this.close(Connection.this);
+                }
+            }
+        };
+
+        private Connection(Context context, String deviceAddress, BleTransport transport) {
+            this.deviceAddress = deviceAddress;
+            this.bluetoothService = new BluetoothService(context, transport);
+            bluetoothService.setCallback(fanOut);
+            applyCommandMode();
+        }
+
+        public String getDeviceAddress() {
+            return deviceAddress;
+        }
+
+        /** Для настроек выгрузки (профиль, ожидаемый размер, статистика). Callback не менять. */
+        public BluetoothService getBluetoothService() {
+            return bluetoothService;
+        }
+
+        public void addCallback(BluetoothService.BluetoothCallback callback) {
+            if (!callbacks.contains(callback)) {
+                callbacks.add(callback);
+            }
+        }
+
+        public void removeCallback(BluetoothService.BluetoothCallback callback) {
+            callbacks.remove(callback);
+        }
+
+        /** Сервисы найдены, можно отправлять команды. */
+        public boolean isReady() {
+            return ready && bluetoothService.isConnected();
+        }
+
+        /** Подключается, если соединения еще нет; готовность приходит через onServicesDiscovered. */
+        public void ensureConnected(BluetoothService.LinkProfile profile) {
+            if (closed) return;
+            if (bluetoothService.isConnected() || bluetoothService.isConnecting()) {
+                if (profile != BluetoothService.LinkProfile.BALANCED) {
+                    bluetoothService.setLinkProfile(profile);
+                }
+                return;
+            }
+            ready = false;
+            Log.d(TAG, "Connecting " + deviceAddress + " (" + profile + ")");
+            bluetoothService.connectForMTDevice(deviceAddress, SERVICE_UUID, READ_UUID, WRITE_UUID, profile);
+        }
+
+        public boolean sendCommand(String command) {
+            return bluetoothService.sendCommand(command);
+        }
+
+        public boolean sendCommand(String command, GattOperationQueue.Completion completion) {
+            return bluetoothService.sendCommand(command, completion);
+        }
+
+        /**
+         * Соединение переходит к выгрузке: бинарный поток после Start, отсчеты - в listener.
+         * Счетчики скорости и разбор Start/End начинаются заново.
+         */
+        public void beginTransfer(BluetoothService.PayloadListener listener) {
+            bluetoothService.setPayloadListener(listener);
+            bluetoothService.setRawTextMode(false);
+            bluetoothService.resetTransferState();
+        }
+
+        /** Выгрузка закончена - обратно к командам. Статистика выгрузки сохраняется до следующей. */
+        public void endTransfer() {
+            bluetoothService.setPayloadListener(null);
+            bluetoothService.setLinkProfile(BluetoothService.LinkProfile.BALANCED);
+            bluetoothService.resetNumericMode();
+            applyCommandMode();
+        }
+
+        // Ответы на команды - чистый текст, доставка без задержки скрытого экрана
+        private void applyCommandMode() {
+            bluetoothService.setRawTextMode(true);
+            bluetoothService.setConsoleEnabled(true);
+            bluetoothService.setUiVisible(true);
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            ready = false;
+            callbacks.clear();
+            bluetoothService.close();
+            Log.d(TAG, "Connection closed: " + deviceAddress);
+        }
+
+        private final BluetoothService.BluetoothCallback fanOut = new BluetoothService.BluetoothCallback() {
+            @Override
+            public void onConnectionStateChange(boolean connected) {
+                if (!connected) {
+                    ready = false;
+                }
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onConnectionStateChange(connected);
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(boolean success) {
+                ready = success;
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onServicesDiscovered(success);
+                }
+            }
+
+            @Override
+            public void onDataReceived(byte[] data, String formattedData) {
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onDataReceived(data, formattedData);
+                }
+            }
+
+            @Override
+            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onDataBatch(formattedBatch, totalBytes, kbPerSecond);
+                }
+            }
+
+            @Override
+            public void onError(String message) {
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onError(message);
+                }
+            }
+
+            @Override
+            public void onReconnectAttempt(int attempt, int maxAttempts) {
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onReconnectAttempt(attempt, maxAttempts);
+                }
+            }
+
+            @Override
+            public void onLinkParametersChanged(BluetoothService.LinkParameters parameters) {
+                for (BluetoothService.BluetoothCallback callback : new ArrayList<>(callbacks)) {
+                    callback.onLinkParametersChanged(parameters);
+                }
+            }
+        };
+    }
+}
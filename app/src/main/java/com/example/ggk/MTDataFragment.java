@@ -1,7 +1,11 @@
 package com.example.ggk;
 
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -34,8 +38,6 @@ public class MTDataFragment extends Fragment {
     private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
     private static final long DATA_TIMEOUT = 3000; // 3 секунды без данных = конец передачи
 
-    private Integer pendingByte = null;  // Непарный байт из предыдущего chunk'а
-
     private String deviceAddress;
     private String deviceName;
 
@@ -50,6 +52,11 @@ public class MTDataFragment extends Fragment {
     private View emptyState;
     private MTDataAdapter dataAdapter;
 
+    // Соединение принадлежит TransferService и переживает поворот и смену вкладок
+    private TransferService transferService;
+    private boolean serviceBound = false;
+    private boolean pendingTransfer = false;
+    private TransferLink transferLink;
     private BluetoothService bluetoothService;
     private Handler mainHandler;
     private List<Double> receivedData = new ArrayList<>();
@@ -114,58 +121,66 @@ public class MTDataFragment extends Fragment {
     }
 
     private void initializeBluetooth() {
-        bluetoothService = new BluetoothService(requireContext());
-        bluetoothService.setCallback(new BluetoothService.BluetoothCallback() {
-            @Override
-            public void onConnectionStateChange(boolean connected) {
-                mainHandler.post(() -> {
-                    if (connected) {
-                        statusTextView.setText("Подключено. Готово к приему данных.");
-                        startButton.setEnabled(true);
-                    } else {
-                        statusTextView.setText("Отключено");
-                        startButton.setEnabled(false);
-                        stopButton.setEnabled(false);
-                        isReceivingData = false;
-                    }
-                });
-            }
+        // Соединение создается в сервисе при старте выгрузки или подхватывается уже идущее
+        serviceBound = requireContext().bindService(TransferService.intent(requireContext()),
+                serviceConnection, Context.BIND_AUTO_CREATE);
+    }
 
-            @Override
-            public void onServicesDiscovered(boolean success) {
-                if (!success) {
-                    mainHandler.post(() -> {
-                        statusTextView.setText("Ошибка обнаружения сервисов");
-                    });
-                }
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            transferService = ((TransferService.LocalBinder) service).getService();
+            if (getView() == null) return;
+
+            TransferLink link = transferService.getLink(deviceAddress);
+            if (link != null && link.isStarted() && !link.isClosed()) {
+                attachToLink(link);
+                restoreFromLink(link);
             }
-
-            @Override
-            public void onDataReceived(byte[] data, String formattedData) {
-                // Не используется
+            if (pendingTransfer) {
+                pendingTransfer = false;
+                continueDataTransfer();
             }
+        }
 
-            @Override
-            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
-                if (isReceivingData) {
-                    processReceivedData(formattedBatch);
-                }
-            }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            transferService = null;
+        }
+    };
 
-            @Override
-            public void onError(String message) {
-                mainHandler.post(() -> {
-                    Toast.makeText(getContext(), "Ошибка: " + message, Toast.LENGTH_SHORT).show();
-                });
-            }
+    private void attachToLink(TransferLink link) {
+        transferLink = link;
+        bluetoothService = link.getBluetoothService();
+        link.setObserver(bluetoothCallback, payloadListener);
+        // Текстовая консоль на этой вкладке не показывается
+        link.setConsoleEnabled(false);
+        link.setUiVisible(isResumed());
+    }
 
-            @Override
-            public void onReconnectAttempt(int attempt, int maxAttempts) {
-                mainHandler.post(() -> {
-                    statusTextView.setText(String.format("Переподключение %d/%d", attempt, maxAttempts));
-                });
-            }
-        });
+    // Экран пересоздан во время или после выгрузки - показываем принятое сервисом
+    private void restoreFromLink(TransferLink link) {
+        Log.d(TAG, "Restoring transfer: " + link.getSampleCount() + " values, finished: " + link.isPayloadFinished());
+
+        dataStartTime = link.getPayloadStartTime() > 0 ? link.getPayloadStartTime() : link.getStartTime();
+        receivedData.clear();
+        isReceivingData = link.isTransferring() || link.isPayloadFinished();
+
+        short[] samples = link.getSamples();
+        if (samples.length > 0) {
+            processReceivedSamples(samples);
+        }
+
+        if (link.isPayloadFinished()) {
+            mainHandler.removeCallbacks(dataTimeoutRunnable);
+            dataTimeoutRunnable.run();
+        } else if (isReceivingData) {
+            statusTextView.setText(link.isConnected() ? "Получение данных..." : "Подключение...");
+            progressIndicator.setVisibility(View.VISIBLE);
+            startButton.setEnabled(false);
+            stopButton.setEnabled(link.isConnected());
+            restartDataTimeout();
+        }
     }
 
     private final BluetoothService.BluetoothCallback bluetoothCallback = new BluetoothService.BluetoothCallback() {
@@ -216,9 +231,9 @@ public class MTDataFragment extends Fragment {
 
         @Override
         public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            // Числа приходят через payloadListener, здесь только признак активности потока
             if (isReceivingData) {
-                Log.d(TAG, "Received data batch: " + formattedBatch.length() + " chars");
-                processReceivedData(formattedBatch);
+                restartDataTimeout();
             }
         }
 
@@ -239,6 +254,34 @@ public class MTDataFragment extends Fragment {
                 statusTextView.setText(String.format("Переподключение %d/%d", attempt, maxAttempts));
             });
         }
+
+        @Override
+        public void onLinkParametersChanged(BluetoothService.LinkParameters parameters) {
+            Log.i(TAG, "=== CALLBACK: onLinkParametersChanged: " + parameters + " ===");
+        }
+    };
+
+    private final BluetoothService.PayloadListener payloadListener = new BluetoothService.PayloadListener() {
+        @Override
+        public void onPayloadStarted() {
+            Log.d(TAG, "Payload started");
+        }
+
+        @Override
+        public void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond) {
+            if (isReceivingData) {
+                processReceivedSamples(samples);
+            }
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            // Маркер 'End' - завершаем так же, как по таймауту, но без ожидания
+            if (isReceivingData) {
+                mainHandler.removeCallbacks(dataTimeoutRunnable);
+                dataTimeoutRunnable.run();
+            }
+        }
     };
 
     private void clearData() {
@@ -249,7 +292,6 @@ public class MTDataFragment extends Fragment {
         dataCountTextView.setText("Получено точек: 0");
         statusTextView.setText("Данные очищены");
         saveButton.setEnabled(false);
-        pendingByte = null;
         lastDataReceivedTime = 0;
         mainHandler.removeCallbacks(dataTimeoutRunnable);
     }
@@ -268,9 +310,20 @@ public class MTDataFragment extends Fragment {
     public void onDestroyView() {
         super.onDestroyView();
         mainHandler.removeCallbacks(dataTimeoutRunnable);
-        if (bluetoothService != null) {
-            bluetoothService.close();
+        if (transferLink != null) {
+            transferLink.setObserver(null, null);
+            if (requireActivity().isFinishing() && transferService != null) {
+                // Экран устройства закрыт - соединение больше не нужно
+                transferService.closeLink(deviceAddress);
+            }
         }
+        if (serviceBound) {
+            requireContext().unbindService(serviceConnection);
+            serviceBound = false;
+        }
+        transferService = null;
+        transferLink = null;
+        bluetoothService = null;
     }
 
     private boolean autoMode = false;
@@ -278,6 +331,9 @@ public class MTDataFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
+        if (transferLink != null) {
+            transferLink.setUiVisible(true);
+        }
 
         MTDeviceActivity activity = (MTDeviceActivity) getActivity();
         if (activity != null && activity.shouldAutoStartDataDownload()) {
@@ -291,6 +347,14 @@ public class MTDataFragment extends Fragment {
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (transferLink != null) {
+            transferLink.setUiVisible(false);
+        }
+    }
+
     private void startDataTransfer() {
         Log.d(TAG, "=== startDataTransfer CALLED ===");
 
@@ -327,15 +391,16 @@ public class MTDataFragment extends Fragment {
         Log.d(TAG, "=== continueDataTransfer ===");
         Log.d(TAG, "autoMode: " + autoMode);
 
-        if (bluetoothService != null) {
-            bluetoothService.close();
-            bluetoothService = null;
+        if (transferService == null) {
+            // Сервис еще привязывается - продолжим в onServiceConnected
+            pendingTransfer = true;
+            return;
         }
 
-        bluetoothService = new BluetoothService(requireContext());
-        bluetoothService.setCallback(bluetoothCallback);
+        // Соединение общее с вкладкой информации: если оно уже открыто, SendData уходит сразу
+        attachToLink(transferService.openMTLink(deviceAddress));
 
-        Log.d(TAG, "BluetoothService created, callback set");
+        Log.d(TAG, "Transfer link opened, callback set");
 
         receivedData.clear();
         dataBuffer.setLength(0);
@@ -349,7 +414,12 @@ public class MTDataFragment extends Fragment {
 
         bluetoothService.setRawTextMode(false);
         Log.d(TAG, "Connecting to device...");
-        bluetoothService.connect(deviceAddress, SERVICE_UUID, READ_UUID);
+        transferLink.connect(SERVICE_UUID, READ_UUID, BluetoothService.LinkProfile.BULK_TRANSFER);
+        // Подключение сбрасывает статистику вместе с ожидаемым размером
+        MTDeviceActivity activity = (MTDeviceActivity) getActivity();
+        if (activity != null) {
+            bluetoothService.setExpectedSampleCount(activity.getExpectedDataSize());
+        }
 
         isReceivingData = true;
     }
@@ -442,102 +512,43 @@ public class MTDataFragment extends Fragment {
         }
     }
 
-    private void processReceivedData(String data) {
-        mainHandler.post(() -> {
-            Log.d(TAG, "=== processReceivedData ===");
-            Log.d(TAG, "Current receivedData.size BEFORE processing: " + receivedData.size());
-            Log.d(TAG, "Pending byte from previous chunk: " + pendingByte);
-
-            dataBuffer.append(data);
+    private void processReceivedSamples(short[] samples) {
+        int beforeSize = receivedData.size();
+        int anomalyCount = 0;
 
-            String[] lines = data.split("\\s+");
-            List<Integer> byteValues = new ArrayList<>();
+        for (short signedValue : samples) {
+            int lowByte = signedValue & 0xFF;
 
-            if (pendingByte != null) {
-                byteValues.add(pendingByte);
-                Log.d(TAG, "Added pending byte from previous chunk: " + pendingByte);
-                pendingByte = null;
-            }
-
-            for (String line : lines) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
+            // КРИТИЧНО: Фильтруем аномальные значения
+            // Паттерн: lowByte = 0x00 и |value| > 1000 = явный мусор
+            boolean isAnomaly = (lowByte == 0 && Math.abs(signedValue) > 1000);
 
-                try {
-                    int value = Integer.parseInt(line);
-                    byteValues.add(value);
-                } catch (NumberFormatException e) {
-                    // Игнорируем нечисловые данные
-                }
-            }
-
-            Log.d(TAG, "Extracted " + byteValues.size() + " byte values from this chunk");
-
-            if (byteValues.size() % 2 == 1) {
-                pendingByte = byteValues.remove(byteValues.size() - 1);
-                Log.d(TAG, "Saved last byte for next chunk: " + pendingByte);
-            }
-
-            if (byteValues.size() >= 20) {
-                StringBuilder lastBytes = new StringBuilder("Last 20 bytes: ");
-                for (int i = byteValues.size() - 20; i < byteValues.size(); i++) {
-                    lastBytes.append(byteValues.get(i)).append(" ");
-                }
-                Log.d(TAG, lastBytes.toString());
+            if (isAnomaly) {
+                anomalyCount++;
+                continue;
             }
 
-            int beforeSize = receivedData.size();
-            int anomalyCount = 0;
-
-            for (int i = 0; i < byteValues.size() - 1; i += 2) {
-                int lowByte = byteValues.get(i);
-                int highByte = byteValues.get(i + 1);
-
-                short signedValue = (short)((highByte << 8) | lowByte);
-
-                // КРИТИЧНО: Фильтруем аномальные значения
-                // Паттерн: lowByte = 0x00 и |value| > 1000 = явный мусор
-                boolean isAnomaly = (lowByte == 0 && Math.abs(signedValue) > 1000);
-
-                if (isAnomaly) {
-                    anomalyCount++;
-                    Log.w(TAG, String.format("⚠️ FILTERED ANOMALY: [%3d, %3d] -> %6d (skipped)",
-                            lowByte, highByte, signedValue));
-                    continue;
-                }
-
-                receivedData.add((double)signedValue);
-
-                if (receivedData.size() <= 5) {
-                    Log.d(TAG, String.format("Pair: [%3d, %3d] -> int16: %6d",
-                            lowByte, highByte, signedValue));
-                }
-
-                if (i >= byteValues.size() - 20 && i < byteValues.size() - 1) {
-                    Log.d(TAG, String.format("LAST Pair %d: [%3d, %3d] -> int16: %6d",
-                            i/2, lowByte, highByte, signedValue));
-                }
-            }
+            receivedData.add((double) signedValue);
+        }
 
-            if (anomalyCount > 0) {
-                Log.w(TAG, "Filtered out " + anomalyCount + " anomalous values");
-            }
+        if (anomalyCount > 0) {
+            Log.w(TAG, "Filtered out " + anomalyCount + " anomalous values");
+        }
 
-            int addedCount = receivedData.size() - beforeSize;
-            if (addedCount > 0) {
-                Log.d(TAG, "Added " + addedCount + " values");
-                Log.d(TAG, "Total receivedData.size AFTER processing: " + receivedData.size());
-            }
+        int addedCount = receivedData.size() - beforeSize;
+        if (addedCount > 0) {
+            Log.d(TAG, "Added " + addedCount + " values, total: " + receivedData.size());
+        }
 
-            updateDataDisplay();
+        updateDataDisplay();
+        restartDataTimeout();
+    }
 
-            lastDataReceivedTime = System.currentTimeMillis();
+    private void restartDataTimeout() {
+        lastDataReceivedTime = System.currentTimeMillis();
 
-            mainHandler.removeCallbacks(dataTimeoutRunnable);
-            mainHandler.postDelayed(dataTimeoutRunnable, DATA_TIMEOUT);
-        });
+        mainHandler.removeCallbacks(dataTimeoutRunnable);
+        mainHandler.postDelayed(dataTimeoutRunnable, DATA_TIMEOUT);
     }
 
     private final Runnable dataTimeoutRunnable = new Runnable() {
@@ -593,6 +604,11 @@ public class MTDataFragment extends Fragment {
 
         isReceivingData = false;
         mainHandler.removeCallbacks(dataTimeoutRunnable);
+        // После восстановления экрана выгрузка уже могла закончиться - Stop повторно не нужен
+        boolean wasTransferring = transferLink == null || transferLink.isTransferring();
+        if (transferLink != null) {
+            transferLink.markFinished();
+        }
         progressIndicator.setVisibility(View.GONE);
         startButton.setEnabled(true);
         stopButton.setEnabled(false);
@@ -600,14 +616,21 @@ public class MTDataFragment extends Fragment {
         if (!receivedData.isEmpty()) {
             saveButton.setEnabled(true);
             long duration = System.currentTimeMillis() - dataStartTime;
-            statusTextView.setText(String.format("Получено %d точек за %.1f сек",
-                    receivedData.size(), duration / 1000.0));
+            String summary = String.format("Получено %d точек за %.1f сек",
+                    receivedData.size(), duration / 1000.0);
+            if (bluetoothService != null) {
+                TransferStatistics.Snapshot statistics = bluetoothService.getTransferStatistics();
+                Log.d(TAG, "Transfer statistics: " + statistics);
+                summary += "\n" + statistics.toDisplayString();
+            }
+            statusTextView.setText(summary);
         } else {
             statusTextView.setText("Данные не получены");
         }
 
-        if (bluetoothService != null && bluetoothService.isConnected()) {
+        if (wasTransferring && bluetoothService != null && bluetoothService.isConnected()) {
             bluetoothService.sendCommand("Stop\r");
+            bluetoothService.setLinkProfile(BluetoothService.LinkProfile.BALANCED);
         }
     }
 
@@ -70,6 +70,15 @@ public class MTDeviceActivity extends AppCompatActivity {
         }).attach();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing() && deviceAddress != null) {
+            // Вкладки уже вернули соединение - ждать таймаута простоя незачем
+            MTConnectionCache.getInstance().closeIfIdle(deviceAddress);
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -156,4 +165,15 @@ public class MTDeviceActivity extends AppCompatActivity {
     public void requestAutoDataDownload() {
         shouldAutoStartDataDownload = true;
     }
+
+    // Число измерений по DataSize? - для контроля потерь при выгрузке, -1 если неизвестно
+    private long expectedDataSize = -1;
+
+    public long getExpectedDataSize() {
+        return expectedDataSize;
+    }
+
+    public void setExpectedDataSize(long expectedDataSize) {
+        this.expectedDataSize = expectedDataSize;
+    }
 }
\ No newline at end of file
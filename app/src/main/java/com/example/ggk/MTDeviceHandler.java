@@ -5,28 +5,21 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MTDeviceHandler {
     private static final String TAG = "MTDeviceHandler";
 
-    // UUIDs
-    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
-    private static final UUID CHAR_UUID_FFF1 = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
-    private static final UUID CHAR_UUID_FFF2 = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
-
     // Константы
     private static final long COMMAND_TIMEOUT = 5000;
-    private static final long COMMAND_DELAY = 500;
     private static final long INITIAL_DELAY = 500;
-    private static final String COMMAND_TERMINATOR = "\r";
 
     // Список команд для опроса
-    private static final String[] BASIC_COMMANDS = {
+    static final String[] BASIC_COMMANDS = {
             "Idn?",
             "DataSize?",
             "WorkTime?",
@@ -43,20 +36,21 @@ public class MTDeviceHandler {
     private final Handler mainHandler;
     private MTDeviceCallback callback;
 
-    private BluetoothService writeService;
-    private BluetoothService readService;
+    // Общее с другими вкладками GATT соединение: команды в FFF2, ответы через уведомления FFF1
+    private MTConnectionCache.Connection connection;
+    // Несколько команд в полете, ответы сопоставляются по имени команды
+    private MTCommandEngine commandEngine;
 
     private String deviceAddress;
     private Map<String, String> deviceInfo;
-    private StringBuilder responseBuffer;
+    // Команды текущего опроса: все BASIC_COMMANDS или только устаревшие в MTDeviceInfoCache
+    private String[] pollCommands = BASIC_COMMANDS;
 
-    private int commandIndex;
-    private String currentCommand;
+    // Номер опроса: ответы прерванного опроса не попадают в следующий
+    private int sequenceId;
+    private int completedCommands;
     private boolean isProcessing;
-    private volatile boolean writeReady;
-    private volatile boolean readReady;
-
-    private Runnable timeoutRunnable;
+    private volatile boolean linkReady;
 
     // Интерфейс callback
     public interface MTDeviceCallback {
@@ -72,160 +66,77 @@ public class MTDeviceHandler {
         this.callback = callback;
         this.mainHandler = new Handler(Looper.getMainLooper());
         this.deviceInfo = new HashMap<>();
-        this.responseBuffer = new StringBuilder();
-
-        initializeBluetoothServices();
     }
 
-    private void initializeBluetoothServices() {
-        // Сервис для ЗАПИСИ команд
-        writeService = new BluetoothService(context);
-        writeService.setCallback(new BluetoothService.BluetoothCallback() {
-            @Override
-            public void onConnectionStateChange(boolean connected) {
-                Log.d(TAG, "Write service connection: " + connected);
-                if (!connected) {
-                    writeReady = false;
-                    handleDisconnection();
-                }
-            }
-
-            @Override
-            public void onServicesDiscovered(boolean success) {
-                Log.d(TAG, "Write services discovered: " + success);
-                if (success) {
-                    Log.d(TAG, "Write service ready");
-                    writeReady = true;
-                    checkBothReady();
-                } else {
-                    notifyError("Не удалось настроить запись");
-                }
-            }
-
-            @Override
-            public void onDataReceived(byte[] data, String formattedData) {}
-
-            @Override
-            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {}
-
-            @Override
-            public void onError(String message) {
-                if (!message.contains("MTU") && !message.contains("Notifications")) {
-                    Log.e(TAG, "Write error: " + message);
-                }
-            }
-
-            @Override
-            public void onReconnectAttempt(int attempt, int maxAttempts) {}
-        });
-
-        // Сервис для ЧТЕНИЯ ответов
-        readService = new BluetoothService(context);
-        readService.setRawTextMode(true);
-
-        readService.setCallback(new BluetoothService.BluetoothCallback() {
-            @Override
-            public void onConnectionStateChange(boolean connected) {
-                Log.d(TAG, "Read service connection: " + connected);
-                if (!connected) {
-                    readReady = false;
-                    handleDisconnection();
-                }
+    private final BluetoothService.BluetoothCallback linkCallback = new BluetoothService.BluetoothCallback() {
+        @Override
+        public void onConnectionStateChange(boolean connected) {
+            Log.d(TAG, "Connection: " + connected);
+            if (!connected) {
+                linkReady = false;
+                handleDisconnection();
             }
+        }
 
-            @Override
-            public void onServicesDiscovered(boolean success) {
-                Log.d(TAG, "Read services discovered: " + success);
-                if (success) {
-                    Log.d(TAG, "Read service ready");
-                    readReady = true;
-                    checkBothReady();
-                } else {
-                    // Не показываем ошибку при нормальном отключении
-                    if (isProcessing) {
-                        notifyError("Не удалось настроить чтение");
-                    }
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            Log.d(TAG, "Services discovered: " + success);
+            if (success) {
+                Log.d(TAG, "Link ready");
+                linkReady = true;
+                onLinkReady();
+            } else {
+                // Не показываем ошибку при нормальном отключении
+                if (isProcessing) {
+                    notifyError("Не удалось настроить соединение");
                 }
             }
+        }
 
-            @Override
-            public void onDataReceived(byte[] data, String formattedData) {}
-
-            @Override
-            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
-                Log.d(TAG, "=== onDataBatch START ===");
-                Log.d(TAG, "Received data length: " + formattedBatch.length());
-                Log.d(TAG, "Data: [" + formattedBatch.replace("\r", "\\r").replace("\n", "\\n") + "]");
-                handleReceivedData(formattedBatch);
-                Log.d(TAG, "=== onDataBatch END ===");
-            }
+        @Override
+        public void onDataReceived(byte[] data, String formattedData) {}
 
-            @Override
-            public void onError(String message) {
-                if (!message.contains("MTU") && !message.contains("Notifications")) {
-                    Log.e(TAG, "Read error: " + message);
-                }
+        @Override
+        public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            // Ответы режутся на строки по мере прихода, без копий и логов всего текста
+            if (commandEngine != null) {
+                commandEngine.onText(formattedBatch);
             }
-
-            @Override
-            public void onReconnectAttempt(int attempt, int maxAttempts) {}
-        });
-    }
-
-    private volatile boolean shouldStopPolling = false;
-
-    private void sendNextCommand() {
-        // КРИТИЧНО: Проверяем, нужно ли остановить опрос
-        if (shouldStopPolling) {
-            Log.d(TAG, "Polling stopped by request");
-            isProcessing = false;
-            return;
-        }
-
-        if (commandIndex >= BASIC_COMMANDS.length) {
-            finishCommandSequence();
-            return;
         }
 
-        currentCommand = BASIC_COMMANDS[commandIndex];
-        responseBuffer.setLength(0);
-
-        if (!writeService.isConnected()) {
-            Log.e(TAG, "✗ Write service not connected!");
-            notifyError("Устройство отключилось");
-            isProcessing = false;
-            return;
+        @Override
+        public void onError(String message) {
+            if (!message.contains("MTU") && !message.contains("Notifications")) {
+                Log.e(TAG, "Bluetooth error: " + message);
+            }
         }
 
-        Log.d(TAG, "=== SENDING COMMAND [" + (commandIndex + 1) + "/" + BASIC_COMMANDS.length + "] ===");
-        Log.d(TAG, "Command: " + currentCommand);
-
-        String commandWithTerminator = currentCommand + COMMAND_TERMINATOR;
-        boolean sent = writeService.sendCommand(commandWithTerminator);
+        @Override
+        public void onReconnectAttempt(int attempt, int maxAttempts) {}
+    };
 
-        if (sent) {
-            Log.d(TAG, "✓ Command sent to device");
-            notifyProgress(commandIndex + 1, BASIC_COMMANDS.length);
-            startCommandTimeout();
-        } else {
-            Log.e(TAG, "✗ Failed to send command!");
-            saveResponse(currentCommand, "ERROR");
-            moveToNextCommand();
-        }
-    }
+    private volatile boolean shouldStopPolling = false;
 
     // Новый метод для остановки опроса
     public void stopPolling() {
         Log.d(TAG, "Stopping polling sequence");
         shouldStopPolling = true;
         isProcessing = false;
-        cancelCommandTimeout();
+        sequenceId++;
+        if (commandEngine != null) {
+            commandEngine.cancelAll("Polling stopped");
+        }
     }
 
     public void connect(String deviceAddress) {
+        connect(deviceAddress, BASIC_COMMANDS);
+    }
+
+    /** Подключение с опросом только указанных команд из BASIC_COMMANDS; пустой список - без опроса. */
+    public void connect(String deviceAddress, String[] commands) {
         this.deviceAddress = deviceAddress;
-        this.writeReady = false;
-        this.readReady = false;
+        this.pollCommands = commands;
+        this.linkReady = false;
         this.isProcessing = false;
         this.deviceInfo.clear();
 
@@ -234,114 +145,83 @@ public class MTDeviceHandler {
         Log.d(TAG, "=== MT DEVICE CONNECTION START ===");
         Log.d(TAG, "Device address: " + deviceAddress);
 
-        writeService.connectForCommands(deviceAddress, SERVICE_UUID, CHAR_UUID_FFF2);
-        readService.connect(deviceAddress, SERVICE_UUID, CHAR_UUID_FFF1);
-    }
-
-    private void startCommandSequence() {
-        isProcessing = true;
-        commandIndex = 0;
-        deviceInfo.clear();
-
-        Log.d(TAG, "=== STARTING COMMAND SEQUENCE ===");
-        Log.d(TAG, "Total commands: " + BASIC_COMMANDS.length);
-        sendNextCommand();
-    }
-
-    private void startCommandTimeout() {
-        cancelCommandTimeout();
-
-        timeoutRunnable = () -> {
-            Log.w(TAG, "=== TIMEOUT ===");
-            Log.w(TAG, "Command: " + currentCommand);
-            saveResponse(currentCommand, "TIMEOUT");
-            moveToNextCommand();
-        };
-
-        mainHandler.postDelayed(timeoutRunnable, COMMAND_TIMEOUT);
+        releaseConnection();
+        connection = MTConnectionCache.getInstance().acquire(context, deviceAddress);
+        connection.addCallback(linkCallback);
+        commandEngine = new MTCommandEngine(connection::sendCommand);
+        if (connection.isReady()) {
+            // Соединение уже открыто другой вкладкой - поиск сервисов не нужен
+            Log.d(TAG, "Reusing open connection");
+            linkReady = true;
+            mainHandler.post(this::onLinkReady);
+        } else {
+            connection.ensureConnected(BluetoothService.LinkProfile.BALANCED);
+        }
     }
 
-    private void cancelCommandTimeout() {
-        if (timeoutRunnable != null) {
-            mainHandler.removeCallbacks(timeoutRunnable);
-            timeoutRunnable = null;
+    // Соединение возвращается в кэш и закрывается, только если оно больше никому не нужно
+    private void releaseConnection() {
+        if (commandEngine != null) {
+            commandEngine.cancelAll("Connection released");
+            commandEngine = null;
+        }
+        if (connection != null) {
+            connection.removeCallback(linkCallback);
+            MTConnectionCache.getInstance().release(connection);
+            connection = null;
         }
     }
 
-    private void handleReceivedData(String data) {
-        Log.d(TAG, "=== handleReceivedData START ===");
-
-        if (!isProcessing || currentCommand == null) {
-            Log.w(TAG, "Ignoring data - not processing or no current command");
+    // Все команды опроса уходят сразу, engine держит в полете несколько и сопоставляет ответы
+    private void startCommandSequence() {
+        if (shouldStopPolling) {
+            Log.d(TAG, "Polling stopped by request");
             return;
         }
-
-        responseBuffer.append(data);
-        String bufferContent = responseBuffer.toString();
-
-        // Ищем имя команды без "?"
-        String commandBase = currentCommand.replace("?", "");
-
-        // КРИТИЧНО: Ищем ПОСЛЕДНЕЕ вхождение команды в буфере
-        int lastCommandIndex = bufferContent.lastIndexOf(commandBase);
-
-        if (lastCommandIndex == -1) {
-            Log.d(TAG, "Command base not found yet in buffer");
-            return; // Команда еще не пришла
+        if (!isConnected()) {
+            Log.e(TAG, "✗ Device not connected!");
+            notifyError("Устройство отключилось");
+            return;
         }
 
-        // Проверяем, есть ли перенос строки после команды
-        int nextLineIndex = bufferContent.indexOf("\r", lastCommandIndex);
-        if (nextLineIndex == -1) {
-            nextLineIndex = bufferContent.indexOf("\n", lastCommandIndex);
-        }
+        isProcessing = true;
+        completedCommands = 0;
+        deviceInfo.clear();
+        int sequence = ++sequenceId;
 
-        if (nextLineIndex == -1) {
-            Log.d(TAG, "No line terminator after command yet");
-            return; // Ответ еще не полный
+        Log.d(TAG, "=== STARTING COMMAND SEQUENCE ===");
+        Log.d(TAG, "Total commands: " + pollCommands.length);
+        if (pollCommands.length == 0) {
+            finishCommandSequence();
+            return;
         }
-
-        // Нашли полный ответ
-        cancelCommandTimeout();
-
-        // Извлекаем строку с ответом: "CommandName value\r"
-        String responseLine = bufferContent.substring(lastCommandIndex, nextLineIndex).trim();
-
-        Log.d(TAG, "=== RESPONSE COMPLETE ===");
-        Log.d(TAG, "Command: " + currentCommand);
-        Log.d(TAG, "Full response line: [" + responseLine + "]");
-
-        // Убираем имя команды, оставляем только значение
-        String response;
-        if (responseLine.startsWith(commandBase)) {
-            response = responseLine.substring(commandBase.length()).trim();
-        } else {
-            response = responseLine;
+        for (String command : pollCommands) {
+            CompletableFuture<String> future = commandEngine.submit(command, COMMAND_TIMEOUT);
+            future.whenComplete((response, error) -> onCommandCompleted(sequence, command, response, error));
         }
-
-        Log.d(TAG, "Extracted response: [" + response + "]");
-
-        saveResponse(currentCommand, response);
-        moveToNextCommand();
     }
 
-    private String extractLastResponse(String fullResponse, String command) {
-        String commandBase = command.replace("?", "");
-        String[] lines = fullResponse.split("\n");
-
-        for (int i = lines.length - 1; i >= 0; i--) {
-            String line = lines[i].trim();
-            if (line.startsWith(commandBase)) {
-                String value = line.substring(commandBase.length()).trim();
-                return value;
-            }
+    private void onCommandCompleted(int sequence, String command, String response, Throwable error) {
+        if (sequence != sequenceId || !isProcessing) {
+            return;
         }
 
-        if (lines.length > 0) {
-            return lines[lines.length - 1].trim();
+        if (error == null) {
+            Log.d(TAG, "Response " + command + ": [" + response + "]");
+            saveResponse(command, response);
+        } else if (error instanceof TimeoutException) {
+            Log.w(TAG, "Timeout: " + command);
+            saveResponse(command, "TIMEOUT");
+        } else {
+            Log.e(TAG, "Command failed: " + command + " (" + error.getMessage() + ")");
+            saveResponse(command, "ERROR");
         }
 
-        return "";
+        completedCommands++;
+        notifyProgress(completedCommands, pollCommands.length);
+        if (completedCommands >= pollCommands.length) {
+            finishCommandSequence();
+        }
     }
 
     private void saveResponse(String command, String response) {
@@ -349,15 +229,8 @@ public class MTDeviceHandler {
         notifyCommandResponse(command, response);
     }
 
-    private void moveToNextCommand() {
-        commandIndex++;
-        responseBuffer.setLength(0);
-        mainHandler.postDelayed(this::sendNextCommand, COMMAND_DELAY);
-    }
-
     private void finishCommandSequence() {
         isProcessing = false;
-        cancelCommandTimeout();
 
         Log.d(TAG, "=== COMMAND SEQUENCE FINISHED ===");
         Log.d(TAG, "Total responses: " + deviceInfo.size());
@@ -366,19 +239,21 @@ public class MTDeviceHandler {
     }
 
     private void handleDisconnection() {
-        if (writeReady || readReady) {
+        if (linkReady) {
             return;
         }
 
         Log.d(TAG, "=== DISCONNECTED ===");
         isProcessing = false;
-        cancelCommandTimeout();
+        if (commandEngine != null) {
+            commandEngine.cancelAll("Disconnected");
+        }
     }
 
     public void requestData() {
-        if (writeService != null && writeService.isConnected()) {
+        if (isConnected()) {
             Log.d(TAG, "Requesting data with Data? command");
-            writeService.sendCommand("Data?" + COMMAND_TERMINATOR);
+            sendSingleCommand("Data?");
         } else {
             notifyError("Устройство не подключено");
         }
@@ -387,16 +262,13 @@ public class MTDeviceHandler {
     public boolean setRange(int rangeIndex) {
         Log.d(TAG, "=== setRange CALLED ===");
         Log.d(TAG, "Range index: " + rangeIndex);
-        Log.d(TAG, "writeService != null: " + (writeService != null));
-
-        if (writeService != null) {
-            Log.d(TAG, "writeService.isConnected(): " + writeService.isConnected());
-        }
+        Log.d(TAG, "connection != null: " + (connection != null));
+        Log.d(TAG, "isConnected(): " + isConnected());
 
-        if (writeService != null && writeService.isConnected()) {
-            String command = "Ranges " + rangeIndex + COMMAND_TERMINATOR;
-            Log.d(TAG, "Sending range command: [" + command.replace("\r", "\\r") + "]");
-            boolean sent = writeService.sendCommand(command);
+        if (isConnected()) {
+            String command = "Ranges " + rangeIndex;
+            Log.d(TAG, "Sending range command: [" + command + "]");
+            boolean sent = sendSingleCommand(command);
             Log.d(TAG, "Command send result: " + sent);
             return sent;
         } else {
@@ -409,16 +281,13 @@ public class MTDeviceHandler {
     public boolean setUnits(int unitsIndex) {
         Log.d(TAG, "=== setUnits CALLED ===");
         Log.d(TAG, "Units index: " + unitsIndex);
-        Log.d(TAG, "writeService != null: " + (writeService != null));
+        Log.d(TAG, "connection != null: " + (connection != null));
+        Log.d(TAG, "isConnected(): " + isConnected());
 
-        if (writeService != null) {
-            Log.d(TAG, "writeService.isConnected(): " + writeService.isConnected());
-        }
-
-        if (writeService != null && writeService.isConnected()) {
-            String command = "Units " + unitsIndex + COMMAND_TERMINATOR;
-            Log.d(TAG, "Sending units command: [" + command.replace("\r", "\\r") + "]");
-            boolean sent = writeService.sendCommand(command);
+        if (isConnected()) {
+            String command = "Units " + unitsIndex;
+            Log.d(TAG, "Sending units command: [" + command + "]");
+            boolean sent = sendSingleCommand(command);
             Log.d(TAG, "Command send result: " + sent);
             return sent;
         } else {
@@ -428,6 +297,19 @@ public class MTDeviceHandler {
         }
     }
 
+    // Ответ на одиночную команду приходит через onCommandResponse
+    private boolean sendSingleCommand(String command) {
+        CompletableFuture<String> future = commandEngine.submit(command, COMMAND_TIMEOUT);
+        future.whenComplete((response, error) -> {
+            if (error == null) {
+                notifyCommandResponse(command, response);
+            } else if (error instanceof TimeoutException) {
+                notifyCommandResponse(command, "TIMEOUT");
+            }
+        });
+        return !future.isCompletedExceptionally();
+    }
+
     private int pendingUnitsCommand = -1;
     private int pendingRangeCommand = -1;
 
@@ -438,13 +320,12 @@ public class MTDeviceHandler {
     }
 
     public boolean isConnected() {
-        return writeService != null && writeService.isConnected() &&
-                readService != null && readService.isConnected();
+        return connection != null && connection.getBluetoothService().isConnected();
     }
 
-    private void checkBothReady() {
-        if (writeReady && readReady && !isProcessing) {
-            Log.d(TAG, "=== BOTH SERVICES READY ===");
+    private void onLinkReady() {
+        if (linkReady && !isProcessing) {
+            Log.d(TAG, "=== LINK READY ===");
             notifyConnectionState(true);
 
             // Проверяем, есть ли отложенные команды
@@ -486,18 +367,10 @@ public class MTDeviceHandler {
         }
 
         Log.d(TAG, "Disconnecting");
-        cancelCommandTimeout();
-
-        if (writeService != null) {
-            writeService.disconnect();
-        }
-        if (readService != null) {
-            readService.disconnect();
-        }
-
         isProcessing = false;
-        writeReady = false;
-        readReady = false;
+        linkReady = false;
+
+        releaseConnection();
 
         isDisconnecting.set(false);
     }
@@ -506,15 +379,6 @@ public class MTDeviceHandler {
         Log.d(TAG, "Cleanup");
         disconnect();
 
-        if (writeService != null) {
-            writeService.close();
-            writeService = null;
-        }
-        if (readService != null) {
-            readService.close();
-            readService = null;
-        }
-
         mainHandler.removeCallbacksAndMessages(null);
     }
 
@@ -0,0 +1,195 @@
+package com.example.ggk;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * Ответы MT устройства на команды опроса по адресу, с временем получения каждого поля.
+ * Экран информации сразу показывает запомненное и опрашивает только устаревшие поля:
+ * серийный номер и списки единиц и диапазонов живут долго, память, время работы, давления
+ * и текущие настройки перечитываются при каждом заходе.
+ * Хранится в mt_info.txt папки устройства (MTDeviceDataHelper), запись - на фоновом потоке.
+ * Методы вызываются с главного потока.
+ */
+public final class MTDeviceInfoCache {
+    private static final String TAG = "MTDeviceInfoCache";
+
+    // Меняются только с прошивкой
+    private static final long STATIC_TTL = 7L * 24 * 60 * 60 * 1000;
+
+    private static final Map<String, Long> FIELD_TTL = new HashMap<>();
+    static {
+        FIELD_TTL.put("Idn?", STATIC_TTL);
+        FIELD_TTL.put("UnitsAll?", STATIC_TTL);
+        FIELD_TTL.put("RangesAll?", STATIC_TTL);
+    }
+
+    /** Запомненное значение поля. */
+    static final class Entry {
+        final String value;
+        // System.currentTimeMillis(): переживает перезапуск приложения
+        final long fetchedAt;
+
+        Entry(String value, long fetchedAt) {
+            this.value = value;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static MTDeviceInfoCache instance;
+
+    private final Context context;
+    // System.currentTimeMillis; в тестах - управляемые часы
+    private final LongSupplier clock;
+    private final Map<String, Map<String, Entry>> devices = new HashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MTDeviceInfoCache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static MTDeviceInfoCache getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new MTDeviceInfoCache(appContext != null ? appContext : context);
+        }
+        return instance;
+    }
+
+    private MTDeviceInfoCache(Context context) {
+        this(context, System::currentTimeMillis);
+    }
+
+    MTDeviceInfoCache(Context context, LongSupplier clock) {
+        this.context = context;
+        this.clock = clock;
+    }
+
+    /** Сколько поле считается свежим; 0 - перечитывается при каждом опросе. */
+    public static long ttlFor(String command) {
+        Long ttl = FIELD_TTL.get(command);
+        return ttl != null ? ttl : 0;
+    }
+
+    /** Все запомненные поля, включая устаревшие, - для показа до окончания опроса. */
+    public Map<String, String> get(String deviceName, String deviceAddress) {
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, Entry> field : load(deviceName, deviceAddress).entrySet()) {
+            values.put(field.getKey(), field.getValue().value);
+        }
+        return values;
+    }
+
+    /** Команды из commands, ответ на которые не запомнен или устарел, в исходном порядке. */
+    public List<String> staleCommands(String deviceName, String deviceAddress, String[] commands) {
+        Map<String, Entry> fields = load(deviceName, deviceAddress);
+        long now = clock.getAsLong();
+        List<String> stale = new ArrayList<>();
+        for (String command : commands) {
+            Entry entry = fields.get(command);
+            if (entry == null || now - entry.fetchedAt >= ttlFor(command) || now < entry.fetchedAt) {
+                stale.add(command);
+            }
+        }
+        return stale;
+    }
+
+    /** Ответы опроса; TIMEOUT и ERROR не запоминаются - поле опросится снова. */
+    public void put(String deviceName, String deviceAddress, Map<String, String> responses) {
+        Map<String, Entry> fields = load(deviceName, deviceAddress);
+        long now = clock.getAsLong();
+        boolean changed = false;
+        for (Map.Entry<String, String> response : responses.entrySet()) {
+            String value = response.getValue();
+            if (value == null || value.equals("TIMEOUT") || value.equals("ERROR")) continue;
+            fields.put(response.getKey(), new Entry(value, now));
+            changed = true;
+        }
+        if (changed) {
+            persist(deviceName, deviceAddress, serialize(fields));
+        }
+    }
+
+    private Map<String, Entry> load(String deviceName, String deviceAddress) {
+        Map<String, Entry> fields = devices.get(deviceAddress);
+        if (fields == null) {
+            fields = deviceName != null
+                    ? parse(MTDeviceDataHelper.getMTDeviceInfo(context, deviceName))
+                    : new HashMap<>();
+            devices.put(deviceAddress, fields);
+            Log.d(TAG, "Loaded " + fields.size() + " fields for " + deviceAddress);
+        }
+        return fields;
+    }
+
+    private void persist(String deviceName, String deviceAddress, String info) {
+        if (deviceName == null) return;
+        writer.execute(() -> MTDeviceDataHelper.saveMTDeviceInfo(context, deviceName, deviceAddress, info));
+    }
+
+    // Строка на поле: команда, время получения, значение - через табуляцию;
+    // переводы строк многострочных ответов экранируются
+    static String serialize(Map<String, Entry> fields) {
+        StringBuilder info = new StringBuilder();
+        for (Map.Entry<String, Entry> field : fields.entrySet()) {
+            info.append(field.getKey()).append('\t')
+                    .append(field.getValue().fetchedAt).append('\t');
+            appendEscaped(info, field.getValue().value);
+            info.append('\n');
+        }
+        return info.toString();
+    }
+
+    static Map<String, Entry> parse(String info) {
+        Map<String, Entry> fields = new HashMap<>();
+        if (info == null) return fields;
+        for (String line : info.split("\n")) {
+            String[] parts = line.split("\t", 3);
+            if (parts.length < 3) continue;
+            try {
+                fields.put(parts[0], new Entry(unescape(parts[2]), Long.parseLong(parts[1])));
+            } catch (NumberFormatException e) {
+                // Файл другого формата - поле опросится заново
+            }
+        }
+        return fields;
+    }
+
+    private static void appendEscaped(StringBuilder info, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                info.append("\\\\");
+            } else if (c == '\n') {
+                info.append("\\n");
+            } else if (c == '\r') {
+                info.append("\\r");
+            } else {
+                info.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -16,6 +16,8 @@ import androidx.fragment.app.Fragment;
 
 import com.google.android.material.button.MaterialButton;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class MTDeviceInfoFragment extends Fragment {
@@ -79,9 +81,6 @@ public class MTDeviceInfoFragment extends Fragment {
 
     private void connectAndGetInfo() {
         showProgress(true);
-        statusText.setText("Подключение к устройству...");
-        infoContainer.removeAllViews();
-        dataButton.setEnabled(false);
         saveButton.setEnabled(false);
 
         // ВАЖНО: Сбрасываем выбранные индексы при новом подключении
@@ -90,6 +89,23 @@ public class MTDeviceInfoFragment extends Fragment {
         currentUnitsIndex = -1;
         currentRangeIndex = -1;
 
+        // Запомненное показывается сразу, с устройства читаются только устаревшие поля
+        final MTDeviceInfoCache infoCache = MTDeviceInfoCache.getInstance(requireContext());
+        final Map<String, String> cachedInfo = infoCache.get(deviceName, deviceAddress);
+        List<String> staleCommands = infoCache.staleCommands(deviceName, deviceAddress, MTDeviceHandler.BASIC_COMMANDS);
+        // Данные читаются с устройства - кнопка ждет подключения, даже если сведения запомнены
+        dataButton.setEnabled(false);
+        if (cachedInfo.isEmpty()) {
+            statusText.setText("Подключение к устройству...");
+            infoContainer.removeAllViews();
+        } else {
+            Log.d(TAG, "Showing cached info, refreshing " + staleCommands);
+            statusText.setText("Обновление информации...");
+            displayDeviceInfo(cachedInfo);
+        }
+
+        // Прежний обработчик возвращает соединение, новый берет его же из кэша
+        releaseHandler();
         mtDeviceHandler = new MTDeviceHandler(requireContext(), new MTDeviceHandler.MTDeviceCallback() {
             @Override
             public void onConnectionStateChanged(boolean connected) {
@@ -97,6 +113,7 @@ public class MTDeviceInfoFragment extends Fragment {
                 getActivity().runOnUiThread(() -> {
                     if (connected) {
                         statusText.setText("Получение информации...");
+                        dataButton.setEnabled(true);
                     } else {
                         statusText.setText("Отключено");
                         showProgress(false);
@@ -108,12 +125,17 @@ public class MTDeviceInfoFragment extends Fragment {
             public void onDeviceInfoReady(Map<String, String> deviceInfo) {
                 if (getActivity() == null) return;
                 getActivity().runOnUiThread(() -> {
+                    infoCache.put(deviceName, deviceAddress, deviceInfo);
+                    // Свежие ответы поверх запомненных; TIMEOUT скрывает поле, как и раньше
+                    Map<String, String> mergedInfo = new HashMap<>(cachedInfo);
+                    mergedInfo.putAll(deviceInfo);
+
                     showProgress(false);
                     statusText.setText("Информация получена");
-                    displayDeviceInfo(deviceInfo);
+                    displayDeviceInfo(mergedInfo);
                     dataButton.setEnabled(true);
 
-                    // Отключаемся после получения информации для экономии батареи
+                    // Возвращаем соединение: без других вкладок оно закроется по таймауту простоя
                     new android.os.Handler().postDelayed(() -> {
                         if (mtDeviceHandler != null) {
                             mtDeviceHandler.disconnect();
@@ -149,7 +171,7 @@ public class MTDeviceInfoFragment extends Fragment {
             }
         });
 
-        mtDeviceHandler.connect(deviceAddress);
+        mtDeviceHandler.connect(deviceAddress, staleCommands.toArray(new String[0]));
     }
 
     private void displayDeviceInfo(Map<String, String> deviceInfo) {
@@ -158,6 +180,7 @@ public class MTDeviceInfoFragment extends Fragment {
         // DataSize
         String dataSize = deviceInfo.get("DataSize?");
         if (dataSize != null && !dataSize.equals("TIMEOUT")) {
+            updateExpectedDataSize(dataSize);
             addInfoCard("Заполнено памяти",
                     formatDataSize(dataSize),
                     "Количество записанных измерений");
@@ -484,6 +507,7 @@ public class MTDeviceInfoFragment extends Fragment {
     }
 
     private void connectForCommandsOnly(final int unitsIndex, final int rangeIndex) {
+        releaseHandler();
         mtDeviceHandler = new MTDeviceHandler(requireContext(), new MTDeviceHandler.MTDeviceCallback() {
             @Override
             public void onConnectionStateChanged(boolean connected) {
@@ -543,28 +567,17 @@ public class MTDeviceInfoFragment extends Fragment {
         // Ждем немного, чтобы текущая команда завершилась
         new android.os.Handler().postDelayed(() -> {
 
-            // Отправляем команды с задержками
+            // Команды идут через очередь GATT операций - пауза между ними не нужна
             if (unitsIndex != -1) {
                 Log.d(TAG, "Sending units command: " + unitsIndex);
                 mtDeviceHandler.setUnits(unitsIndex);
-
-                // Задержка перед следующей командой
-                new android.os.Handler().postDelayed(() -> {
-                    if (rangeIndex != -1) {
-                        Log.d(TAG, "Sending range command: " + rangeIndex);
-                        mtDeviceHandler.setRange(rangeIndex);
-                    }
-
-                    statusText.setText("Шаг 2/4: Команды отправлены");
-
-                    // Ждем на применение команд
-                    disconnectAndReconnect();
-                }, 500); // 500ms между командами
-
-            } else if (rangeIndex != -1) {
+            }
+            if (rangeIndex != -1) {
                 Log.d(TAG, "Sending range command: " + rangeIndex);
                 mtDeviceHandler.setRange(rangeIndex);
+            }
 
+            if (unitsIndex != -1 || rangeIndex != -1) {
                 statusText.setText("Шаг 2/4: Команды отправлены");
 
                 // Ждем на применение команд
@@ -617,6 +630,16 @@ public class MTDeviceInfoFragment extends Fragment {
         infoContainer.addView(cardView);
     }
 
+    private void updateExpectedDataSize(String dataSize) {
+        MTDeviceActivity activity = (MTDeviceActivity) getActivity();
+        if (activity == null) return;
+        try {
+            activity.setExpectedDataSize(Long.parseLong(dataSize.trim()));
+        } catch (NumberFormatException e) {
+            activity.setExpectedDataSize(-1);
+        }
+    }
+
     private String formatDataSize(String dataSize) {
         try {
             int size = Integer.parseInt(dataSize.trim());
@@ -675,11 +698,8 @@ public class MTDeviceInfoFragment extends Fragment {
     }
 
     private void requestData() {
-        // КРИТИЧНО: Только cleanup, НЕ disconnect отдельно!
-        if (mtDeviceHandler != null) {
-            mtDeviceHandler.cleanup(); // cleanup уже содержит disconnect
-            mtDeviceHandler = null; // Обнуляем для чистоты
-        }
+        // Соединение остается открытым в кэше - вкладка данных сразу отправит SendData
+        releaseHandler();
 
         // Устанавливаем флаг автозапуска
         MTDeviceActivity activity = (MTDeviceActivity) getActivity();
@@ -705,11 +725,16 @@ public class MTDeviceInfoFragment extends Fragment {
         connectAndGetInfo();
     }
 
+    private void releaseHandler() {
+        if (mtDeviceHandler != null) {
+            mtDeviceHandler.cleanup(); // cleanup уже содержит disconnect
+            mtDeviceHandler = null;
+        }
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (mtDeviceHandler != null) {
-            mtDeviceHandler.cleanup();
-        }
+        releaseHandler();
     }
 }
\ No newline at end of file
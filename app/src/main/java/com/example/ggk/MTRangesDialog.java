@@ -24,7 +24,7 @@ public class MTRangesDialog extends DialogFragment {
     private TextView currentRangeText;
     private TextView rangesListText;
     private MaterialButton changeRangeButton;
-    private BluetoothService bluetoothService;
+    private MTConnectionCache.Connection connection;
     private Handler mainHandler;
 
     public static MTRangesDialog newInstance(String deviceAddress, String currentRange) {
@@ -68,53 +68,49 @@ public class MTRangesDialog extends DialogFragment {
 
         builder.setView(view)
                 .setTitle("Управление диапазонами")
-                .setPositiveButton("Закрыть", (dialog, id) -> {
-                    if (bluetoothService != null) {
-                        bluetoothService.disconnect();
-                    }
-                });
+                .setPositiveButton("Закрыть", null);
 
         return builder.create();
     }
 
     private void initializeBluetooth() {
-        bluetoothService = new BluetoothService(requireContext());
-        bluetoothService.setCallback(new BluetoothService.BluetoothCallback() {
-            @Override
-            public void onConnectionStateChange(boolean connected) {
-                mainHandler.post(() -> changeRangeButton.setEnabled(connected));
-            }
+        // Соединение общее с вкладками устройства - обычно уже открыто
+        connection = MTConnectionCache.getInstance().acquire(requireContext(), deviceAddress);
+        connection.addCallback(linkCallback);
+        changeRangeButton.setEnabled(connection.isReady());
+        connection.ensureConnected(BluetoothService.LinkProfile.BALANCED);
+    }
 
-            @Override
-            public void onServicesDiscovered(boolean success) {}
+    private final BluetoothService.BluetoothCallback linkCallback = new BluetoothService.BluetoothCallback() {
+        @Override
+        public void onConnectionStateChange(boolean connected) {
+            mainHandler.post(() -> changeRangeButton.setEnabled(connected));
+        }
 
-            @Override
-            public void onDataReceived(byte[] data, String formattedData) {
-                handleResponse(new String(data));
-            }
+        @Override
+        public void onServicesDiscovered(boolean success) {}
 
-            @Override
-            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {}
+        @Override
+        public void onDataReceived(byte[] data, String formattedData) {}
 
-            @Override
-            public void onError(String message) {
-                mainHandler.post(() -> {
-                    Toast.makeText(getContext(), "Ошибка: " + message, Toast.LENGTH_SHORT).show();
-                });
-            }
+        @Override
+        public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            handleResponse(formattedBatch);
+        }
 
-            @Override
-            public void onReconnectAttempt(int attempt, int maxAttempts) {}
-        });
+        @Override
+        public void onError(String message) {
+            mainHandler.post(() -> {
+                Toast.makeText(getContext(), "Ошибка: " + message, Toast.LENGTH_SHORT).show();
+            });
+        }
 
-        // Подключаемся для отправки команд
-        bluetoothService.connectForCommands(deviceAddress,
-                java.util.UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb"),
-                java.util.UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb"));
-    }
+        @Override
+        public void onReconnectAttempt(int attempt, int maxAttempts) {}
+    };
 
     private void changeRange() {
-        if (bluetoothService != null && bluetoothService.isConnected()) {
+        if (connection != null && connection.isReady()) {
             // Определяем следующий диапазон
             String currentValue = extractRangeValue(currentRange);
             int nextRange = getNextRange(currentValue);
@@ -123,7 +119,7 @@ public class MTRangesDialog extends DialogFragment {
             String command = "Ranges " + nextRange;
             changeRangeButton.setEnabled(false);
 
-            boolean sent = bluetoothService.sendCommand(command + "\r");
+            boolean sent = connection.sendCommand(command + "\r");
             if (sent) {
                 Toast.makeText(getContext(), "Отправлена команда: " + command, Toast.LENGTH_SHORT).show();
             } else {
@@ -227,8 +223,10 @@ public class MTRangesDialog extends DialogFragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (bluetoothService != null) {
-            bluetoothService.close();
+        if (connection != null) {
+            connection.removeCallback(linkCallback);
+            MTConnectionCache.getInstance().release(connection);
+            connection = null;
         }
     }
 }
\ No newline at end of file
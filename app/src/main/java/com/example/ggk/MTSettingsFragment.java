@@ -16,12 +16,8 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
-import java.util.UUID;
-
 public class MTSettingsFragment extends Fragment {
     private static final String TAG = "MTSettingsFragment";
-    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
-    private static final UUID WRITE_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
 
     private String deviceAddress;
     private String deviceName;
@@ -35,7 +31,8 @@ public class MTSettingsFragment extends Fragment {
     private MaterialButton applyButton;
     private MaterialButton resetButton;
 
-    private BluetoothService bluetoothService;
+    // Общее с другими вкладками соединение, берется на время показа вкладки
+    private MTConnectionCache.Connection connection;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
@@ -65,7 +62,6 @@ public class MTSettingsFragment extends Fragment {
 
         setupDropdowns();
         setupButtons();
-        initializeBluetooth();
 
         return view;
     }
@@ -95,55 +91,55 @@ public class MTSettingsFragment extends Fragment {
         resetButton.setOnClickListener(v -> resetToDefaults());
     }
 
-    private void initializeBluetooth() {
-        bluetoothService = new BluetoothService(requireContext());
-        bluetoothService.setCallback(new BluetoothService.BluetoothCallback() {
-            @Override
-            public void onConnectionStateChange(boolean connected) {
-                if (getActivity() != null) {
-                    getActivity().runOnUiThread(() -> {
-                        applyButton.setEnabled(connected);
-                        resetButton.setEnabled(connected);
-                    });
-                }
+    private final BluetoothService.BluetoothCallback linkCallback = new BluetoothService.BluetoothCallback() {
+        @Override
+        public void onConnectionStateChange(boolean connected) {
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() -> {
+                    applyButton.setEnabled(connected);
+                    resetButton.setEnabled(connected);
+                });
             }
+        }
 
-            @Override
-            public void onServicesDiscovered(boolean success) {
-                // Не используется
-            }
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            // Не используется
+        }
 
-            @Override
-            public void onDataReceived(byte[] data, String formattedData) {
-                // Обработка ответов на команды настройки
-                handleCommandResponse(formattedData);
-            }
+        @Override
+        public void onDataReceived(byte[] data, String formattedData) {
+            // Не используется
+        }
 
-            @Override
-            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
-                // Не используется
-            }
+        @Override
+        public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+            // Ответы на команды настройки - текст общего соединения
+            handleCommandResponse(formattedBatch);
+        }
 
-            @Override
-            public void onError(String message) {
-                if (getActivity() != null) {
-                    getActivity().runOnUiThread(() -> {
-                        Toast.makeText(getContext(), "Ошибка: " + message, Toast.LENGTH_SHORT).show();
-                    });
-                }
+        @Override
+        public void onError(String message) {
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() -> {
+                    Toast.makeText(getContext(), "Ошибка: " + message, Toast.LENGTH_SHORT).show();
+                });
             }
+        }
 
-            @Override
-            public void onReconnectAttempt(int attempt, int maxAttempts) {
-                // Не используется
-            }
-        });
-    }
+        @Override
+        public void onReconnectAttempt(int attempt, int maxAttempts) {
+            // Не используется
+        }
+    };
 
     private void applySettings() {
-        if (bluetoothService == null || !bluetoothService.isConnected()) {
+        if (connection == null) {
+            return;
+        }
+        if (!connection.isReady()) {
             // Подключаемся
-            bluetoothService.connectForCommands(deviceAddress, SERVICE_UUID, WRITE_UUID);
+            connection.ensureConnected(BluetoothService.LinkProfile.BALANCED);
 
             // Ждем подключения
             new android.os.Handler().postDelayed(this::sendSettings, 2000);
@@ -153,12 +149,15 @@ public class MTSettingsFragment extends Fragment {
     }
 
     private void sendSettings() {
+        if (connection == null) {
+            return;
+        }
         boolean anyCommandSent = false;
 
         // Единицы измерения
         String units = unitsDropdown.getText().toString();
         if (!units.isEmpty()) {
-            bluetoothService.sendCommand("Units=" + units + "\r");
+            connection.sendCommand("Units=" + units + "\r");
             anyCommandSent = true;
         }
 
@@ -168,7 +167,7 @@ public class MTSettingsFragment extends Fragment {
             // Извлекаем числовое значение из диапазона
             String rangeValue = range.replaceAll("[^0-9]", "");
             if (!rangeValue.isEmpty()) {
-                bluetoothService.sendCommand("Range=" + rangeValue + "\r");
+                connection.sendCommand("Range=" + rangeValue + "\r");
                 anyCommandSent = true;
             }
         }
@@ -176,14 +175,14 @@ public class MTSettingsFragment extends Fragment {
         // Частота измерений
         String measureFreq = measureFreqInput.getText().toString();
         if (!measureFreq.isEmpty()) {
-            bluetoothService.sendCommand("MeasureFreq=" + measureFreq + "\r");
+            connection.sendCommand("MeasureFreq=" + measureFreq + "\r");
             anyCommandSent = true;
         }
 
         // Частота записи
         String recordFreq = recordFreqInput.getText().toString();
         if (!recordFreq.isEmpty()) {
-            bluetoothService.sendCommand("RecordFreq=" + recordFreq + "\r");
+            connection.sendCommand("RecordFreq=" + recordFreq + "\r");
             anyCommandSent = true;
         }
 
@@ -196,8 +195,8 @@ public class MTSettingsFragment extends Fragment {
 
     private void resetToDefaults() {
         // Отправляем команду сброса
-        if (bluetoothService != null && bluetoothService.isConnected()) {
-            bluetoothService.sendCommand("Reset\r");
+        if (connection != null && connection.isReady()) {
+            connection.sendCommand("Reset\r");
             Toast.makeText(getContext(), "Команда сброса отправлена", Toast.LENGTH_SHORT).show();
 
             // Очищаем поля
@@ -229,26 +228,23 @@ public class MTSettingsFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        // Подключаемся при открытии вкладки
-        if (bluetoothService != null) {
-            bluetoothService.connectForCommands(deviceAddress, SERVICE_UUID, WRITE_UUID);
-        }
+        // Берем соединение при открытии вкладки - если другая вкладка его уже открыла, оно готово сразу
+        connection = MTConnectionCache.getInstance().acquire(requireContext(), deviceAddress);
+        connection.addCallback(linkCallback);
+        boolean ready = connection.isReady();
+        applyButton.setEnabled(ready);
+        resetButton.setEnabled(ready);
+        connection.ensureConnected(BluetoothService.LinkProfile.BALANCED);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        // Отключаемся при уходе с вкладки
-        if (bluetoothService != null) {
-            bluetoothService.disconnect();
-        }
-    }
-
-    @Override
-    public void onDestroyView() {
-        super.onDestroyView();
-        if (bluetoothService != null) {
-            bluetoothService.close();
+        // Уходя с вкладки, возвращаем соединение; закроется оно по таймауту простоя
+        if (connection != null) {
+            connection.removeCallback(linkCallback);
+            MTConnectionCache.getInstance().release(connection);
+            connection = null;
         }
     }
 }
\ No newline at end of file
@@ -5,6 +5,8 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -49,6 +51,28 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_trace_recording).setChecked(DeveloperOptions.isTraceRecordingEnabled(this));
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_trace_recording) {
+            // Для разработчиков: трассы сессий для воспроизведения SessionTraceReplayer
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            DeveloperOptions.setTraceRecordingEnabled(this, enabled);
+            Toast.makeText(this, enabled
+                    ? "Трассы новых подключений сохраняются в BLETraces"
+                    : "Запись трассы выключена", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     private boolean checkAndRequestPermissions() {
         List<String> permissionsNeeded = new ArrayList<>();
 
@@ -70,6 +94,14 @@ public class MainActivity extends AppCompatActivity {
             permissionsNeeded.add(Manifest.permission.ACCESS_FINE_LOCATION);
         }
 
+        // Уведомление TransferService о выгрузке в фоне для Android 13+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
+                    != PackageManager.PERMISSION_GRANTED) {
+                permissionsNeeded.add(Manifest.permission.POST_NOTIFICATIONS);
+            }
+        }
+
         // Разрешения на хранилище для Android < 10
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -94,8 +126,13 @@ public class MainActivity extends AppCompatActivity {
 
         if (requestCode == REQUEST_ALL_PERMISSIONS) {
             boolean allGranted = true;
-            for (int result : grantResults) {
-                if (result != PackageManager.PERMISSION_GRANTED) {
+            for (int i = 0; i < grantResults.length; i++) {
+                // Без уведомлений выгрузка работает, только не видна в шторке
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                        && Manifest.permission.POST_NOTIFICATIONS.equals(permissions[i])) {
+                    continue;
+                }
+                if (grantResults[i] != PackageManager.PERMISSION_GRANTED) {
                     allGranted = false;
                     break;
                 }
@@ -0,0 +1,53 @@
+package com.example.ggk;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Повторные подключения после обрыва: число попыток и экспоненциальная задержка с разбросом.
+ * Первая попытка идет почти сразу - кратковременный обрыв посреди выгрузки восстанавливается
+ * за доли секунды; дальше задержка растет, чтобы не забивать эфир и контроллер.
+ * Разброс (jitter) разводит во времени переподключения нескольких логгеров после общего сбоя.
+ */
+public final class ReconnectPolicy {
+
+    /** Команды и опрос с экрана: пользователь ждет, долго пытаться незачем. */
+    public static final ReconnectPolicy COMMAND = new ReconnectPolicy(4, 500, 4000, 2.0, 0.2);
+
+    /** Выгрузка: обрыв посреди дампа стоит дорого, первая попытка сразу, попыток больше. */
+    public static final ReconnectPolicy BULK_TRANSFER = new ReconnectPolicy(6, 250, 8000, 2.0, 0.2);
+
+    public final int maxAttempts;
+    public final long initialDelayMs;
+    public final long maxDelayMs;
+    public final double multiplier;
+    // Доля задержки, на которую она случайно отклоняется в обе стороны (0 - без разброса)
+    public final double jitter;
+
+    public ReconnectPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs, double multiplier, double jitter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelayMs = Math.max(0, initialDelayMs);
+        this.maxDelayMs = Math.max(this.initialDelayMs, maxDelayMs);
+        this.multiplier = Math.max(1.0, multiplier);
+        this.jitter = Math.max(0, Math.min(jitter, 1.0));
+    }
+
+    /** Политика по умолчанию для профиля соединения. */
+    public static ReconnectPolicy forProfile(BluetoothService.LinkProfile profile) {
+        return profile == BluetoothService.LinkProfile.BULK_TRANSFER ? BULK_TRANSFER : COMMAND;
+    }
+
+    /** Задержка перед попыткой attempt (с 1). */
+    public long delayForAttempt(int attempt, Random random) {
+        double base = initialDelayMs * Math.pow(multiplier, Math.max(0, attempt - 1));
+        base = Math.min(base, maxDelayMs);
+        double spread = jitter > 0 ? base * jitter * (random.nextDouble() * 2 - 1) : 0;
+        return Math.max(0, Math.round(base + spread));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d attempts, %d..%d ms x%.1f, jitter %.0f%%",
+                maxAttempts, initialDelayMs, maxDelayMs, multiplier, jitter * 100);
+    }
+}
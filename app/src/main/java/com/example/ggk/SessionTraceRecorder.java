@@ -0,0 +1,244 @@
+package com.example.ggk;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запись трассы BLE сессии для воспроизведения SessionTraceReplayer.
+ *
+ * Формат: magic "GGKTRC01", версия (int), время начала (long, мс), затем записи
+ * [тип (byte)][интервал от предыдущей записи, нс (varint)][значение (varint)][байты].
+ * Для уведомлений и записей значение - длина, за ним идут сами байты;
+ * для остальных событий байтов нет. Методы вызываются с binder потока и ioThread.
+ *
+ * Как и CaptureFileWriter, события только копируются в буферы, на диск их переносит
+ * поток TraceWriter. Если диск не успевает, событие отбрасывается целиком и учитывается.
+ */
+public class SessionTraceRecorder implements Closeable {
+    private static final String TAG = "SessionTraceRecorder";
+
+    static final long MAGIC = 0x31304352544B4747L; // "GGKTRC01"
+    static final int VERSION = 1;
+
+    public static final int EVENT_CONNECTION_STATE = 1; // значение: 1 - подключено, 0 - отключено
+    public static final int EVENT_MTU = 2;              // значение: MTU
+    public static final int EVENT_SERVICES_DISCOVERED = 3; // значение: 1 - успех
+    public static final int EVENT_NOTIFICATION = 4;     // байты уведомления
+    public static final int EVENT_WRITE = 5;            // байты записанной команды
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFERS = 16;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    // Дописывание хвоста при закрытии: не больше одного буфера, как прежний сброс BufferedOutputStream
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+    // Тип, интервал и значение: байт и два varint
+    private static final int MAX_HEADER_SIZE = 1 + 10 + 10;
+
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final File file;
+    private final FileOutputStream output;
+    private final Thread writerThread;
+
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(MAX_BUFFERS + 1);
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(MAX_BUFFERS);
+
+    // Состояние под lock: текущий буфер производителя
+    private final Object lock = new Object();
+    private ByteBuffer activeBuffer;
+    private int allocatedBuffers = 0;
+    private long lastEventNanos;
+    private long eventCount = 0;
+    private long droppedEvents = 0;
+    private boolean closed = false;
+
+    private volatile IOException writeError;
+
+    public SessionTraceRecorder(File file) throws IOException {
+        this.file = file;
+        this.output = new FileOutputStream(file);
+
+        synchronized (lock) {
+            activeBuffer = obtainBuffer();
+            activeBuffer.putLong(MAGIC);
+            activeBuffer.putInt(VERSION);
+            activeBuffer.putLong(System.currentTimeMillis());
+            lastEventNanos = System.nanoTime();
+        }
+
+        writerThread = new Thread(this::writeLoop, "TraceWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void recordConnectionState(boolean connected) {
+        record(EVENT_CONNECTION_STATE, connected ? 1 : 0, null, 0, 0);
+    }
+
+    public void recordMtu(int mtu) {
+        record(EVENT_MTU, mtu, null, 0, 0);
+    }
+
+    public void recordServicesDiscovered(boolean success) {
+        record(EVENT_SERVICES_DISCOVERED, success ? 1 : 0, null, 0, 0);
+    }
+
+    public void recordNotification(byte[] data, int offset, int length) {
+        record(EVENT_NOTIFICATION, length, data, offset, length);
+    }
+
+    public void recordWrite(byte[] data, int offset, int length) {
+        record(EVENT_WRITE, length, data, offset, length);
+    }
+
+    public long getEventCount() {
+        synchronized (lock) {
+            return eventCount;
+        }
+    }
+
+    /** События, не попавшие в трассу, потому что диск не успевал. */
+    public long getDroppedEvents() {
+        synchronized (lock) {
+            return droppedEvents;
+        }
+    }
+
+    private void record(int type, int value, byte[] data, int offset, int length) {
+        synchronized (lock) {
+            if (closed || writeError != null) return;
+
+            int size = MAX_HEADER_SIZE + (data != null ? length : 0);
+            if (activeBuffer != null && activeBuffer.remaining() < size) {
+                handOffActiveBuffer();
+            }
+            if (activeBuffer == null) {
+                activeBuffer = size <= BUFFER_SIZE ? obtainBuffer() : ByteBuffer.allocate(size);
+                if (activeBuffer == null) {
+                    // Все буферы ждут записи - интервал следующего события отсчитывается от прошлого записанного
+                    if (droppedEvents++ == 0) {
+                        Log.w(TAG, "Storage is falling behind, dropping trace events");
+                    }
+                    return;
+                }
+            }
+
+            // Время берется под блокировкой, чтобы интервалы не были отрицательными
+            long now = System.nanoTime();
+            activeBuffer.put((byte) type);
+            putVarLong(activeBuffer, now - lastEventNanos);
+            putVarLong(activeBuffer, value);
+            if (data != null) {
+                activeBuffer.put(data, offset, length);
+            }
+            lastEventNanos = now;
+            eventCount++;
+        }
+    }
+
+    /**
+     * Передает хвост потоку записи и ждет закрытия файла (не дольше CLOSE_TIMEOUT_MS).
+     * Ошибка записи трассы сообщается здесь, прием она не прерывала.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            handOffActiveBuffer();
+            filledBuffers.offer(END_OF_STREAM);
+        }
+
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    // Вызывается под lock
+    private ByteBuffer obtainBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null && allocatedBuffers < MAX_BUFFERS) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            allocatedBuffers++;
+        }
+        return buffer;
+    }
+
+    // Вызывается под lock
+    private void handOffActiveBuffer() {
+        if (activeBuffer == null || activeBuffer.position() == 0) return;
+
+        activeBuffer.flip();
+        filledBuffers.offer(activeBuffer);
+        activeBuffer = null;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filledBuffers.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+                if (buffer == null) {
+                    // Событий давно не было - сбрасываем неполный буфер по таймеру
+                    synchronized (lock) {
+                        handOffActiveBuffer();
+                    }
+                    continue;
+                }
+                if (buffer == END_OF_STREAM) {
+                    break;
+                }
+
+                if (writeError == null) {
+                    try {
+                        output.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                    } catch (IOException e) {
+                        // Трасса - диагностика: ошибка записи не должна мешать приему
+                        Log.e(TAG, "Error writing session trace", e);
+                        writeError = e;
+                    }
+                }
+
+                buffer.clear();
+                if (buffer.capacity() == BUFFER_SIZE) {
+                    freeBuffers.offer(buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing session trace", e);
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.ggk;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Воспроизведение трассы SessionTraceRecorder в получателя (BluetoothService.getReplayTarget()
+ * или любой другой). Темп - исходный, ускоренный в N раз или максимальный.
+ * Работает на вызывающем потоке. Сам разбор трассы - обычная Java, но получателю BluetoothService
+ * нужны Handler, Looper, Log и Context: на JVM воспроизведение идет под Robolectric
+ * (SessionTraceReplayerTest). Трассы пишет BluetoothService при включенной записи в DeveloperOptions.
+ */
+public class SessionTraceReplayer {
+
+    /** Скорость "как можно быстрее" - без пауз между событиями. */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    public interface Target extends BleTransport.Listener {
+        // Записи - команды самого приложения, по умолчанию только учитываются
+        default void onWrite(byte[] data) {}
+    }
+
+    /**
+     * Итог воспроизведения: объем и скорость прогона в сравнении с исходной сессией.
+     * truncated - трасса оборвана посреди записи (приложение убито при записи), последняя запись пропущена.
+     */
+    public static final class Result {
+        public final long events;
+        public final long notifications;
+        public final long notificationBytes;
+        public final long traceDurationNanos;
+        public final long elapsedNanos;
+        public final boolean cancelled;
+        public final boolean truncated;
+
+        Result(long events, long notifications, long notificationBytes,
+               long traceDurationNanos, long elapsedNanos, boolean cancelled, boolean truncated) {
+            this.events = events;
+            this.notifications = notifications;
+            this.notificationBytes = notificationBytes;
+            this.traceDurationNanos = traceDurationNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.cancelled = cancelled;
+            this.truncated = truncated;
+        }
+
+        public double getMbPerSecond() {
+            return elapsedNanos > 0 ? (notificationBytes / (1024.0 * 1024.0)) / (elapsedNanos / 1e9) : 0;
+        }
+
+        public double getNotificationsPerSecond() {
+            return elapsedNanos > 0 ? notifications / (elapsedNanos / 1e9) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "events=%d notifications=%d bytes=%d trace=%.1fms replay=%.1fms (%.2f MB/s, %.0f notif/s)%s%s",
+                    events, notifications, notificationBytes, traceDurationNanos / 1e6, elapsedNanos / 1e6,
+                    getMbPerSecond(), getNotificationsPerSecond(), cancelled ? " cancelled" : "", truncated ? " truncated" : "");
+        }
+    }
+
+    private final File file;
+    private volatile boolean cancelled = false;
+
+    public SessionTraceReplayer(File file) {
+        this.file = file;
+    }
+
+    /** Прерывает идущее воспроизведение с любого потока. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Воспроизводит трассу, блокируя вызывающий поток.
+     * speed: 1 - исходный темп, N - в N раз быстрее, AS_FAST_AS_POSSIBLE - без пауз.
+     */
+    public Result replay(Target target, double speed) throws IOException {
+        cancelled = false;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (input.readLong() != SessionTraceRecorder.MAGIC) {
+                throw new IOException("Not a session trace: " + file.getName());
+            }
+            int version = input.readInt();
+            if (version != SessionTraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            input.readLong(); // время начала записи
+
+            long events = 0;
+            long notifications = 0;
+            long notificationBytes = 0;
+            long traceNanos = 0;
+            long startNanos = System.nanoTime();
+            boolean truncated = false;
+
+            while (!cancelled) {
+                int type = input.read();
+                if (type < 0) break;
+
+                long interval;
+                long value;
+                byte[] data = null;
+                try {
+                    interval = readVarLong(input);
+                    value = readVarLong(input);
+                    if (type == SessionTraceRecorder.EVENT_NOTIFICATION || type == SessionTraceRecorder.EVENT_WRITE) {
+                        data = new byte[(int) value];
+                        input.readFully(data);
+                    }
+                } catch (EOFException e) {
+                    // Запись оборвана на конце файла - воспроизведенное до нее остается в итоге
+                    truncated = true;
+                    break;
+                }
+                traceNanos += interval;
+
+                if (speed > 0) {
+                    long due = startNanos + (long) (traceNanos / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                switch (type) {
+                    case SessionTraceRecorder.EVENT_CONNECTION_STATE:
+                        target.onConnectionStateChange(value != 0);
+                        break;
+                    case SessionTraceRecorder.EVENT_MTU:
+                        target.onMtuChanged((int) value);
+                        break;
+                    case SessionTraceRecorder.EVENT_SERVICES_DISCOVERED:
+                        target.onServicesDiscovered(value != 0);
+                        break;
+                    case SessionTraceRecorder.EVENT_NOTIFICATION:
+                        notifications++;
+                        notificationBytes += data.length;
+                        target.onNotification(data);
+                        break;
+                    case SessionTraceRecorder.EVENT_WRITE:
+                        target.onWrite(data);
+                        break;
+                    default:
+                        throw new IOException("Unknown trace event: " + type);
+                }
+                events++;
+            }
+
+            return new Result(events, notifications, notificationBytes, traceNanos,
+                    System.nanoTime() - startNanos, cancelled, truncated);
+        }
+    }
+
+    static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) throw new EOFException("Truncated trace");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+}
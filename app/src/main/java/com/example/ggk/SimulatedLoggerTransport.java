@@ -0,0 +1,331 @@
+package com.example.ggk;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Программная модель регистратора для BluetoothService без радио.
+ * Отвечает на команды MT устройств (Idn?, DataSize?, RangesAll?, SendData, Data? и др.)
+ * строками "Имя значение\r\n" и выдает дамп 'Start\r\n' + int16 LE + 'End\r\n' по SendData
+ * или сразу после подключения (старые устройства). Размер пакета определяется MTU,
+ * темп - частотой пакетов с разбросом, часть пакетов может теряться.
+ * Можно задать время установления соединения и однократный обрыв посреди передачи.
+ * Без темпа отправка может ждать получателя, как контроллер с управлением потоком.
+ * Все события идут с отдельного потока "SimulatedLogger".
+ */
+public class SimulatedLoggerTransport implements BleTransport {
+    private static final int ATT_HEADER_SIZE = 3;
+    // Отсчеты меньше 0x4E20: пары байтов не могут сложиться в 'End\r\n' внутри данных
+    private static final int SAMPLE_MODULO = 20000;
+
+    private static final byte[] START_MARKER = "Start\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MARKER = "End\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ExecutorService peripheral = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SimulatedLogger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile Listener listener;
+    private volatile boolean connected = false;
+
+    // Состояние устройства - только поток peripheral
+    private final StringBuilder commandLine = new StringBuilder();
+    private Random random;
+    private int unitsIndex = 0;
+    private int rangeIndex = 0;
+    private int dataCursor = 0;
+
+    // Настройки
+    private volatile String idn = "MT-SIM 000001";
+    private volatile int sampleCount = 10000;
+    private volatile int mtu = 247;
+    private volatile int packetRate = 0;
+    private volatile long jitterMicros = 0;
+    private volatile double lossRate = 0;
+    private volatile boolean dumpOnConnect = false;
+    private volatile long seed = 1;
+    private volatile long connectLatencyMs = 0;
+    private volatile long dropAfterPackets = 0;
+    private volatile IntSupplier receiverBacklog;
+    private volatile int receiveWindow = 0;
+
+    private volatile long sentPackets = 0;
+    private volatile long lostPackets = 0;
+
+    public SimulatedLoggerTransport setIdn(String idn) {
+        this.idn = idn;
+        return this;
+    }
+
+    /** Число отсчетов в памяти (DataSize? и длина дампа). */
+    public SimulatedLoggerTransport setSampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+        return this;
+    }
+
+    /** Согласуемый MTU; полезная нагрузка пакета - MTU - 3. */
+    public SimulatedLoggerTransport setMtu(int mtu) {
+        this.mtu = mtu;
+        return this;
+    }
+
+    /** Пакетов в секунду, 0 - без ограничения. */
+    public SimulatedLoggerTransport setPacketRate(int packetsPerSecond) {
+        this.packetRate = packetsPerSecond;
+        return this;
+    }
+
+    /** Случайное отклонение момента отправки пакета, +/- мкс. */
+    public SimulatedLoggerTransport setJitterMicros(long jitterMicros) {
+        this.jitterMicros = jitterMicros;
+        return this;
+    }
+
+    /** Доля теряемых пакетов 0..1. */
+    public SimulatedLoggerTransport setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /** Старые устройства выдают дамп Start...End сразу после подключения. */
+    public SimulatedLoggerTransport setDumpOnConnect(boolean dumpOnConnect) {
+        this.dumpOnConnect = dumpOnConnect;
+        return this;
+    }
+
+    /** Подключение, обмен MTU и поиск сервисов вместе, мс. */
+    public SimulatedLoggerTransport setConnectLatency(long connectLatencyMs) {
+        this.connectLatencyMs = connectLatencyMs;
+        return this;
+    }
+
+    /** Однократный обрыв (onConnectionLost) после указанного числа отправленных пакетов, 0 - без обрыва. */
+    public SimulatedLoggerTransport setDropAfterPackets(long packets) {
+        this.dropAfterPackets = packets;
+        return this;
+    }
+
+    /**
+     * Пакет не отправляется, пока у получателя не обработано window и больше пакетов
+     * (BluetoothService::getPendingPackets): передача без темпа не упирается в переполнение очереди.
+     */
+    public SimulatedLoggerTransport setReceiveWindow(IntSupplier backlog, int window) {
+        this.receiverBacklog = backlog;
+        this.receiveWindow = window;
+        return this;
+    }
+
+    public SimulatedLoggerTransport setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    /** Значение отсчета с номером index - для проверки принятых данных. */
+    public static short expectedSample(int index) {
+        return (short) (index % SAMPLE_MODULO);
+    }
+
+    @Override
+    public void connect(String address, Listener listener) {
+        this.listener = listener;
+        peripheral.execute(() -> {
+            random = new Random(seed);
+            commandLine.setLength(0);
+            if (connectLatencyMs > 0) {
+                LockSupport.parkNanos(connectLatencyMs * 1_000_000L);
+            }
+            connected = true;
+            listener.onConnectionStateChange(true);
+            listener.onMtuChanged(mtu);
+            listener.onServicesDiscovered(true);
+            if (dumpOnConnect) {
+                sendDump();
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        boolean wasConnected = connected;
+        // Прерывает идущий дамп
+        connected = false;
+        if (wasConnected) {
+            peripheral.execute(() -> {
+                Listener current = listener;
+                if (current != null) {
+                    current.onConnectionStateChange(false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean write(byte[] data, GattOperationQueue.Completion completion) {
+        if (!connected) return false;
+
+        byte[] copy = data.clone();
+        peripheral.execute(() -> {
+            if (completion != null) {
+                completion.onComplete(connected, 0);
+            }
+            if (connected) {
+                receive(copy);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        listener = null;
+        peripheral.shutdownNow();
+    }
+
+    private void receive(byte[] data) {
+        for (byte b : data) {
+            char c = (char) (b & 0xFF);
+            if (c == '\r' || c == '\n') {
+                if (commandLine.length() > 0) {
+                    String command = commandLine.toString().trim();
+                    commandLine.setLength(0);
+                    handleCommand(command);
+                }
+            } else {
+                commandLine.append(c);
+            }
+        }
+    }
+
+    private void handleCommand(String command) {
+        switch (command) {
+            case "Idn?":
+                reply("Idn " + idn);
+                break;
+            case "DataSize?":
+                reply("DataSize " + sampleCount);
+                break;
+            case "WorkTime?":
+                reply("WorkTime 3600");
+                break;
+            case "PmaxAllTime?":
+                reply("PmaxAllTime 101325.00");
+                break;
+            case "Pminmax24?":
+                reply("Pminmax24 100000.00 102000.00");
+                break;
+            case "UnitsAll?":
+                reply("UnitsAll Pa kPa MPa bar");
+                break;
+            case "RangesAll?":
+                reply("RangesAll 0-1 MPa, 0-10 MPa, 0-60 MPa");
+                break;
+            case "Units?":
+                reply("Units " + unitsIndex);
+                break;
+            case "Ranges?":
+                reply("Ranges " + rangeIndex);
+                break;
+            case "Data?":
+                reply("Data " + expectedSample(dataCursor++));
+                break;
+            case "SendData":
+                sendDump();
+                break;
+            default:
+                if (command.startsWith("Units ")) {
+                    unitsIndex = parseIndex(command, unitsIndex);
+                    reply("Units " + unitsIndex);
+                } else if (command.startsWith("Ranges ")) {
+                    rangeIndex = parseIndex(command, rangeIndex);
+                    reply("Ranges " + rangeIndex);
+                } else {
+                    reply(command + " ERR");
+                }
+                break;
+        }
+    }
+
+    private static int parseIndex(String command, int fallback) {
+        try {
+            return Integer.parseInt(command.substring(command.indexOf(' ') + 1).trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private void reply(String line) {
+        send((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void sendDump() {
+        int count = sampleCount;
+        ByteArrayOutputStream dump = new ByteArrayOutputStream(START_MARKER.length + count * 2 + END_MARKER.length);
+        dump.write(START_MARKER, 0, START_MARKER.length);
+        for (int i = 0; i < count; i++) {
+            short sample = expectedSample(i);
+            dump.write(sample & 0xFF);
+            dump.write((sample >> 8) & 0xFF);
+        }
+        dump.write(END_MARKER, 0, END_MARKER.length);
+        send(dump.toByteArray());
+    }
+
+    // Делит поток на уведомления по MTU и выдает их в заданном темпе
+    private void send(byte[] stream) {
+        int payloadSize = Math.max(1, mtu - ATT_HEADER_SIZE);
+        long interval = packetRate > 0 ? 1_000_000_000L / packetRate : 0;
+        long jitterNanos = jitterMicros * 1000;
+        long due = System.nanoTime();
+
+        for (int offset = 0; offset < stream.length && connected; offset += payloadSize) {
+            if (interval > 0) {
+                due += interval;
+                long jitter = jitterNanos > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterNanos) : 0;
+                long wait = due + jitter - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            IntSupplier backlog = receiverBacklog;
+            while (backlog != null && connected && backlog.getAsInt() >= receiveWindow) {
+                LockSupport.parkNanos(100_000);
+            }
+
+            byte[] packet = Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + payloadSize));
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                lostPackets++;
+                continue;
+            }
+
+            Listener current = listener;
+            if (current == null) return;
+            current.onNotification(packet);
+            sentPackets++;
+
+            if (dropAfterPackets > 0 && sentPackets >= dropAfterPackets) {
+                dropAfterPackets = 0;
+                connected = false;
+                current.onConnectionLost();
+                return;
+            }
+        }
+    }
+}
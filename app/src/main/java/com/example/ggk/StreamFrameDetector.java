@@ -0,0 +1,145 @@
+package com.example.ggk;
+
+/**
+ * Потоковый детектор маркеров 'Start\r\n' и 'End\r\n' в байтовом потоке устройства.
+ * Маркеры находятся и на границах BLE пакетов, обработка O(1) на байт без аллокаций.
+ * Текст (включая сами маркеры) и бинарные данные отдаются слушателю диапазонами
+ * исходного массива.
+ */
+public class StreamFrameDetector {
+
+    public interface Listener {
+        void onText(byte[] data, int offset, int length);
+        void onPayloadStart();
+        void onPayload(byte[] data, int offset, int length);
+        void onPayloadEnd();
+    }
+
+    private static final byte[] START_MARKER = {'S', 't', 'a', 'r', 't'};
+    private static final byte[] END_MARKER = {'E', 'n', 'd', '\r', '\n'};
+
+    // После "Start" ждем терминатор, после '\r' - только '\n'
+    private static final int AWAIT_TERMINATOR = START_MARKER.length;
+    private static final int AWAIT_LF = START_MARKER.length + 1;
+
+    private boolean inPayload = false;
+    private int startMatched = 0;
+    private int endMatched = 0;
+    // Сколько байтов кандидата в 'End\r\n' пришло в предыдущих пакетах
+    private int endCarried = 0;
+
+    public void process(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+        int runStart = offset;
+
+        for (int i = offset; i < end; i++) {
+            int value = data[i] & 0xFF;
+
+            if (!inPayload) {
+                if (matchStart(value)) {
+                    listener.onText(data, runStart, i + 1 - runStart);
+                    inPayload = true;
+                    endMatched = 0;
+                    endCarried = 0;
+                    listener.onPayloadStart();
+                    runStart = i + 1;
+                }
+                continue;
+            }
+
+            if (value == END_MARKER[endMatched]) {
+                if (endMatched == 0) {
+                    // Отдаем данные до возможного маркера, сам кандидат придерживаем
+                    if (i > runStart) {
+                        listener.onPayload(data, runStart, i - runStart);
+                    }
+                    runStart = i;
+                }
+                endMatched++;
+
+                if (endMatched == END_MARKER.length) {
+                    inPayload = false;
+                    endMatched = 0;
+                    endCarried = 0;
+                    startMatched = 0;
+                    listener.onPayloadEnd();
+                    listener.onText(END_MARKER, 0, END_MARKER.length);
+                    runStart = i + 1;
+                }
+                continue;
+            }
+
+            if (endMatched > 0) {
+                // Кандидат не подтвердился - придержанные байты оказались данными
+                if (endCarried > 0) {
+                    listener.onPayload(END_MARKER, 0, endCarried);
+                    endCarried = 0;
+                }
+                endMatched = 0;
+
+                if (value == END_MARKER[0]) {
+                    if (i > runStart) {
+                        listener.onPayload(data, runStart, i - runStart);
+                    }
+                    runStart = i;
+                    endMatched = 1;
+                }
+            }
+        }
+
+        if (!inPayload) {
+            if (end > runStart) {
+                listener.onText(data, runStart, end - runStart);
+            }
+        } else if (endMatched > 0) {
+            // Хвост пакета может оказаться началом 'End\r\n' - решится в следующем пакете
+            endCarried = endMatched;
+        } else if (end > runStart) {
+            listener.onPayload(data, runStart, end - runStart);
+        }
+    }
+
+    private boolean matchStart(int value) {
+        if (startMatched < AWAIT_TERMINATOR) {
+            if (value == START_MARKER[startMatched]) {
+                startMatched++;
+            } else {
+                startMatched = value == START_MARKER[0] ? 1 : 0;
+            }
+            return false;
+        }
+
+        if (startMatched == AWAIT_TERMINATOR) {
+            if (value == '\n' || value == ' ') {
+                startMatched = 0;
+                return true;
+            }
+            if (value == '\r') {
+                startMatched = AWAIT_LF;
+                return false;
+            }
+        } else if (value == '\n') {
+            startMatched = 0;
+            return true;
+        }
+
+        startMatched = value == START_MARKER[0] ? 1 : 0;
+        return false;
+    }
+
+    public boolean isInPayload() {
+        return inPayload;
+    }
+
+    // Ручное переключение режима (forceNumericMode)
+    public void setInPayload(boolean enabled) {
+        inPayload = enabled;
+        startMatched = 0;
+        endMatched = 0;
+        endCarried = 0;
+    }
+
+    public void reset() {
+        setInPayload(false);
+    }
+}
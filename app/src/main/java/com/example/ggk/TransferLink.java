@@ -0,0 +1,319 @@
+package com.example.ggk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Соединение выгрузки, принадлежащее TransferService, а не фрагменту.
+ * Держит BluetoothService и всё, что нужно экрану для восстановления после пересоздания:
+ * текст консоли, информацию до Start, принятые отсчеты и признаки начала/конца выгрузки.
+ * События пересылаются текущему наблюдателю (фрагменту); без наблюдателя прием продолжается.
+ * Выгрузка MT устройства идет на общем соединении MTConnectionCache и возвращает его
+ * командам, как только закончится, - принятое при этом остается в ссылке.
+ * Все методы и события - на главном потоке.
+ */
+public class TransferLink {
+    private static final String TAG = "TransferLink";
+    private static final int MAX_CONSOLE_CHARS = 32 * 1024;
+
+    public interface Listener {
+        void onLinkChanged(TransferLink link);
+    }
+
+    private final String deviceAddress;
+    private final BluetoothService bluetoothService;
+    private final Listener serviceListener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Общее соединение на время выгрузки; null - свое соединение или уже возвращено
+    private MTConnectionCache.Connection sharedConnection;
+    private final boolean ownsService;
+
+    private BluetoothService.BluetoothCallback observer;
+    private BluetoothService.PayloadListener payloadObserver;
+
+    private boolean started = false;
+    private boolean closed = false;
+    private boolean connected = false;
+    private final FormattedTextWindow consoleText = new FormattedTextWindow(MAX_CONSOLE_CHARS);
+    private String infoText = "";
+    private boolean payloadStarted = false;
+    private boolean payloadFinished = false;
+    private short[] samples = new short[4096];
+    private int sampleCount = 0;
+    private long totalBytes = 0;
+    private double kbPerSecond = 0;
+    private long startTime = 0;
+    private long payloadStartTime = 0;
+
+    /** transport - канал вместо BluetoothGatt (симулятор); null - обычный GATT. */
+    TransferLink(Context context, String deviceAddress, BleTransport transport, Listener serviceListener) {
+        this.deviceAddress = deviceAddress;
+        this.serviceListener = serviceListener;
+        this.bluetoothService = new BluetoothService(context, transport);
+        this.ownsService = true;
+        bluetoothService.setCallback(callback);
+        bluetoothService.setPayloadListener(payloadListener);
+        // Пока экран не подключился - без консоли и кадровой доставки
+        bluetoothService.setConsoleEnabled(false);
+        bluetoothService.setUiVisible(false);
+    }
+
+    /** Выгрузка на общем соединении MT устройства; ссылка на него переходит к TransferLink. */
+    TransferLink(MTConnectionCache.Connection connection, Listener serviceListener) {
+        this.deviceAddress = connection.getDeviceAddress();
+        this.serviceListener = serviceListener;
+        this.bluetoothService = connection.getBluetoothService();
+        this.ownsService = false;
+        this.sharedConnection = connection;
+        connection.addCallback(callback);
+        connection.beginTransfer(payloadListener);
+        bluetoothService.setConsoleEnabled(false);
+        bluetoothService.setUiVisible(false);
+    }
+
+    /**
+     * Настройки (режимы, профиль) задаются через getBluetoothService() до connect,
+     * ожидаемый размер - после: подключение сбрасывает статистику.
+     */
+    public BluetoothService getBluetoothService() {
+        return bluetoothService;
+    }
+
+    public void connect(UUID serviceUuid, UUID characteristicUuid, BluetoothService.LinkProfile profile) {
+        if (closed) return;
+        if (!started) {
+            started = true;
+            startTime = System.currentTimeMillis();
+        }
+        if (sharedConnection != null) {
+            // UUID общего соединения заданы кэшем (FFF0/FFF1/FFF2)
+            sharedConnection.ensureConnected(profile);
+            if (sharedConnection.isReady()) {
+                // Соединение уже открыто другой вкладкой - экран сразу переходит к выгрузке
+                mainHandler.post(() -> {
+                    if (sharedConnection == null) return;
+                    callback.onConnectionStateChange(true);
+                    callback.onServicesDiscovered(true);
+                });
+            }
+        } else if (ownsService) {
+            bluetoothService.connect(deviceAddress, serviceUuid, characteristicUuid, profile);
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Экран подключается к соединению (null, null - отключается).
+     * Накопленное не пересылается - экран забирает его через геттеры.
+     */
+    public void setObserver(BluetoothService.BluetoothCallback observer,
+                            BluetoothService.PayloadListener payloadObserver) {
+        this.observer = observer;
+        this.payloadObserver = payloadObserver;
+        if (observer == null) {
+            setConsoleEnabled(false);
+            setUiVisible(false);
+        }
+    }
+
+    /** Видимость экрана для доставки обновлений; возвращенное в кэш соединение не затрагивается. */
+    public void setUiVisible(boolean visible) {
+        if (holdsService()) {
+            bluetoothService.setUiVisible(visible);
+        }
+    }
+
+    public void setConsoleEnabled(boolean enabled) {
+        if (holdsService()) {
+            bluetoothService.setConsoleEnabled(enabled);
+        }
+    }
+
+    /** Экран завершил выгрузку сам (MT - по паузе в данных), End больше не ждем. */
+    public void markFinished() {
+        if (payloadFinished) return;
+        payloadFinished = true;
+        releaseConnection();
+        notifyChanged();
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        observer = null;
+        payloadObserver = null;
+        if (ownsService) {
+            bluetoothService.close();
+        } else {
+            releaseConnection();
+        }
+        Log.d(TAG, "Link closed: " + deviceAddress);
+    }
+
+    private boolean holdsService() {
+        return !closed && (ownsService || sharedConnection != null);
+    }
+
+    // Выгрузка закончена - общее соединение снова для команд, ссылку на него отдаем кэшу
+    private void releaseConnection() {
+        MTConnectionCache.Connection connection = sharedConnection;
+        if (connection == null) return;
+        sharedConnection = null;
+        connection.removeCallback(callback);
+        connection.endTransfer();
+        MTConnectionCache.getInstance().release(connection);
+    }
+
+    private final BluetoothService.BluetoothCallback callback = new BluetoothService.BluetoothCallback() {
+        @Override
+        public void onConnectionStateChange(boolean isConnected) {
+            connected = isConnected;
+            notifyChanged();
+            if (observer != null) observer.onConnectionStateChange(isConnected);
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            if (observer != null) observer.onServicesDiscovered(success);
+        }
+
+        @Override
+        public void onDataReceived(byte[] data, String formattedData) {
+            if (observer != null) observer.onDataReceived(data, formattedData);
+        }
+
+        @Override
+        public void onDataBatch(String formattedBatch, long bytes, double speed) {
+            consoleText.append(formattedBatch);
+            totalBytes = bytes;
+            kbPerSecond = speed;
+            if (observer != null) observer.onDataBatch(formattedBatch, bytes, speed);
+        }
+
+        @Override
+        public void onError(String message) {
+            if (observer != null) observer.onError(message);
+        }
+
+        @Override
+        public void onReconnectAttempt(int attempt, int maxAttempts) {
+            if (observer != null) observer.onReconnectAttempt(attempt, maxAttempts);
+        }
+
+        @Override
+        public void onLinkParametersChanged(BluetoothService.LinkParameters parameters) {
+            if (observer != null) observer.onLinkParametersChanged(parameters);
+        }
+    };
+
+    private final BluetoothService.PayloadListener payloadListener = new BluetoothService.PayloadListener() {
+        @Override
+        public void onPayloadStarted() {
+            if (!payloadStarted) {
+                payloadStarted = true;
+                payloadStartTime = System.currentTimeMillis();
+                // Текст до Start - информация об устройстве, после - консоль выгрузки
+                int startIndex = consoleText.lastIndexOf("Start");
+                if (startIndex == -1) {
+                    startIndex = consoleText.length();
+                }
+                infoText = consoleText.subSequence(0, startIndex).toString();
+                consoleText.removeHead(startIndex + 5);
+            }
+            if (payloadObserver != null) payloadObserver.onPayloadStarted();
+        }
+
+        @Override
+        public void onSamplesReceived(short[] values, long bytes, double speed) {
+            if (sampleCount + values.length > samples.length) {
+                samples = java.util.Arrays.copyOf(samples, Math.max(samples.length * 2, sampleCount + values.length));
+            }
+            System.arraycopy(values, 0, samples, sampleCount, values.length);
+            sampleCount += values.length;
+            totalBytes = bytes;
+            kbPerSecond = speed;
+            if (payloadObserver != null) payloadObserver.onSamplesReceived(values, bytes, speed);
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            payloadFinished = true;
+            releaseConnection();
+            notifyChanged();
+            if (payloadObserver != null) payloadObserver.onPayloadFinished();
+        }
+    };
+
+    private void notifyChanged() {
+        if (serviceListener != null) {
+            serviceListener.onLinkChanged(this);
+        }
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /** connect уже вызывался - экран должен восстановиться, а не подключаться заново. */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isPayloadStarted() {
+        return payloadStarted;
+    }
+
+    public boolean isPayloadFinished() {
+        return payloadFinished;
+    }
+
+    /** Идет прием: соединение открыто и End еще не пришел. */
+    public boolean isTransferring() {
+        return started && !closed && !payloadFinished;
+    }
+
+    public String getInfoText() {
+        return payloadStarted ? infoText : consoleText.toString();
+    }
+
+    public String getConsoleText() {
+        return payloadStarted ? consoleText.toString() : "";
+    }
+
+    /** Копия всех принятых с начала выгрузки отсчетов. */
+    public short[] getSamples() {
+        return java.util.Arrays.copyOf(samples, sampleCount);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public double getKbPerSecond() {
+        return kbPerSecond;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getPayloadStartTime() {
+        return payloadStartTime;
+    }
+}
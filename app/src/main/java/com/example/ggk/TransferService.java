@@ -0,0 +1,265 @@
+package com.example.ggk;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Foreground сервис, которому принадлежат соединения выгрузки (TransferLink) и очередь
+ * DownloadScheduler. Поворот экрана, пролистывание вкладок и уход приложения в фон
+ * больше не обрывают прием: фрагменты только подключаются к соединению и наблюдают.
+ * Пока есть открытые соединения или выгрузки, сервис держится в foreground с уведомлением.
+ * Все методы вызываются с главного потока.
+ */
+public class TransferService extends Service {
+    private static final String TAG = "TransferService";
+    private static final String CHANNEL_ID = "transfers";
+    private static final int NOTIFICATION_ID = 1;
+
+    public class LocalBinder extends Binder {
+        public TransferService getService() {
+            return TransferService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Map<String, TransferLink> links = new HashMap<>();
+    private DownloadScheduler downloadScheduler;
+    private DownloadScheduler.Listener downloadObserver;
+    private boolean foreground = false;
+
+    /** Intent для bindService из фрагментов. */
+    public static Intent intent(Context context) {
+        return new Intent(context, TransferService.class);
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Запуск через startForegroundService обязан перейти в foreground
+        enterForeground();
+        if (!hasWork()) {
+            stopForegroundIfIdle();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "Service destroyed, closing " + links.size() + " links");
+        for (TransferLink link : new ArrayList<>(links.values())) {
+            link.close();
+        }
+        links.clear();
+        if (downloadScheduler != null) {
+            downloadScheduler.setListener(null);
+            downloadScheduler.cancel();
+            downloadScheduler = null;
+        }
+        super.onDestroy();
+    }
+
+    /** Текущее соединение с устройством или null. */
+    @Nullable
+    public TransferLink getLink(String deviceAddress) {
+        return links.get(deviceAddress);
+    }
+
+    /** Новое соединение с устройством; прежнее, если было, закрывается. */
+    public TransferLink openLink(String deviceAddress) {
+        closeLink(deviceAddress);
+        return registerLink(new TransferLink(getApplicationContext(), deviceAddress, null, linkListener));
+    }
+
+    /** Выгрузка MT устройства на соединении, общем с вкладками команд (MTConnectionCache). */
+    public TransferLink openMTLink(String deviceAddress) {
+        closeLink(deviceAddress);
+        MTConnectionCache.Connection connection =
+                MTConnectionCache.getInstance().acquire(getApplicationContext(), deviceAddress);
+        return registerLink(new TransferLink(connection, linkListener));
+    }
+
+    private TransferLink registerLink(TransferLink link) {
+        String deviceAddress = link.getDeviceAddress();
+        links.put(deviceAddress, link);
+        Log.d(TAG, "Link opened: " + deviceAddress + " (" + links.size() + " total)");
+        startAsForeground();
+        return link;
+    }
+
+    /** Закрывает соединение: выгрузка завершена или экран устройства закрыт. */
+    public void closeLink(String deviceAddress) {
+        TransferLink link = links.remove(deviceAddress);
+        if (link != null) {
+            link.close();
+            updateNotification();
+            stopForegroundIfIdle();
+        }
+    }
+
+    /** Очередь выгрузки нескольких логгеров; null - не идет. */
+    @Nullable
+    public DownloadScheduler getDownloadScheduler() {
+        return downloadScheduler;
+    }
+
+    /**
+     * Ставит логгеры в очередь; одновременно выгружается не больше maxConcurrent.
+     * Если очередь уже идет, сессии добавляются в нее с прежним ограничением.
+     */
+    public DownloadScheduler startDownloads(List<DownloadSession> sessions, int maxConcurrent) {
+        if (downloadScheduler == null) {
+            downloadScheduler = new DownloadScheduler(maxConcurrent, schedulerListener);
+        }
+        startAsForeground();
+        for (DownloadSession session : sessions) {
+            downloadScheduler.enqueue(session);
+        }
+        updateNotification();
+        return downloadScheduler;
+    }
+
+    /** Экран списка устройств подписывается на ход выгрузки (null - отписка). */
+    public void setDownloadObserver(@Nullable DownloadScheduler.Listener observer) {
+        this.downloadObserver = observer;
+    }
+
+    private final TransferLink.Listener linkListener = link -> updateNotification();
+
+    private final DownloadScheduler.Listener schedulerListener = new DownloadScheduler.Listener() {
+        @Override
+        public void onSessionStarted(DownloadSession session) {
+            if (downloadObserver != null) downloadObserver.onSessionStarted(session);
+        }
+
+        @Override
+        public void onSessionProgress(DownloadSession session, DownloadScheduler.Summary summary) {
+            if (downloadObserver != null) downloadObserver.onSessionProgress(session, summary);
+        }
+
+        @Override
+        public void onSessionFinished(DownloadSession session, DownloadScheduler.Summary summary) {
+            updateNotification();
+            if (downloadObserver != null) downloadObserver.onSessionFinished(session, summary);
+        }
+
+        @Override
+        public void onAllFinished(DownloadScheduler.Summary summary) {
+            downloadScheduler = null;
+            if (downloadObserver != null) downloadObserver.onAllFinished(summary);
+            updateNotification();
+            stopForegroundIfIdle();
+        }
+    };
+
+    private boolean hasWork() {
+        return !links.isEmpty() || downloadScheduler != null;
+    }
+
+    private void startAsForeground() {
+        if (foreground) {
+            updateNotification();
+            return;
+        }
+        // Сервис должен быть запущен, а не только привязан, - иначе он умрет с последним экраном
+        ContextCompat.startForegroundService(this, intent(this));
+        enterForeground();
+    }
+
+    private void enterForeground() {
+        if (foreground) return;
+        createNotificationChannel();
+        int type = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE : 0;
+        try {
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(), type);
+            foreground = true;
+            Log.d(TAG, "Entered foreground");
+        } catch (Exception e) {
+            // Нет разрешения BLUETOOTH_CONNECT или запуск из фона запрещен - работаем как обычный сервис
+            Log.e(TAG, "Cannot start foreground", e);
+        }
+    }
+
+    private void stopForegroundIfIdle() {
+        if (hasWork()) return;
+        if (foreground) {
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+            foreground = false;
+            Log.d(TAG, "Left foreground");
+        }
+        // Привязанные экраны продолжают держать сервис, запуск снимается
+        stopSelf();
+    }
+
+    private void updateNotification() {
+        if (!foreground) return;
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null) {
+            manager.notify(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    private Notification buildNotification() {
+        String text;
+        if (downloadScheduler != null) {
+            DownloadScheduler.Summary summary = downloadScheduler.getSummary();
+            text = "Выгрузка логгеров: " + (summary.completed + summary.failed) + " из " + summary.total;
+        } else {
+            int transferring = 0;
+            for (TransferLink link : links.values()) {
+                if (link.isTransferring()) transferring++;
+            }
+            text = transferring > 0 ? "Прием данных: " + transferring + " устр." : "Устройства подключены";
+        }
+
+        Intent launch = new Intent(this, MainActivity.class)
+                .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, launch,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_sync)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    private void createNotificationChannel() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null && manager.getNotificationChannel(CHANNEL_ID) == null) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Передача данных",
+                    NotificationManager.IMPORTANCE_LOW);
+            manager.createNotificationChannel(channel);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.ggk;
+
+import java.util.Locale;
+
+/**
+ * Статистика приема: гистограмма интервалов между уведомлениями, задержки потока,
+ * потерянные пакеты и вывод потерь из размера int16 данных и ожидаемого числа отсчетов.
+ * Пакеты учитываются на потоке GATT callback, события данных - на потоке обработки.
+ */
+public class TransferStatistics {
+
+    // Верхние границы корзин гистограммы интервалов, мс; последняя корзина - всё, что больше
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+    // Пауза внутри Start...End длиннее порога считается задержкой потока
+    private static final long STALL_THRESHOLD_NANOS = 500_000_000L;
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    /** Неизменяемый снимок для отображения на экранах передачи. */
+    public static final class Snapshot {
+        public final long packets;
+        public final long bytes;
+        public final long durationMs;
+        public final long[] intervalHistogram;
+        public final double meanIntervalMs;
+        public final double maxIntervalMs;
+        public final int stallCount;
+        public final long stallTimeMs;
+        public final long droppedPackets;
+        public final long payloadBytes;
+        public final int oddPayloads;
+        public final long expectedSamples;
+        public final long receivedSamples;
+        // Выгрузка дошла до End: только тогда недостача отсчетов означает потери
+        public final boolean payloadFinished;
+
+        Snapshot(long packets, long bytes, long durationMs, long[] intervalHistogram,
+                 double meanIntervalMs, double maxIntervalMs, int stallCount, long stallTimeMs,
+                 long droppedPackets, long payloadBytes, int oddPayloads,
+                 long expectedSamples, long receivedSamples, boolean payloadFinished) {
+            this.packets = packets;
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+            this.intervalHistogram = intervalHistogram;
+            this.meanIntervalMs = meanIntervalMs;
+            this.maxIntervalMs = maxIntervalMs;
+            this.stallCount = stallCount;
+            this.stallTimeMs = stallTimeMs;
+            this.droppedPackets = droppedPackets;
+            this.payloadBytes = payloadBytes;
+            this.oddPayloads = oddPayloads;
+            this.expectedSamples = expectedSamples;
+            this.receivedSamples = receivedSamples;
+            this.payloadFinished = payloadFinished;
+        }
+
+        public double getKbPerSecond() {
+            return durationMs > 0 ? (bytes / 1024.0) / (durationMs / 1000.0) : 0;
+        }
+
+        /** Недостающие отсчеты; до End выгрузка просто еще идет - 0. */
+        public long getMissingSamples() {
+            return expectedSamples > 0 && payloadFinished ? Math.max(0, expectedSamples - receivedSamples) : 0;
+        }
+
+        /** Потерянные пакеты: отброшенные при переполнении плюс выведенные из недостающих байтов данных. */
+        public long getLostPacketEstimate() {
+            long inferred = 0;
+            if (expectedSamples > 0 && payloadFinished) {
+                // По байтам, а не по отсчетам: непарный байт тоже был принят
+                long missingBytes = expectedSamples * 2 - payloadBytes;
+                if (missingBytes > 0) {
+                    long averagePacket = packets > 0 ? Math.max(1, bytes / packets) : 1;
+                    inferred = (missingBytes + averagePacket - 1) / averagePacket;
+                }
+            }
+            // Нечетное число байтов int16 данных - в этой выгрузке потерян как минимум один пакет
+            inferred = Math.max(inferred, oddPayloads);
+            return droppedPackets + inferred;
+        }
+
+        public double getLossRate() {
+            long lost = getLostPacketEstimate();
+            long total = packets + lost;
+            return total > 0 ? (lost * 100.0 / total) : 0.0;
+        }
+
+        public static long getBucketBoundMs(int bucket) {
+            return bucket < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[bucket] : Long.MAX_VALUE;
+        }
+
+        /** Краткое описание для экранов передачи. */
+        public String toDisplayString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US, "Пакетов: %d, потеряно: ~%d (%.1f%%)",
+                    packets, getLostPacketEstimate(), getLossRate()));
+            text.append(String.format(Locale.US, "\nИнтервал: ср. %.1f мс, макс. %.0f мс, задержек: %d (%.1f с)",
+                    meanIntervalMs, maxIntervalMs, stallCount, stallTimeMs / 1000.0));
+            if (expectedSamples > 0) {
+                text.append(String.format(Locale.US, "\nОтсчетов: %d из %d", receivedSamples, expectedSamples));
+            }
+            if (oddPayloads > 0) {
+                text.append("\nНечетный размер данных: часть байтов потеряна");
+            }
+            return text.toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "packets=%d bytes=%d dropped=%d lost~%d stalls=%d maxInterval=%.1fms samples=%d/%d",
+                    packets, bytes, droppedPackets, getLostPacketEstimate(), stallCount, maxIntervalMs,
+                    receivedSamples, expectedSamples);
+        }
+    }
+
+    private final long[] intervalHistogram = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long packets;
+    private long bytes;
+    private long firstPacketNanos;
+    private long lastPacketNanos;
+    private long intervalSumNanos;
+    private long maxIntervalNanos;
+    private int stallCount;
+    private long stallNanos;
+    private long droppedPackets;
+
+    private boolean inPayload;
+    private long payloadBytes;
+    private long currentPayloadBytes;
+    private int oddPayloads;
+    private long expectedSamples = -1;
+    private long receivedSamples;
+    private boolean payloadFinished;
+
+    public synchronized void onPacket(int length, long nowNanos) {
+        if (packets > 0) {
+            long interval = nowNanos - lastPacketNanos;
+            intervalSumNanos += interval;
+            if (interval > maxIntervalNanos) {
+                maxIntervalNanos = interval;
+            }
+            intervalHistogram[bucketFor(interval)]++;
+
+            if (inPayload && interval > STALL_THRESHOLD_NANOS) {
+                stallCount++;
+                stallNanos += interval;
+            }
+        } else {
+            firstPacketNanos = nowNanos;
+        }
+
+        lastPacketNanos = nowNanos;
+        packets++;
+        bytes += length;
+    }
+
+    public synchronized void onPacketDropped() {
+        droppedPackets++;
+    }
+
+    public synchronized void onPayloadStarted() {
+        inPayload = true;
+        payloadFinished = false;
+        currentPayloadBytes = 0;
+    }
+
+    public synchronized void onPayloadBytes(int length) {
+        payloadBytes += length;
+        currentPayloadBytes += length;
+    }
+
+    public synchronized void onSamplesDecoded(int count) {
+        receivedSamples += count;
+    }
+
+    public synchronized void onPayloadFinished() {
+        if (inPayload && (currentPayloadBytes & 1) != 0) {
+            oddPayloads++;
+        }
+        if (inPayload) {
+            payloadFinished = true;
+        }
+        inPayload = false;
+    }
+
+    /**
+     * Ожидаемое число отсчетов (DataSize? для MT устройств), -1 если неизвестно.
+     * reset() его сбрасывает - задается после подключения, перед выгрузкой.
+     */
+    public synchronized void setExpectedSampleCount(long count) {
+        expectedSamples = count;
+    }
+
+    public synchronized long getPackets() {
+        return packets;
+    }
+
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    public synchronized void reset() {
+        java.util.Arrays.fill(intervalHistogram, 0);
+        packets = 0;
+        bytes = 0;
+        firstPacketNanos = 0;
+        lastPacketNanos = 0;
+        intervalSumNanos = 0;
+        maxIntervalNanos = 0;
+        stallCount = 0;
+        stallNanos = 0;
+        droppedPackets = 0;
+        inPayload = false;
+        payloadBytes = 0;
+        currentPayloadBytes = 0;
+        oddPayloads = 0;
+        expectedSamples = -1;
+        receivedSamples = 0;
+        payloadFinished = false;
+    }
+
+    public synchronized Snapshot snapshot() {
+        long durationMs = packets > 1 ? (lastPacketNanos - firstPacketNanos) / NANOS_PER_MS : 0;
+        double meanIntervalMs = packets > 1 ? intervalSumNanos / (double) (packets - 1) / NANOS_PER_MS : 0;
+        return new Snapshot(packets, bytes, durationMs, intervalHistogram.clone(),
+                meanIntervalMs, maxIntervalNanos / (double) NANOS_PER_MS, stallCount, stallNanos / NANOS_PER_MS,
+                droppedPackets, payloadBytes, oddPayloads, expectedSamples, receivedSamples, payloadFinished);
+    }
+
+    private static int bucketFor(long intervalNanos) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (intervalNanos < BUCKET_BOUNDS_MS[i] * NANOS_PER_MS) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+}
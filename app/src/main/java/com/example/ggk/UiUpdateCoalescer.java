@@ -0,0 +1,254 @@
+package com.example.ggk;
+
+import android.os.Handler;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Доставка обновлений приема на главный поток не чаще одного раза за кадр.
+ * Поток обработки добавляет текст пачек, счетчики и события выгрузки; на ближайшем кадре
+ * Choreographer всё накопленное уходит в Sink в порядке добавления: текст перед маркером Start
+ * приходит раньше onPayloadStarted, End и следующий Start в одном кадре не меняются местами.
+ * Соседние куски текста и соседние отсчеты склеиваются, счетчики берутся последние.
+ * Пока экран скрыт, кадры не запрашиваются - накопленное отдается раз в HIDDEN_FLUSH_INTERVAL,
+ * чтобы таймауты и разбор ответов продолжали работать.
+ */
+public class UiUpdateCoalescer {
+    private static final String TAG = "UiUpdateCoalescer";
+    private static final long HIDDEN_FLUSH_INTERVAL = 1000;
+    // Текст копится только для консоли, старая часть отбрасывается с подсчетом
+    private static final int MAX_PENDING_TEXT = 64 * 1024;
+
+    private static final int ENTRY_TEXT = 0;
+    private static final int ENTRY_STARTED = 1;
+    private static final int ENTRY_SAMPLES = 2;
+    private static final int ENTRY_FINISHED = 3;
+
+    public interface Sink {
+        void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond);
+        void onPayloadStarted();
+        void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond);
+        void onPayloadFinished();
+    }
+
+    private static final class Entry {
+        final int type;
+        StringBuilder text;
+        short[] samples;
+        int count;
+
+        Entry(int type) {
+            this.type = type;
+        }
+
+        void append(short[] values) {
+            if (samples == null) {
+                samples = values.clone();
+                count = values.length;
+                return;
+            }
+            if (count + values.length > samples.length) {
+                samples = java.util.Arrays.copyOf(samples, Math.max(samples.length * 2, count + values.length));
+            }
+            System.arraycopy(values, 0, samples, count, values.length);
+            count += values.length;
+        }
+    }
+
+    private final Handler mainHandler;
+    private final Sink sink;
+    private volatile Choreographer choreographer;
+
+    // Накопленное между кадрами, под lock
+    private final Object lock = new Object();
+    private List<Entry> pending = new ArrayList<>();
+    private int pendingTextLength = 0;
+    private long droppedTextChars = 0;
+    private long droppedSinceFlush = 0;
+    private long totalBytes = 0;
+    private double kbPerSecond = 0;
+    private boolean scheduled = false;
+    private boolean visible = true;
+
+    public UiUpdateCoalescer(Handler mainHandler, Sink sink) {
+        this.mainHandler = mainHandler;
+        this.sink = sink;
+        // Choreographer привязан к потоку, экземпляр главного потока берем на нем самом
+        mainHandler.post(() -> choreographer = Choreographer.getInstance());
+    }
+
+    public void addBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+        synchronized (lock) {
+            Entry last = lastEntry();
+            if (last == null || last.type != ENTRY_TEXT) {
+                last = new Entry(ENTRY_TEXT);
+                last.text = new StringBuilder();
+                pending.add(last);
+            }
+            last.text.append(formattedBatch);
+            pendingTextLength += formattedBatch.length();
+            if (pendingTextLength > MAX_PENDING_TEXT) {
+                trimPendingText(pendingTextLength - MAX_PENDING_TEXT);
+            }
+            updateCounters(totalBytes, kbPerSecond);
+            requestDelivery();
+        }
+    }
+
+    public void addPayloadStarted() {
+        addEvent(ENTRY_STARTED);
+    }
+
+    public void addSamples(short[] samples, long totalBytes, double kbPerSecond) {
+        synchronized (lock) {
+            Entry last = lastEntry();
+            if (last == null || last.type != ENTRY_SAMPLES) {
+                last = new Entry(ENTRY_SAMPLES);
+                pending.add(last);
+            }
+            last.append(samples);
+            updateCounters(totalBytes, kbPerSecond);
+            requestDelivery();
+        }
+    }
+
+    public void addPayloadFinished() {
+        addEvent(ENTRY_FINISHED);
+    }
+
+    /** Сколько символов консоли отброшено из-за переполнения между кадрами. */
+    public long getDroppedTextChars() {
+        synchronized (lock) {
+            return droppedTextChars;
+        }
+    }
+
+    /** Экран с данными виден - доставка по кадрам; скрыт - редко и без кадров. */
+    public void setVisible(boolean visible) {
+        synchronized (lock) {
+            if (this.visible == visible) return;
+            this.visible = visible;
+
+            if (visible && scheduled) {
+                // Отложенная доставка скрытого режима заменяется ближайшим кадром
+                mainHandler.removeCallbacks(flushRunnable);
+                scheduled = false;
+                requestDelivery();
+            }
+        }
+    }
+
+    /** Отбрасывает недоставленное (новое соединение). */
+    public void clear() {
+        synchronized (lock) {
+            pending.clear();
+            pendingTextLength = 0;
+            droppedSinceFlush = 0;
+        }
+    }
+
+    private void addEvent(int type) {
+        synchronized (lock) {
+            pending.add(new Entry(type));
+            requestDelivery();
+        }
+    }
+
+    // Вызывается под lock
+    private Entry lastEntry() {
+        return pending.isEmpty() ? null : pending.get(pending.size() - 1);
+    }
+
+    // Вызывается под lock; режет самый старый текст, пустые куски остаются ради onDataBatch
+    private void trimPendingText(int excess) {
+        int left = excess;
+        for (Entry entry : pending) {
+            if (left == 0) break;
+            if (entry.type != ENTRY_TEXT) continue;
+            int cut = Math.min(left, entry.text.length());
+            entry.text.delete(0, cut);
+            left -= cut;
+        }
+        pendingTextLength -= excess;
+        droppedSinceFlush += excess;
+        droppedTextChars += excess;
+    }
+
+    // Вызывается под lock
+    private void updateCounters(long totalBytes, double kbPerSecond) {
+        this.totalBytes = totalBytes;
+        this.kbPerSecond = kbPerSecond;
+    }
+
+    // Вызывается под lock
+    private void requestDelivery() {
+        if (scheduled) return;
+        scheduled = true;
+
+        Choreographer frames = choreographer;
+        if (!visible) {
+            mainHandler.postDelayed(flushRunnable, HIDDEN_FLUSH_INTERVAL);
+        } else if (frames != null) {
+            frames.postFrameCallback(frameCallback);
+        } else {
+            mainHandler.post(flushRunnable);
+        }
+    }
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    private final Runnable flushRunnable = this::flush;
+
+    // Главный поток
+    private void flush() {
+        long bytes;
+        double speed;
+        long dropped;
+        List<Entry> entries;
+        synchronized (lock) {
+            scheduled = false;
+            bytes = totalBytes;
+            speed = kbPerSecond;
+            entries = pending;
+            pending = new ArrayList<>();
+            pendingTextLength = 0;
+            dropped = droppedSinceFlush;
+            droppedSinceFlush = 0;
+        }
+
+        if (dropped > 0) {
+            Log.w(TAG, "Console overflow: dropped " + dropped + " chars of oldest text");
+        }
+        for (Entry entry : entries) {
+            try {
+                switch (entry.type) {
+                    case ENTRY_TEXT:
+                        sink.onDataBatch(entry.text.toString(), bytes, speed);
+                        break;
+                    case ENTRY_STARTED:
+                        sink.onPayloadStarted();
+                        break;
+                    case ENTRY_SAMPLES:
+                        short[] samples = entry.count == entry.samples.length
+                                ? entry.samples
+                                : java.util.Arrays.copyOf(entry.samples, entry.count);
+                        sink.onSamplesReceived(samples, bytes, speed);
+                        break;
+                    case ENTRY_FINISHED:
+                        sink.onPayloadFinished();
+                        break;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error delivering UI update", e);
+            }
+        }
+    }
+}
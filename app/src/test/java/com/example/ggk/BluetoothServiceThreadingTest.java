@@ -0,0 +1,113 @@
+package com.example.ggk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Обработка BLE данных не попадает на главный поток: уведомления, обрыв с переподключением
+ * и таймауты команд проходят через BluetoothService, getMainThreadProcessingCount() остается 0.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BluetoothServiceThreadingTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    private SimulatedLoggerTransport sim;
+    private BluetoothService service;
+    private MTCommandEngine engine;
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger reconnectAttempts = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedLoggerTransport()
+                .setSampleCount(50000)
+                .setMtu(247)
+                .setPacketRate(2000)
+                .setDropAfterPackets(100);
+        service = new BluetoothService(RuntimeEnvironment.getApplication(), sim);
+        service.setRawTextMode(true);
+        service.setReconnectPolicy(new ReconnectPolicy(3, 50, 200, 2.0, 0));
+        engine = new MTCommandEngine(service::sendCommand);
+        service.setCallback(new BluetoothService.BluetoothCallback() {
+            @Override
+            public void onConnectionStateChange(boolean connected) {
+                if (connected) connects.incrementAndGet();
+            }
+
+            @Override
+            public void onServicesDiscovered(boolean success) {}
+
+            @Override
+            public void onDataReceived(byte[] data, String formattedData) {}
+
+            @Override
+            public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+                engine.onText(formattedBatch);
+            }
+
+            @Override
+            public void onError(String message) {}
+
+            @Override
+            public void onReconnectAttempt(int attempt, int maxAttempts) {
+                reconnectAttempts.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        engine.cancelAll("Test finished");
+        service.close();
+    }
+
+    @Test
+    public void notificationsReconnectsAndTimeoutsStayOffMainThread() throws Exception {
+        service.connectForMTDevice("00:00:00:00:05:01", SERVICE_UUID, READ_UUID, WRITE_UUID);
+        TestLoopers.runUntil(service::isServicesDiscovered, 5000);
+
+        // Ответ приходит уведомлением и режется на строки
+        CompletableFuture<String> idn = engine.submit("Idn?", 2000);
+        TestLoopers.runUntil(idn::isDone, 5000);
+        assertEquals("MT-SIM 000001", idn.get());
+
+        // Неизвестная команда: устройство повторяет ее с '?', ответа нет - таймаут на главном потоке
+        CompletableFuture<String> unanswered = engine.submit("Unknown?", 200);
+        TestLoopers.runUntil(unanswered::isDone, 5000);
+        try {
+            unanswered.get();
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // Дамп обрывается после 100 пакетов, сервис переподключается по политике
+        service.setRawTextMode(false);
+        assertTrue(service.sendCommand("SendData\r"));
+        TestLoopers.runUntil(() -> connects.get() >= 2 && service.isServicesDiscovered(), 10000);
+        assertTrue(reconnectAttempts.get() >= 1);
+        assertTrue(sim.getSentPackets() >= 100);
+
+        // После переподключения дамп целиком
+        long before = service.getTotalPacketsReceived();
+        assertTrue(service.sendCommand("SendData\r"));
+        TestLoopers.runUntil(service::isReceptionComplete, 10000);
+        assertTrue(service.getTotalPacketsReceived() > before);
+
+        assertEquals(0, service.getMainThreadProcessingCount());
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.ggk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class CaptureContainerTest {
+    private static final byte[] TEXT = "Idn MT-SIM 000001\r\nStart\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "End\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("capture", ".ggkcap");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    // Текст, Start, данные, End - события с позициями, как их пишет BluetoothService
+    private static void writeSession(CaptureContainer container, byte[] data) throws IOException {
+        container.write(ByteBuffer.wrap(TEXT));
+        container.addEvent(CaptureContainer.EVENT_START, 0, TEXT.length);
+        container.write(ByteBuffer.wrap(data));
+        container.addEvent(CaptureContainer.EVENT_END, 0, TEXT.length + data.length);
+        container.write(ByteBuffer.wrap(END));
+    }
+
+    private static void assertSession(File file, byte[] data) throws IOException {
+        try (CaptureContainer.Reader reader = new CaptureContainer.Reader(file)) {
+            assertEquals(TEXT.length + data.length + END.length, reader.getPayloadLength());
+
+            CaptureContainer.Event start = reader.findFirst(CaptureContainer.EVENT_START, 0);
+            assertNotNull(start);
+            assertEquals(TEXT.length, start.offset);
+
+            ByteBuffer region = reader.mapFirstDataRegion();
+            assertEquals(data.length, region.remaining());
+            byte[] read = new byte[data.length];
+            region.get(read);
+            assertArrayEquals(data, read);
+        }
+    }
+
+    @Test
+    public void closedCaptureRoundTrip() throws IOException {
+        byte[] data = data(10000);
+        try (CaptureContainer container = new CaptureContainer(file)) {
+            writeSession(container, data);
+        }
+        assertSession(file, data);
+    }
+
+    @Test
+    public void unclosedCaptureIsReadUpToWrittenData() throws IOException {
+        // Больше одного экстента: файл уже 8 МБ, данных - 5 МБ
+        byte[] data = data(5 * 1024 * 1024);
+        CaptureContainer container = new CaptureContainer(file);
+        try {
+            writeSession(container, data);
+            assertTrue(file.length() > container.getPayloadLength() + 8192);
+
+            assertSession(file, data);
+            try (CaptureContainer.Reader reader = new CaptureContainer.Reader(file)) {
+                try {
+                    reader.mapPayload(reader.getPayloadLength() - 1, 2);
+                    fail("Zero-filled extent tail must not be readable");
+                } catch (IOException expected) {
+                    // Хвост экстента за данными
+                }
+            }
+        } finally {
+            container.close();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.ggk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConsoleFormatter против прежнего форматирования BluetoothService (StringBuilder по байту):
+ * вывод совпадает во всех режимах, на отдельных пакетах и в onDataBatch сервиса, и получается быстрее.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConsoleFormatterTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    private static final int ASCII = 0;
+    private static final int HEX = 1;
+    private static final int NUMBERS = 2;
+    private static final int RAW = 3;
+    private static final String[] MODE_NAMES = {"ascii", "hex", "numbers", "raw"};
+
+    /** Форматирование BluetoothService до ConsoleFormatter, без изменений. */
+    private static final class BaselineFormatter {
+
+        static void append(int mode, StringBuilder result, byte[] data, int offset, int length) {
+            switch (mode) {
+                case ASCII:
+                    appendAsciiText(result, data, offset, length);
+                    break;
+                case HEX:
+                    appendHexText(result, data, offset, length);
+                    break;
+                case NUMBERS:
+                    appendNumbers(result, data, offset, length);
+                    break;
+                default:
+                    appendRawText(result, data, offset, length);
+                    break;
+            }
+        }
+
+        private static void appendRawText(StringBuilder result, byte[] data, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                int value = data[i] & 0xFF;
+                if (value >= 32 && value <= 126) {
+                    result.append((char) value);
+                } else if (value == 10) {
+                    result.append("\n");
+                } else if (value == 13) {
+                    result.append("\r");
+                } else if (value == 9) {
+                    result.append("\t");
+                }
+            }
+        }
+
+        private static void appendAsciiText(StringBuilder result, byte[] data, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                int value = data[i] & 0xFF;
+                if (value >= 32 && value <= 126) {
+                    result.append((char) value);
+                } else if (value == 10) {
+                    result.append("\n");
+                } else if (value == 13) {
+                    if (i + 1 < end && (data[i + 1] & 0xFF) != 10) {
+                        result.append("\r");
+                    }
+                } else if (value == 9) {
+                    result.append("\t");
+                } else {
+                    result.append(".");
+                }
+            }
+        }
+
+        private static void appendHexText(StringBuilder result, byte[] data, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                int value = data[i] & 0xFF;
+                if (value >= 32 && value <= 126) {
+                    result.append("'").append((char) value).append("' ");
+                } else if (value == 10) {
+                    result.append("\\n ");
+                } else if (value == 13) {
+                    result.append("\\r ");
+                } else if (value == 9) {
+                    result.append("\\t ");
+                } else if (value == 0) {
+                    result.append("NULL ");
+                } else {
+                    result.append(value).append(" ");
+                }
+            }
+        }
+
+        private static void appendNumbers(StringBuilder result, byte[] data, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                result.append(data[i] & 0xFF).append(" ");
+            }
+        }
+    }
+
+    private static void append(int mode, ConsoleFormatter formatter, byte[] data, int offset, int length) {
+        switch (mode) {
+            case ASCII:
+                formatter.appendAscii(data, offset, length);
+                break;
+            case HEX:
+                formatter.appendHex(data, offset, length);
+                break;
+            case NUMBERS:
+                formatter.appendNumbers(data, offset, length);
+                break;
+            default:
+                formatter.appendRaw(data, offset, length);
+                break;
+        }
+    }
+
+    // Строки ответов с \r\n и \t, как у регистраторов
+    private static byte[] textPacket(Random random, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(40);
+            data[i] = (byte) (kind == 0 ? '\r' : kind == 1 ? '\n' : kind == 2 ? '\t' : 32 + random.nextInt(95));
+        }
+        return data;
+    }
+
+    private static byte[] binaryPacket(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void everyByteValueMatchesBaseline() {
+        byte[] all = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            all[i] = (byte) i;
+        }
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int value = 0; value < 256; value++) {
+                StringBuilder expected = new StringBuilder();
+                BaselineFormatter.append(mode, expected, all, value, 1);
+                ConsoleFormatter formatter = new ConsoleFormatter(16);
+                append(mode, formatter, all, value, 1);
+                assertEquals(MODE_NAMES[mode] + " byte " + value, expected.toString(), formatter.toString());
+            }
+        }
+    }
+
+    @Test
+    public void packetSequencesMatchBaseline() {
+        Random random = new Random(16);
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            StringBuilder expected = new StringBuilder();
+            // Маленькая начальная емкость: буфер растет по ходу
+            ConsoleFormatter formatter = new ConsoleFormatter(1);
+            for (int packet = 0; packet < 2000; packet++) {
+                int length = random.nextInt(245);
+                byte[] data = packet % 2 == 0 ? textPacket(random, length + 8) : binaryPacket(random, length + 8);
+                BaselineFormatter.append(mode, expected, data, 4, length);
+                append(mode, formatter, data, 4, length);
+                if (packet % 100 == 99) {
+                    assertEquals(MODE_NAMES[mode] + " packet " + packet, expected.toString(), formatter.toString());
+                    expected.setLength(0);
+                    formatter.reset();
+                }
+            }
+        }
+    }
+
+    // Симулятор, пакеты которого копируются в packets до передачи в BluetoothService
+    private static BleTransport recordingTransport(List<byte[]> packets, AtomicLong receivedBytes) {
+        // Пакеты MTU 23 режут ответы посреди строк и между \r и \n
+        SimulatedLoggerTransport sim = new SimulatedLoggerTransport().setMtu(23);
+        return new BleTransport() {
+            @Override
+            public void connect(String address, Listener listener) {
+                sim.connect(address, new Listener() {
+                    @Override
+                    public void onConnectionStateChange(boolean connected) {
+                        listener.onConnectionStateChange(connected);
+                    }
+
+                    @Override
+                    public void onMtuChanged(int mtu) {
+                        listener.onMtuChanged(mtu);
+                    }
+
+                    @Override
+                    public void onServicesDiscovered(boolean success) {
+                        listener.onServicesDiscovered(success);
+                    }
+
+                    @Override
+                    public void onNotification(byte[] data) {
+                        packets.add(data.clone());
+                        receivedBytes.addAndGet(data.length);
+                        listener.onNotification(data);
+                    }
+                });
+            }
+
+            @Override
+            public void disconnect() {
+                sim.disconnect();
+            }
+
+            @Override
+            public boolean write(byte[] data, GattOperationQueue.Completion completion) {
+                return sim.write(data, completion);
+            }
+
+            @Override
+            public void close() {
+                sim.close();
+            }
+        };
+    }
+
+    @Test
+    public void serviceBatchesMatchBaseline() {
+        for (int mode : new int[]{ASCII, HEX, RAW}) {
+            List<byte[]> packets = Collections.synchronizedList(new ArrayList<>());
+            AtomicLong receivedBytes = new AtomicLong();
+            StringBuilder batches = new StringBuilder();
+            AtomicLong formattedBytes = new AtomicLong();
+            BluetoothService service = new BluetoothService(RuntimeEnvironment.getApplication(),
+                    recordingTransport(packets, receivedBytes));
+            try {
+                service.setAsciiMode(mode == ASCII);
+                service.setRawTextMode(mode == RAW);
+                service.setCallback(new BluetoothService.BluetoothCallback() {
+                    @Override
+                    public void onConnectionStateChange(boolean connected) {}
+
+                    @Override
+                    public void onServicesDiscovered(boolean success) {}
+
+                    @Override
+                    public void onDataReceived(byte[] data, String formattedData) {}
+
+                    @Override
+                    public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+                        batches.append(formattedBatch);
+                        formattedBytes.set(totalBytes);
+                    }
+
+                    @Override
+                    public void onError(String message) {}
+
+                    @Override
+                    public void onReconnectAttempt(int attempt, int maxAttempts) {}
+                });
+                service.connectForMTDevice("00:00:00:00:16:0" + mode, SERVICE_UUID, READ_UUID, WRITE_UUID);
+                TestLoopers.runUntil(service::isServicesDiscovered, 5000);
+                for (String command : MTDeviceHandler.BASIC_COMMANDS) {
+                    assertTrue(service.sendCommand(command + "\r"));
+                }
+                // Ответ на каждую команду - строка "Имя значение\r\n"
+                TestLoopers.runUntil(() -> countLines(packets) == MTDeviceHandler.BASIC_COMMANDS.length
+                        && formattedBytes.get() == receivedBytes.get(), 5000);
+            } finally {
+                service.close();
+            }
+
+            StringBuilder expected = new StringBuilder();
+            for (byte[] packet : packets) {
+                BaselineFormatter.append(mode, expected, packet, 0, packet.length);
+            }
+            assertEquals(MODE_NAMES[mode], expected.toString(), batches.toString());
+        }
+    }
+
+    private static int countLines(List<byte[]> packets) {
+        int lines = 0;
+        synchronized (packets) {
+            for (byte[] packet : packets) {
+                for (byte b : packet) {
+                    if (b == '\n') lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    // ConsoleFormatter пишет в свой char[] без проверок StringBuilder на каждый символ;
+    // в JVM выигрыш 2-6 раз, порог с запасом на шум измерения
+    private static final double MIN_SPEEDUP = 1.2;
+
+    @Test
+    public void fasterThanBaseline() {
+        Random random = new Random(1);
+        byte[][] inputs = {textPacket(random, 244), binaryPacket(random, 244)};
+        String[] inputNames = {"text", "binary"};
+        // 1 МБ на проход, пакетами по 244 байта, пачка - 64 пакета
+        int iterations = 1024 * 1024 / 244;
+
+        for (int input = 0; input < inputs.length; input++) {
+            byte[] data = inputs[input];
+            for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+                StringBuilder baseline = new StringBuilder();
+                ConsoleFormatter formatter = new ConsoleFormatter(1024);
+                long baselineNanos = Long.MAX_VALUE;
+                long formatterNanos = Long.MAX_VALUE;
+                // Лучший из пяти проходов: первые прогревают JIT, паузы GC не решают исход
+                for (int pass = 0; pass < 5; pass++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        if (i % 64 == 0) baseline.setLength(0);
+                        BaselineFormatter.append(mode, baseline, data, 0, data.length);
+                    }
+                    long middle = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        if (i % 64 == 0) formatter.reset();
+                        append(mode, formatter, data, 0, data.length);
+                    }
+                    long end = System.nanoTime();
+                    baselineNanos = Math.min(baselineNanos, middle - start);
+                    formatterNanos = Math.min(formatterNanos, end - middle);
+                }
+                assertEquals(baseline.toString(), formatter.toString());
+                double speedup = (double) baselineNanos / formatterNanos;
+                assertTrue(String.format(Locale.US, "%s %s: ConsoleFormatter only %.2fx baseline",
+                        inputNames[input], MODE_NAMES[mode], speedup), speedup > MIN_SPEEDUP);
+            }
+        }
+    }
+}
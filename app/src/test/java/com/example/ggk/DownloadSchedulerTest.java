@@ -0,0 +1,156 @@
+package com.example.ggk;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Очередь DownloadScheduler на логгерах SimulatedLoggerTransport: одновременно идет не больше
+ * заданного числа выгрузок, освободившееся место сразу занимает следующий логгер.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerTest {
+    private static final int LOGGERS = 5;
+    private static final int SAMPLES = 3000;
+
+    private Context context;
+    private final List<String> deviceNames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @After
+    public void tearDown() {
+        for (String name : deviceNames) {
+            File folder = new File(context.getFilesDir(), DeviceInfoHelper.sanitizeFileName(name));
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    // Старые логгеры: дамп сразу после подключения, около 0.1 сек на каждый
+    private List<DownloadSession> legacySessions(int count) {
+        List<DownloadSession> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "SCHED_" + i;
+            deviceNames.add(name);
+            SimulatedLoggerTransport sim = new SimulatedLoggerTransport()
+                    .setSampleCount(SAMPLES)
+                    .setPacketRate(250)
+                    .setDumpOnConnect(true);
+            sessions.add(new DownloadSession(context, "00:00:00:00:17:0" + i, name,
+                    DownloadSession.Protocol.LEGACY_DUMP, sim));
+        }
+        return sessions;
+    }
+
+    private static int countRunning(List<DownloadSession> sessions) {
+        int running = 0;
+        for (DownloadSession session : sessions) {
+            if (session.getState() != DownloadSession.State.QUEUED && !session.isFinished()) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    @Test
+    public void limitIsClampedToSupportedRange() {
+        assertEquals(1, new DownloadScheduler(0, null).getMaxConcurrent());
+        assertEquals(2, new DownloadScheduler(2, null).getMaxConcurrent());
+        assertEquals(DownloadScheduler.MAX_CONCURRENT_LIMIT,
+                new DownloadScheduler(100, null).getMaxConcurrent());
+    }
+
+    @Test
+    public void admitsUpToLimitAndStartsNextOnRelease() {
+        int maxConcurrent = 2;
+        List<DownloadSession> sessions = legacySessions(LOGGERS);
+        AtomicInteger peakRunning = new AtomicInteger();
+        AtomicInteger releasedBeforeStart = new AtomicInteger();
+        List<String> startOrder = new ArrayList<>();
+        AtomicReference<DownloadScheduler.Summary> done = new AtomicReference<>();
+
+        DownloadScheduler scheduler = new DownloadScheduler(maxConcurrent, new DownloadScheduler.Listener() {
+            @Override
+            public void onSessionStarted(DownloadSession session) {
+                startOrder.add(session.getDeviceName());
+                int running = countRunning(sessions);
+                assertTrue("running " + running, running <= maxConcurrent);
+                peakRunning.set(Math.max(peakRunning.get(), running));
+                // Сверх лимита логгер стартует только после завершения одного из идущих
+                if (startOrder.size() > maxConcurrent) {
+                    int finished = 0;
+                    for (DownloadSession other : sessions) {
+                        if (other.isFinished()) finished++;
+                    }
+                    assertEquals(startOrder.size() - maxConcurrent, finished);
+                    releasedBeforeStart.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onSessionProgress(DownloadSession session, DownloadScheduler.Summary summary) {
+                assertTrue(summary.running <= maxConcurrent);
+            }
+
+            @Override
+            public void onSessionFinished(DownloadSession session, DownloadScheduler.Summary summary) {
+                assertEquals(DownloadSession.State.COMPLETED, session.getState());
+            }
+
+            @Override
+            public void onAllFinished(DownloadScheduler.Summary summary) {
+                done.set(summary);
+            }
+        });
+
+        for (DownloadSession session : sessions) {
+            scheduler.enqueue(session);
+        }
+        // Два первых подключаются, остальные ждут в очереди
+        assertEquals(maxConcurrent, countRunning(sessions));
+        for (int i = maxConcurrent; i < LOGGERS; i++) {
+            assertEquals(DownloadSession.State.QUEUED, sessions.get(i).getState());
+        }
+        // Повторная постановка того же логгера игнорируется
+        scheduler.enqueue(new DownloadSession(context, sessions.get(0).getDeviceAddress(), "SCHED_0",
+                DownloadSession.Protocol.LEGACY_DUMP, new SimulatedLoggerTransport()));
+        assertEquals(LOGGERS, scheduler.getSessions().size());
+
+        TestLoopers.runUntil(() -> done.get() != null, 20000);
+
+        DownloadScheduler.Summary summary = done.get();
+        assertEquals(LOGGERS, summary.total);
+        assertEquals(LOGGERS, summary.completed);
+        assertEquals(0, summary.running);
+        assertEquals((long) LOGGERS * SAMPLES, summary.samples);
+        assertEquals(maxConcurrent, peakRunning.get());
+        assertEquals(LOGGERS - maxConcurrent, releasedBeforeStart.get());
+        // Очередь FIFO
+        for (int i = 0; i < LOGGERS; i++) {
+            assertEquals("SCHED_" + i, startOrder.get(i));
+        }
+        assertTrue(scheduler.isIdle());
+    }
+}
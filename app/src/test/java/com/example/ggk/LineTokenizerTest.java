@@ -0,0 +1,59 @@
+package com.example.ggk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LineTokenizerTest {
+
+    private static List<String> push(LineTokenizer tokenizer, String... chunks) {
+        List<String> lines = new ArrayList<>();
+        for (String chunk : chunks) {
+            tokenizer.push(chunk, (text, offset, length) ->
+                    lines.add(text.subSequence(offset, offset + length).toString()));
+        }
+        return lines;
+    }
+
+    @Test
+    public void crLfSplitBetweenChunksGivesOneLine() {
+        LineTokenizer tokenizer = new LineTokenizer(64);
+        assertEquals(Arrays.asList("Idn MT-SIM", "Units 2"),
+                push(tokenizer, "Idn MT-SIM\r", "\nUnits 2\r", "\n"));
+    }
+
+    @Test
+    public void lineSplitAcrossChunksIsJoined() {
+        LineTokenizer tokenizer = new LineTokenizer(64);
+        // Пакеты MTU 23 режут ответ посреди строки
+        assertEquals(Arrays.asList("DataSize 12345", "Range 1"),
+                push(tokenizer, "Data", "Size 12", "345\r\nRa", "nge 1\r\n"));
+    }
+
+    @Test
+    public void bareCrAndLfTerminateAndBlankLinesAreSkipped() {
+        LineTokenizer tokenizer = new LineTokenizer(64);
+        assertEquals(Arrays.asList("a", "b", "c"),
+                push(tokenizer, "  a \r\r\n\n", "\tb\n", " \r\n", "c\r"));
+    }
+
+    @Test
+    public void overlongLineIsDroppedUpToTerminator() {
+        LineTokenizer tokenizer = new LineTokenizer(8);
+        assertEquals(Arrays.asList("ok", "next"),
+                push(tokenizer, "ok\r\n0123", "456789", "abc\r\nnext\r\n"));
+        assertEquals(Arrays.asList("short"), push(tokenizer, "0123456789\r\nshort\n"));
+    }
+
+    @Test
+    public void resetDropsUnfinishedLine() {
+        LineTokenizer tokenizer = new LineTokenizer(64);
+        assertTrue(push(tokenizer, "Idn MT").isEmpty());
+        tokenizer.reset();
+        assertEquals(Arrays.asList("Units 2"), push(tokenizer, "Units 2\r\n"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.ggk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * MTCommandEngine на часах главного Looper: ответы по частям с разрывом между \r и \n,
+ * многострочные ответы и их завершение следующим именем, паузой и таймаутом,
+ * имя внутри строки - только отдельным словом.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MTCommandEngineTest {
+    private static final long QUIET_GAP = 300;
+
+    private final List<String> sent = new ArrayList<>();
+
+    private MTCommandEngine engine(int maxInFlight) {
+        return new MTCommandEngine((command, completion) -> {
+            sent.add(command);
+            if (completion != null) {
+                completion.onComplete(true, 0);
+            }
+            return true;
+        }, maxInFlight, QUIET_GAP);
+    }
+
+    private static void advance(long ms) {
+        ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+    }
+
+    private static String value(CompletableFuture<String> future) throws Exception {
+        assertTrue(future.isDone());
+        return future.get();
+    }
+
+    @Test
+    public void repliesSplitBetweenCrAndLfMatchByName() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> idn = engine.submit("Idn?");
+        CompletableFuture<String> units = engine.submit("Units?");
+        assertEquals(Arrays.asList("Idn?\r", "Units?\r"), sent);
+
+        // Ответы в обратном порядке, пакеты режут строки и пару \r\n
+        engine.onText("Units 2\r");
+        engine.onText("\nIdn MT-");
+        engine.onText("SIM 000001\r");
+        // Следующее имя завершило Units, Idn ждет паузы
+        assertEquals("2", value(units));
+        assertFalse(idn.isDone());
+        engine.onText("\n");
+        advance(QUIET_GAP);
+        assertEquals("MT-SIM 000001", value(idn));
+        assertFalse(engine.isBusy());
+    }
+
+    @Test
+    public void multiLineReplyEndsAtNextCommandName() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> help = engine.submit("Help?");
+        CompletableFuture<String> idn = engine.submit("Idn?");
+
+        engine.onText("Help Idn? - name\r");
+        engine.onText("\nUnits? - units\r\nRan");
+        // Строки идут чаще паузы - ответ не закрывается
+        advance(QUIET_GAP - 50);
+        engine.onText("ge? - range\r\nIdn MT-SIM 000001\r\n");
+
+        assertEquals("Idn? - name\nUnits? - units\nRange? - range", value(help));
+        advance(QUIET_GAP);
+        assertEquals("MT-SIM 000001", value(idn));
+    }
+
+    @Test
+    public void multiLineReplyEndsAfterQuietGap() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> status = engine.submit("Status?");
+
+        engine.onText("Status OK\r\nBattery 87%\r\n");
+        advance(QUIET_GAP - 50);
+        // Незаконченная строка тоже продлевает ожидание
+        engine.onText("Memory 12");
+        advance(QUIET_GAP - 50);
+        assertFalse(status.isDone());
+        engine.onText("%\r\n");
+        advance(QUIET_GAP);
+        assertEquals("OK\nBattery 87%\nMemory 12%", value(status));
+
+        // Строка после завершения ни к чему не относится
+        engine.onText("Late line\r\n");
+        assertEquals("OK\nBattery 87%\nMemory 12%", value(status));
+    }
+
+    @Test
+    public void replyStillStreamingAtTimeoutKeepsCollectedLines() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> dump = engine.submit("Log?", 1000);
+
+        engine.onText("Log 1\r\n");
+        for (int i = 2; i <= 6; i++) {
+            advance(200);
+            engine.onText(i + "\r\n");
+        }
+        assertTrue(dump.isDone());
+        assertEquals("1\n2\n3\n4\n5", value(dump));
+    }
+
+    @Test
+    public void nameInsideLineMustBeWholeWord() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> units = engine.submit("Units?");
+        CompletableFuture<String> unitsAll = engine.submit("UnitsAll?");
+        CompletableFuture<String> ranges = engine.submit("Ranges?");
+        CompletableFuture<String> rangesAll = engine.submit("RangesAll?");
+
+        // Остаток прошлого ответа перед именем; Units и Ranges - начала других имен
+        engine.onText("#@UnitsAll Pa kPa MPa bar\r\n");
+        advance(QUIET_GAP);
+        assertEquals("Pa kPa MPa bar", value(unitsAll));
+        engine.onText("1%RangesAll 0-10 0-100\r\n");
+        advance(QUIET_GAP);
+        assertEquals("0-10 0-100", value(rangesAll));
+        assertFalse(units.isDone());
+        assertFalse(ranges.isDone());
+
+        // Имя, приклеенное к букве, - тоже не ответ
+        engine.onText("xUnits 5\r\n");
+        assertFalse(units.isDone());
+        engine.onText("Units 2\r\nRanges 1\r\n");
+        assertEquals("2", value(units));
+        advance(QUIET_GAP);
+        assertEquals("1", value(ranges));
+    }
+
+    @Test
+    public void echoIsSkippedAndSilentCommandTimesOut() throws Exception {
+        MTCommandEngine engine = engine(4);
+        CompletableFuture<String> unknown = engine.submit("Unknown?", 1000);
+
+        engine.onText("Unknown? ERR\r\n");
+        advance(999);
+        assertFalse(unknown.isDone());
+        advance(1);
+        try {
+            unknown.get();
+            fail("Expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void slotIsFreedWhenReplyStarts() throws Exception {
+        MTCommandEngine engine = engine(2);
+        CompletableFuture<String> idn = engine.submit("Idn?");
+        engine.submit("Units?");
+        engine.submit("Range?");
+        assertEquals(Arrays.asList("Idn?\r", "Units?\r"), sent);
+
+        // Первая строка ответа - команда выполнена устройством, следующая уходит
+        engine.onText("Idn MT-SIM 000001\r\n");
+        assertEquals(Arrays.asList("Idn?\r", "Units?\r", "Range?\r"), sent);
+        assertFalse(idn.isDone());
+
+        engine.cancelAll("Disconnected");
+        assertTrue(idn.isCompletedExceptionally());
+        assertFalse(engine.isBusy());
+    }
+}
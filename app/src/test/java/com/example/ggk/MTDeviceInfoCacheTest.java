@@ -0,0 +1,145 @@
+package com.example.ggk;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Свежесть полей MTDeviceInfoCache по управляемым часам и формат mt_info.txt.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MTDeviceInfoCacheTest {
+    private static final String NAME = "MT_CACHE_TEST";
+    private static final String ADDRESS = "00:00:00:00:25:01";
+    private static final String[] COMMANDS = {"Idn?", "DataSize?", "UnitsAll?", "Units?"};
+    private static final long T0 = 1_700_000_000_000L;
+
+    private Context context;
+    private final long[] now = {T0};
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        deleteDeviceFolder();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDeviceFolder();
+    }
+
+    private void deleteDeviceFolder() {
+        File folder = new File(context.getFilesDir(), DeviceInfoHelper.sanitizeFileName(NAME));
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    private MTDeviceInfoCache newCache() {
+        return new MTDeviceInfoCache(context, () -> now[0]);
+    }
+
+    private static Map<String, String> responses(String... keyValues) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void staleCommandsFollowFieldTtl() {
+        // Без имени устройства кэш только в памяти
+        MTDeviceInfoCache cache = newCache();
+        assertEquals(Arrays.asList(COMMANDS), cache.staleCommands(null, ADDRESS, COMMANDS));
+
+        cache.put(null, ADDRESS, responses("Idn?", "MT-SIM 000001", "DataSize?", "1000",
+                "UnitsAll?", "Pa kPa", "Units?", "2"));
+        // Текущие значения перечитываются всегда, статические - только по истечении TTL
+        assertEquals(Arrays.asList("DataSize?", "Units?"), cache.staleCommands(null, ADDRESS, COMMANDS));
+
+        now[0] = T0 + MTDeviceInfoCache.ttlFor("Idn?") - 1;
+        assertEquals(Arrays.asList("DataSize?", "Units?"), cache.staleCommands(null, ADDRESS, COMMANDS));
+
+        now[0] = T0 + MTDeviceInfoCache.ttlFor("Idn?");
+        assertEquals(Arrays.asList(COMMANDS), cache.staleCommands(null, ADDRESS, COMMANDS));
+    }
+
+    @Test
+    public void clockMovedBackwardsMakesFieldsStale() {
+        MTDeviceInfoCache cache = newCache();
+        cache.put(null, ADDRESS, responses("Idn?", "MT-SIM 000001"));
+        assertTrue(cache.staleCommands(null, ADDRESS, new String[]{"Idn?"}).isEmpty());
+
+        // Часы переведены назад - время получения в будущем, доверять ему нельзя
+        now[0] = T0 - 1;
+        assertEquals(Collections.singletonList("Idn?"), cache.staleCommands(null, ADDRESS, new String[]{"Idn?"}));
+    }
+
+    @Test
+    public void timeoutAndErrorAreNotRemembered() {
+        MTDeviceInfoCache cache = newCache();
+        cache.put(null, ADDRESS, responses("Idn?", "TIMEOUT", "UnitsAll?", "ERROR"));
+        assertTrue(cache.get(null, ADDRESS).isEmpty());
+        assertEquals(Arrays.asList("Idn?", "UnitsAll?"),
+                cache.staleCommands(null, ADDRESS, new String[]{"Idn?", "UnitsAll?"}));
+    }
+
+    @Test
+    public void serializeAndParseRoundTrip() {
+        Map<String, MTDeviceInfoCache.Entry> fields = new HashMap<>();
+        fields.put("Idn?", new MTDeviceInfoCache.Entry("MT-SIM 000001", T0));
+        // Многострочный ответ, табуляция и обратная косая черта в значении
+        fields.put("UnitsAll?", new MTDeviceInfoCache.Entry("Pa\nkPa\r\nbar\tpsi \\n", T0 + 1));
+        fields.put("DataSize?", new MTDeviceInfoCache.Entry("", T0 + 2));
+
+        Map<String, MTDeviceInfoCache.Entry> parsed = MTDeviceInfoCache.parse(MTDeviceInfoCache.serialize(fields));
+        assertEquals(fields.keySet(), parsed.keySet());
+        for (Map.Entry<String, MTDeviceInfoCache.Entry> field : fields.entrySet()) {
+            assertEquals(field.getValue().value, parsed.get(field.getKey()).value);
+            assertEquals(field.getValue().fetchedAt, parsed.get(field.getKey()).fetchedAt);
+        }
+    }
+
+    @Test
+    public void parseSkipsForeignLines() {
+        Map<String, MTDeviceInfoCache.Entry> parsed = MTDeviceInfoCache.parse(
+                "Idn: MT-SIM\nUnits?\tyesterday\t2\nRange?\t" + T0 + "\t1\n\n");
+        assertEquals(Collections.singleton("Range?"), parsed.keySet());
+        assertEquals("1", parsed.get("Range?").value);
+        assertTrue(MTDeviceInfoCache.parse(null).isEmpty());
+    }
+
+    @Test
+    public void savedFieldsSurviveRestart() {
+        MTDeviceInfoCache cache = newCache();
+        cache.put(NAME, ADDRESS, responses("Idn?", "MT-SIM 000001", "UnitsAll?", "Pa\nkPa"));
+
+        // Запись идет на фоновом потоке
+        TestLoopers.runUntil(() -> MTDeviceInfoCache.parse(MTDeviceDataHelper.getMTDeviceInfo(context, NAME)).size() == 2,
+                5000);
+
+        now[0] = T0 + 1000;
+        MTDeviceInfoCache restarted = newCache();
+        assertEquals(responses("Idn?", "MT-SIM 000001", "UnitsAll?", "Pa\nkPa"), restarted.get(NAME, ADDRESS));
+        assertEquals(Arrays.asList("DataSize?", "Units?"), restarted.staleCommands(NAME, ADDRESS, COMMANDS));
+    }
+}
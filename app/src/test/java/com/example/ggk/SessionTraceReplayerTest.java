@@ -0,0 +1,201 @@
+package com.example.ggk;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Трасса, записанная BluetoothService по DeveloperOptions, воспроизводится в MTDeviceHandler
+ * через getReplayTarget() и дает тот же результат опроса, что и живая сессия.
+ * Трасса, оборванная посреди записи, воспроизводится до последней целой записи.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SessionTraceReplayerTest {
+    private static final long TAIL_MS = 1000;
+
+    /** Канал без устройства: события приходят только из трассы, команды никуда не уходят. */
+    private static final class ReplayTransport implements BleTransport {
+        @Override
+        public void connect(String address, Listener listener) {}
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public boolean write(byte[] data, GattOperationQueue.Completion completion) {
+            if (completion != null) {
+                completion.onComplete(true, 0);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private Context context;
+    private File traceDirectory;
+    private final List<Runnable> cleanup = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        traceDirectory = new File(context.getExternalFilesDir(null), "BLETraces");
+        File[] old = traceDirectory.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = cleanup.size() - 1; i >= 0; i--) {
+            cleanup.get(i).run();
+        }
+        DeveloperOptions.setTraceRecordingEnabled(context, false);
+    }
+
+    @Test
+    public void recordedMtPollReplaysThroughMTDeviceHandler() throws Exception {
+        DeveloperOptions.setTraceRecordingEnabled(context, true);
+        SimulatedLoggerTransport sim = new SimulatedLoggerTransport().setMtu(23).setPacketRate(50);
+        Map<String, String> recorded = poll("00:00:00:00:12:01", sim, null);
+
+        File[] traces = traceDirectory.listFiles();
+        assertNotNull(traces);
+        assertEquals(1, traces.length);
+
+        // Ответы берутся только из трассы, в исходном темпе: команды уходят после той же паузы
+        DeveloperOptions.setTraceRecordingEnabled(context, false);
+        SessionTraceReplayer replayer = new SessionTraceReplayer(traces[0]);
+        AtomicReference<SessionTraceReplayer.Result> result = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Map<String, String> replayed = poll("00:00:00:00:12:02", new ReplayTransport(), service -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    result.set(replayer.replay(service.getReplayTarget(), 1.0));
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }, "TraceReplay");
+            thread.start();
+            cleanup.add(replayer::cancel);
+        });
+
+        assertNull(failure.get());
+        assertEquals(recorded, replayed);
+        assertEquals(MTDeviceHandler.BASIC_COMMANDS.length, replayed.size());
+        // Трасса не писалась повторно
+        assertEquals(1, traceDirectory.listFiles().length);
+
+        TestLoopers.runUntil(() -> result.get() != null, 5000);
+        assertTrue(result.get().notifications > 0);
+    }
+
+    @Test
+    public void truncatedLastRecordEndsReplay() throws Exception {
+        traceDirectory.mkdirs();
+        File file = new File(traceDirectory, "truncated.trc");
+        SessionTraceRecorder recorder = new SessionTraceRecorder(file);
+        recorder.recordConnectionState(true);
+        recorder.recordMtu(247);
+        for (int i = 0; i < 3; i++) {
+            byte[] packet = new byte[100];
+            packet[0] = (byte) i;
+            recorder.recordNotification(packet, 0, packet.length);
+        }
+        recorder.close();
+        assertEquals(5, recorder.getEventCount());
+
+        // Приложение убито посреди записи последнего уведомления
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 40);
+        }
+
+        List<Byte> received = new ArrayList<>();
+        SessionTraceReplayer.Result result = new SessionTraceReplayer(file).replay(new SessionTraceReplayer.Target() {
+            @Override
+            public void onConnectionStateChange(boolean connected) {}
+
+            @Override
+            public void onMtuChanged(int mtu) {}
+
+            @Override
+            public void onServicesDiscovered(boolean success) {}
+
+            @Override
+            public void onNotification(byte[] data) {
+                assertEquals(100, data.length);
+                received.add(data[0]);
+            }
+        }, SessionTraceReplayer.AS_FAST_AS_POSSIBLE);
+
+        assertTrue(result.truncated);
+        assertFalse(result.cancelled);
+        assertEquals(4, result.events);
+        assertEquals(2, result.notifications);
+        assertEquals(Arrays.asList((byte) 0, (byte) 1), received);
+    }
+
+    private interface ConnectHook {
+        void onConnecting(BluetoothService service);
+    }
+
+    // Опрос MTDeviceHandler на общем соединении; соединение закрывается, трасса дописывается
+    private Map<String, String> poll(String address, BleTransport transport, ConnectHook hook) {
+        MTConnectionCache cache = MTConnectionCache.getInstance();
+        MTConnectionCache.Connection connection = cache.acquire(context, address, transport);
+
+        AtomicReference<Map<String, String>> info = new AtomicReference<>();
+        MTDeviceHandler handler = new MTDeviceHandler(context, new MTDeviceHandler.MTDeviceCallback() {
+            @Override
+            public void onConnectionStateChanged(boolean connected) {}
+
+            @Override
+            public void onDeviceInfoReady(Map<String, String> deviceInfo) {
+                info.set(deviceInfo);
+            }
+
+            @Override
+            public void onCommandResponse(String command, String response) {}
+
+            @Override
+            public void onError(String error) {}
+
+            @Override
+            public void onProgress(int current, int total) {}
+        });
+        try {
+            handler.connect(address);
+            if (hook != null) {
+                hook.onConnecting(connection.getBluetoothService());
+            }
+            TestLoopers.runUntil(() -> info.get() != null, 10000);
+            // Отключение в трассе - с запасом после паузы последнего ответа, иначе при повторе
+            // оно может обогнать завершение ответа по часам Looper
+            TestLoopers.runFor(TAIL_MS);
+        } finally {
+            handler.cleanup();
+            cache.release(connection);
+            cache.closeIfIdle(address);
+        }
+        return info.get();
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.ggk;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Передачи через BluetoothService и SimulatedLoggerTransport без радио:
+ * опрос MT устройства, дамп старого устройства с потерями и разбросом, выгрузка 1M отсчетов.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SimulatedLoggerTransportTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    // MTU 247 минус заголовок ATT
+    private static final int PACKET_SAMPLES = (247 - 3) / 2;
+    // При этом seed потери не задевают пакеты с маркерами Start и End
+    private static final long LOSSY_SEED = 3;
+    // Тесты в реальном темпе соединения; включаются свойством Gradle linkRateTests
+    private static final String LINK_RATE_TESTS = "ggk.linkRateTests";
+
+    private Context context;
+    private final List<Runnable> cleanup = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = cleanup.size() - 1; i >= 0; i--) {
+            cleanup.get(i).run();
+        }
+    }
+
+    @Test
+    public void mtInfoPollAnswersEveryCommand() {
+        String address = "00:00:00:00:13:01";
+        // MTU 23 и 50 пакетов/с - медленное соединение с интервалом 20 мс
+        SimulatedLoggerTransport sim = new SimulatedLoggerTransport().setMtu(23).setPacketRate(50);
+        MTConnectionCache cache = MTConnectionCache.getInstance();
+        MTConnectionCache.Connection connection = cache.acquire(context, address, sim);
+        cleanup.add(() -> {
+            cache.release(connection);
+            cache.closeIfIdle(address);
+        });
+
+        AtomicReference<Map<String, String>> info = new AtomicReference<>();
+        MTDeviceHandler handler = new MTDeviceHandler(context, new MTDeviceHandler.MTDeviceCallback() {
+            @Override
+            public void onConnectionStateChanged(boolean connected) {}
+
+            @Override
+            public void onDeviceInfoReady(Map<String, String> deviceInfo) {
+                info.set(deviceInfo);
+            }
+
+            @Override
+            public void onCommandResponse(String command, String response) {}
+
+            @Override
+            public void onError(String error) {
+                fail(error);
+            }
+
+            @Override
+            public void onProgress(int current, int total) {}
+        });
+        cleanup.add(handler::cleanup);
+
+        handler.connect(address);
+        TestLoopers.runUntil(() -> info.get() != null, 10000);
+
+        Map<String, String> values = info.get();
+        assertEquals(MTDeviceHandler.BASIC_COMMANDS.length, values.size());
+        assertEquals("MT-SIM 000001", values.get("Idn?"));
+        assertEquals("10000", values.get("DataSize?"));
+        assertEquals("100000.00 102000.00", values.get("Pminmax24?"));
+        assertEquals("Pa kPa MPa bar", values.get("UnitsAll?"));
+        assertEquals("0-1 MPa, 0-10 MPa, 0-60 MPa", values.get("RangesAll?"));
+        assertEquals("0", values.get("Units?"));
+        assertEquals("0", values.get("Ranges?"));
+    }
+
+    @Test
+    public void legacyDumpSurvivesLossAndJitter() {
+        // Меньше 20000: значение отсчета равно его номеру
+        int sampleCount = 15000;
+        SimulatedLoggerTransport sim = new SimulatedLoggerTransport()
+                .setDumpOnConnect(true)
+                .setSampleCount(sampleCount)
+                .setMtu(247)
+                .setPacketRate(1000)
+                .setJitterMicros(300)
+                .setLossRate(0.03)
+                .setSeed(LOSSY_SEED);
+        BluetoothService service = new BluetoothService(context, sim);
+        cleanup.add(service::close);
+        SampleCollector collector = new SampleCollector();
+        service.setPayloadListener(collector);
+
+        service.connect("00:00:00:00:13:02", SERVICE_UUID, READ_UUID);
+        TestLoopers.runUntil(() -> collector.finished, 10000);
+
+        long lost = sim.getLostPackets();
+        assertTrue("Loss model produced no losses", lost > 0);
+        assertEquals(0, service.getDroppedPackets());
+        assertTrue(collector.started);
+
+        // Пакет данных без маркеров - ровно PACKET_SAMPLES отсчетов
+        short[] samples = collector.samples();
+        assertEquals(sampleCount - lost * PACKET_SAMPLES, samples.length);
+        assertEquals(0, samples[0]);
+        assertEquals(sampleCount - 1, samples[samples.length - 1]);
+
+        // После потери один отсчет склеен из байтов разных пакетов, остальное идет подряд
+        int breaks = 0;
+        for (int i = 1; i < samples.length; i++) {
+            if (samples[i] != samples[i - 1] + 1) breaks++;
+        }
+        assertTrue("Sequence breaks: " + breaks + ", lost packets: " + lost, breaks <= 2 * lost);
+    }
+
+    @Test
+    public void millionSampleDownloadIsIntact() {
+        // Без темпа: проверка целостности не зависит от загрузки машины
+        downloadMillionSamples(0, "00:00:00:00:13:03");
+    }
+
+    /**
+     * Та же выгрузка в темпе быстрого соединения 2M PHY (~1 МБ/с, около 2 сек реального времени).
+     * Зависит от загрузки машины, поэтому только по запросу: ./gradlew test -PlinkRateTests=true
+     */
+    @Test
+    public void millionSampleDownloadAtLinkRate() {
+        assumeTrue(Boolean.getBoolean(LINK_RATE_TESTS));
+        downloadMillionSamples(4000, "00:00:00:00:13:04");
+    }
+
+    private void downloadMillionSamples(int packetRate, String address) {
+        int sampleCount = 1_000_000;
+        SimulatedLoggerTransport sim = new SimulatedLoggerTransport()
+                .setSampleCount(sampleCount)
+                .setMtu(247)
+                .setPacketRate(packetRate);
+        BluetoothService service = new BluetoothService(context, sim);
+        cleanup.add(service::close);
+        if (packetRate == 0) {
+            // Половина очереди приема: симулятор ждет обработку вместо переполнения
+            sim.setReceiveWindow(service::getPendingPackets, 256);
+        }
+        SampleCollector collector = new SampleCollector();
+        service.setPayloadListener(collector);
+        service.setConsoleEnabled(false);
+
+        service.connectForMTDevice(address, SERVICE_UUID, READ_UUID, WRITE_UUID,
+                BluetoothService.LinkProfile.BULK_TRANSFER);
+        TestLoopers.runUntil(service::isServicesDiscovered, 5000);
+        // После подключения: оно сбрасывает статистику
+        service.setExpectedSampleCount(sampleCount);
+
+        assertTrue(service.sendCommand("SendData\r"));
+        TestLoopers.runUntil(() -> collector.finished, 30000);
+
+        assertEquals(0, sim.getLostPackets());
+        assertEquals(0, service.getDroppedPackets());
+        short[] samples = collector.samples();
+        assertEquals(sampleCount, samples.length);
+        for (int i = 0; i < sampleCount; i++) {
+            if (samples[i] != SimulatedLoggerTransport.expectedSample(i)) {
+                fail("Sample " + i + ": expected " + SimulatedLoggerTransport.expectedSample(i)
+                        + " but was " + samples[i]);
+            }
+        }
+    }
+
+    /** Отсчеты выгрузки в порядке доставки на главный поток. */
+    static final class SampleCollector implements BluetoothService.PayloadListener {
+        volatile boolean started;
+        volatile boolean finished;
+        private short[] buffer = new short[1024];
+        private int count;
+
+        @Override
+        public void onPayloadStarted() {
+            started = true;
+        }
+
+        @Override
+        public void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond) {
+            if (count + samples.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + samples.length));
+            }
+            System.arraycopy(samples, 0, buffer, count, samples.length);
+            count += samples.length;
+        }
+
+        @Override
+        public void onPayloadFinished() {
+            finished = true;
+        }
+
+        short[] samples() {
+            return Arrays.copyOf(buffer, count);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.ggk;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Ожидание на главном потоке теста (Robolectric, режим PAUSED).
+ * Главный Looper сам не крутится: задачи от потоков BluetoothIO, BluetoothDataProcessor
+ * и симулятора выполняются здесь, а часы Looper двигаются на прошедшее реальное время,
+ * чтобы таймауты команд и задержки переподключений срабатывали как на устройстве.
+ */
+final class TestLoopers {
+
+    private TestLoopers() {
+    }
+
+    /** Крутит главный Looper, пока condition не станет true; по истечении timeoutMs - AssertionError. */
+    static void runUntil(BooleanSupplier condition, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long last = System.nanoTime();
+        while (true) {
+            ShadowLooper.idleMainLooper();
+            if (condition.getAsBoolean()) return;
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in " + timeoutMs + " ms");
+            }
+            sleep(1);
+            long now = System.nanoTime();
+            long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - last));
+            last = now;
+            ShadowLooper.idleMainLooper(elapsedMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Крутит главный Looper durationMs реального времени. */
+    static void runFor(long durationMs) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        runUntil(() -> System.nanoTime() >= end, durationMs + 1000);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+}
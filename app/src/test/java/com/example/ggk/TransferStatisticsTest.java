@@ -0,0 +1,81 @@
+package com.example.ggk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferStatisticsTest {
+    private static final int PACKET_BYTES = 244;
+
+    // Пакеты по PACKET_BYTES с интервалом 10 мс, все байты - данные выгрузки
+    private static void receivePayload(TransferStatistics statistics, int payloadBytes) {
+        statistics.onPayloadStarted();
+        long now = 0;
+        for (int sent = 0; sent < payloadBytes; sent += PACKET_BYTES) {
+            int length = Math.min(PACKET_BYTES, payloadBytes - sent);
+            statistics.onPacket(length, now);
+            statistics.onPayloadBytes(length);
+            now += 10_000_000L;
+        }
+        statistics.onSamplesDecoded(payloadBytes / 2);
+    }
+
+    @Test
+    public void shortfallIsNotInferredBeforeEnd() {
+        TransferStatistics statistics = new TransferStatistics();
+        statistics.setExpectedSampleCount(10 * PACKET_BYTES / 2);
+
+        receivePayload(statistics, 4 * PACKET_BYTES);
+        assertEquals(0, statistics.snapshot().getMissingSamples());
+        assertEquals(0, statistics.snapshot().getLostPacketEstimate());
+
+        statistics.onPayloadFinished();
+        assertEquals(6 * PACKET_BYTES / 2, statistics.snapshot().getMissingSamples());
+        assertEquals(6, statistics.snapshot().getLostPacketEstimate());
+    }
+
+    @Test
+    public void resetClearsExpectedSampleCount() {
+        TransferStatistics statistics = new TransferStatistics();
+        statistics.setExpectedSampleCount(10 * PACKET_BYTES / 2);
+        statistics.reset();
+
+        receivePayload(statistics, 4 * PACKET_BYTES);
+        statistics.onPayloadFinished();
+
+        TransferStatistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(-1, snapshot.expectedSamples);
+        assertEquals(0, snapshot.getMissingSamples());
+        assertEquals(0, snapshot.getLostPacketEstimate());
+    }
+
+    @Test
+    public void oddPayloadsCountWhenBytesAreMissing() {
+        TransferStatistics statistics = new TransferStatistics();
+        // Две выгрузки по PACKET_BYTES / 2 отсчетов, в каждой потерян кусок с нечетным числом байтов
+        statistics.setExpectedSampleCount(PACKET_BYTES);
+        receivePayload(statistics, PACKET_BYTES - 1);
+        statistics.onPayloadFinished();
+        receivePayload(statistics, PACKET_BYTES - 1);
+        statistics.onPayloadFinished();
+
+        TransferStatistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(2, snapshot.oddPayloads);
+        // Недостает 2 байта - меньше пакета, но потерь не меньше, чем нечетных выгрузок
+        assertEquals(2, snapshot.getLostPacketEstimate());
+    }
+
+    @Test
+    public void completePayloadHasNoLosses() {
+        TransferStatistics statistics = new TransferStatistics();
+        statistics.setExpectedSampleCount(10 * PACKET_BYTES / 2);
+        receivePayload(statistics, 10 * PACKET_BYTES);
+        statistics.onPayloadFinished();
+        statistics.onPacketDropped();
+
+        TransferStatistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(0, snapshot.getMissingSamples());
+        // Только отброшенный при переполнении
+        assertEquals(1, snapshot.getLostPacketEstimate());
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.ggk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * UiUpdateCoalescer отдает текст и события выгрузки за кадр в порядке добавления
+ * и считает текст, отброшенный при переполнении.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UiUpdateCoalescerTest {
+
+    private final List<String> delivered = new ArrayList<>();
+
+    private UiUpdateCoalescer coalescer() {
+        UiUpdateCoalescer coalescer = new UiUpdateCoalescer(new Handler(Looper.getMainLooper()),
+                new UiUpdateCoalescer.Sink() {
+                    @Override
+                    public void onDataBatch(String formattedBatch, long totalBytes, double kbPerSecond) {
+                        delivered.add("text:" + formattedBatch);
+                    }
+
+                    @Override
+                    public void onPayloadStarted() {
+                        delivered.add("started");
+                    }
+
+                    @Override
+                    public void onSamplesReceived(short[] samples, long totalBytes, double kbPerSecond) {
+                        delivered.add("samples:" + Arrays.toString(samples));
+                    }
+
+                    @Override
+                    public void onPayloadFinished() {
+                        delivered.add("finished");
+                    }
+                });
+        ShadowLooper.idleMainLooper();
+        return coalescer;
+    }
+
+    @Test
+    public void endAndNextStartInOneFrameKeepOrder() {
+        UiUpdateCoalescer coalescer = coalescer();
+
+        coalescer.addBatch("Idn MT\r\nSt", 10, 1);
+        coalescer.addBatch("art", 13, 1);
+        coalescer.addPayloadStarted();
+        coalescer.addSamples(new short[]{1, 2}, 17, 1);
+        coalescer.addSamples(new short[]{3}, 19, 1);
+        coalescer.addPayloadFinished();
+        coalescer.addBatch("End\r\nStart", 29, 1);
+        coalescer.addPayloadStarted();
+        coalescer.addSamples(new short[]{4}, 31, 1);
+        assertTrue(delivered.isEmpty());
+
+        ShadowLooper.idleMainLooper();
+        // Текст с маркером приходит раньше своего события, соседние куски склеены
+        assertEquals(Arrays.asList(
+                "text:Idn MT\r\nStart",
+                "started",
+                "samples:[1, 2, 3]",
+                "finished",
+                "text:End\r\nStart",
+                "started",
+                "samples:[4]"), delivered);
+    }
+
+    @Test
+    public void overflowDropsOldestTextAndCountsIt() {
+        UiUpdateCoalescer coalescer = coalescer();
+        char[] filler = new char[40 * 1024];
+        Arrays.fill(filler, 'x');
+
+        coalescer.addBatch(new String(filler), 0, 0);
+        coalescer.addPayloadStarted();
+        coalescer.addBatch(new String(filler) + "tail", 0, 0);
+        assertEquals(16 * 1024 + 4, coalescer.getDroppedTextChars());
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(3, delivered.size());
+        // Отброшено начало самого старого текста, событие осталось на месте
+        assertEquals("text:" + new String(filler, 0, 24 * 1024 - 4), delivered.get(0));
+        assertEquals("started", delivered.get(1));
+        assertTrue(delivered.get(2).endsWith("xtail"));
+
+        coalescer.addBatch("next", 0, 0);
+        ShadowLooper.idleMainLooper();
+        assertEquals("text:next", delivered.get(3));
+        assertEquals(16 * 1024 + 4, coalescer.getDroppedTextChars());
+    }
+}